@@ -0,0 +1,89 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Graphs;
+
+/**
+ * Checks that the bins modules count positions in line up with the
+ * groups in the reports, so that no bin is shared by two groups.  Run
+ * with "ant test".
+ */
+public class BaseGroupTest {
+
+	public static void main (String [] args) {
+
+		// Groups count from 1, so group 2000-2499 is positions 1999-2498
+		// counting from 0, which is where the first wide bin must start.
+		check(BaseGroup.binForPosition(1998) == 1998, "position 1998 has its own bin");
+		check(BaseGroup.binForPosition(1999) == 1999, "position 1999 starts the first wide bin");
+		check(BaseGroup.binForPosition(2498) == 1999, "position 2498 ends the first wide bin");
+		check(BaseGroup.binForPosition(2499) == 2000, "position 2499 starts the second wide bin");
+		check(BaseGroup.binForPosition(2998) == 2000, "position 2998 ends the second wide bin");
+		check(BaseGroup.binEnd(1998) == 1999, "bin 1998 ends at 1999");
+		check(BaseGroup.binEnd(1999) == 2499, "bin 1999 ends at 2499");
+		check(BaseGroup.binEnd(2000) == 2999, "bin 2000 ends at 2999");
+
+		int [] lengths = new int [] {1500, 2000, 2001, 2100, 2500, 3000, 9999, 10000, 10001, 12345, 150000, 2500000};
+		for (int l=0;l<lengths.length;l++) {
+			checkGroups(lengths[l]);
+		}
+
+		// Every bin ends where the next one starts
+		for (int bin=0;bin<BaseGroup.binsForLength(2500000)-1;bin++) {
+			int end = BaseGroup.binEnd(bin);
+			check(BaseGroup.binForPosition(end-1) == bin, "bin "+bin+" holds the position before its end");
+			check(BaseGroup.binForPosition(end) == bin+1, "bin "+(bin+1)+" starts where bin "+bin+" ends");
+		}
+
+		System.out.println("BaseGroup bins match the groups");
+	}
+
+	private static void checkGroups (int maxLength) {
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(maxLength);
+
+		for (int g=0;g<groups.length;g++) {
+			int lowerBin = groups[g].lowerBin();
+			int upperBin = groups[g].upperBin();
+
+			if (g > 0) {
+				check(lowerBin > groups[g-1].upperBin(), "group "+groups[g]+" shares a bin with group "+groups[g-1]+" for length "+maxLength);
+			}
+
+			// The first and last positions of the group, counting from 0,
+			// and the positions either side of it.
+			int first = groups[g].lowerCount()-1;
+			int last = groups[g].upperCount()-1;
+			check(BaseGroup.binForPosition(first) == lowerBin, "group "+groups[g]+" starts in its first bin for length "+maxLength);
+			check(BaseGroup.binForPosition(last) == upperBin, "group "+groups[g]+" ends in its last bin for length "+maxLength);
+			if (first > 0) {
+				check(BaseGroup.binForPosition(first-1) < lowerBin, "group "+groups[g]+" starts a new bin for length "+maxLength);
+			}
+			if (g < groups.length-1) {
+				check(BaseGroup.binForPosition(last+1) > upperBin, "group "+groups[g]+" ends a bin for length "+maxLength);
+			}
+		}
+	}
+
+	private static void check (boolean ok, String what) {
+		if (!ok) {
+			throw new IllegalStateException("Failed: "+what);
+		}
+	}
+
+}
@@ -25,7 +25,7 @@ import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
 public interface AnalysisListener {
 
 	public void analysisStarted(SequenceFile file);
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete);
+	public void analysisUpdated(SequenceFile file, long sequencesProcessed, int percentComplete);
 	public void analysisComplete(SequenceFile file, QCModule [] results);
 	public void analysisExceptionReceived(SequenceFile file, Exception e);
 }
@@ -21,17 +21,14 @@ package uk.ac.bbsrc.babraham.FastQC.Analysis;
 
 import java.util.LinkedList;
 
-import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
-import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
-
-public class AnalysisQueue implements Runnable, AnalysisListener{
+public class AnalysisQueue implements Runnable {
 
 	private static AnalysisQueue instance = new AnalysisQueue();
 	
-	private LinkedList<AnalysisRunner>queue = new LinkedList<AnalysisRunner>();
+	private LinkedList<Runnable>queue = new LinkedList<Runnable>();
 	
 	private int availableSlots = 1;
-	private int usedSlots = 0;
+	private volatile int usedSlots = 0;
 	
 	public static AnalysisQueue getInstance () {
 		return instance;
@@ -59,20 +56,63 @@ public class AnalysisQueue implements Runnable, AnalysisListener{
 		t.start();
 	}
 	
-	public void addToQueue (AnalysisRunner runner) {
+	/**
+	 * Adds a job to the queue.  A job holds its slot until its run
+	 * method returns, however many files it analyses.
+	 * 
+	 * @param runner An AnalysisRunner or PairedAnalysisRunner
+	 */
+	public void addToQueue (Runnable runner) {
 		queue.add(runner);
 	}
+	
+	/**
+	 * @return The number of threads we've been told we can use
+	 */
+	public int availableSlots () {
+		return availableSlots;
+	}
+	
+	/**
+	 * Reserves more slots for a job which is already running, so it can
+	 * split its work across several threads.  Only slots which are free
+	 * right now are handed out, so we never go over the thread limit.
+	 * 
+	 * @param wanted The most extra slots the job could use
+	 * @return How many were reserved, which must be given back with releaseSlots
+	 */
+	public synchronized int reserveSlots (int wanted) {
+		int reserved = Math.max(0, Math.min(wanted, availableSlots-usedSlots));
+		usedSlots += reserved;
+		return reserved;
+	}
+	
+	/**
+	 * Gives back slots taken with reserveSlots.
+	 * 
+	 * @param slots How many slots to give back
+	 */
+	public synchronized void releaseSlots (int slots) {
+		usedSlots -= slots;
+	}
 
 	public void run() {
 
 		while (true) {
 //			System.err.println("Status available="+availableSlots+" used="+usedSlots+" queue="+queue.size());
-			if (availableSlots > usedSlots && queue.size() > 0) {
-				++usedSlots;
-				AnalysisRunner currentRun = queue.getFirst();
+			if (queue.size() > 0 && takeSlot()) {
+				final Runnable currentRun = queue.getFirst();
 				queue.removeFirst();
-				currentRun.addAnalysisListener(this);
-				Thread t = new Thread(currentRun);
+				Thread t = new Thread(new Runnable() {
+					public void run () {
+						try {
+							currentRun.run();
+						}
+						finally {
+							releaseSlot();
+						}
+					}
+				});
 				t.start();
 			}
 			
@@ -82,17 +122,14 @@ public class AnalysisQueue implements Runnable, AnalysisListener{
 		}
 	}
 
-	public void analysisComplete(SequenceFile file, QCModule[] results) {
-		--usedSlots;
+	private synchronized boolean takeSlot () {
+		if (usedSlots >= availableSlots) return false;
+		++usedSlots;
+		return true;
 	}
-
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {}
-
-	public void analysisExceptionReceived(SequenceFile file, Exception e) {
+	
+	private synchronized void releaseSlot () {
 		--usedSlots;
 	}
-
-	public void analysisStarted(SequenceFile file) {}
-	
 	
 }
@@ -23,8 +23,11 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import uk.ac.bbsrc.babraham.FastQC.Modules.ModuleFactory;
 import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.MappedFastQFile;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFormatException;
 
@@ -35,6 +38,9 @@ public class AnalysisRunner implements Runnable {
 	private List<AnalysisListener> listeners = new ArrayList<AnalysisListener>();
 	private int percentComplete = 0;
 	
+	// How often we report progress when we can't give a percentage
+	private static final int STREAM_UPDATE_INTERVAL = 1000000;
+	
 	public AnalysisRunner (SequenceFile file) {
 		this.file = file;
 	}
@@ -67,13 +73,28 @@ public class AnalysisRunner implements Runnable {
 			i.next().analysisStarted(file);
 		}
 
+		// Large uncompressed files can be split up so that we can
+		// analyse the sections on separate threads.
+		SequenceFile [] sections = getSections();
+		if (sections != null) {
+			try {
+				processSections(sections);
+			}
+			finally {
+				AnalysisQueue.getInstance().releaseSlots(sections.length);
+			}
+			return;
+		}
 		
-		int seqCount = 0;
+		// Sequences are passed to the modules in batches rather than one
+		// at a time, so each module can work through a block of them in
+		// one go.
+		SequenceBatch batch = new SequenceBatch();
+		SequenceBatch longRead = new SequenceBatch();
+		long seqCount = 0;
 		while (file.hasNext()) {
-			++seqCount;
-			Sequence seq;
 			try {
-				seq = file.next();
+				readBatch(file, batch, longRead);
 			}
 			catch (SequenceFormatException e) {
 				i = listeners.iterator();
@@ -83,14 +104,15 @@ public class AnalysisRunner implements Runnable {
 				return;
 			}
 			
-			for (int m=0;m<modules.length;m++) {
-				if (seq.isFiltered() && modules[m].ignoreFilteredSequences()) continue;
-				modules[m].processSequence(seq);
-			}
+			processBatch(modules, batch, longRead);
 			
-			if (file.getPercentComplete() == percentComplete+5) {
+			long lastCount = seqCount;
+			seqCount += batch.size()+longRead.size();
+			int percent = file.getPercentComplete();
 			
-				percentComplete = (int)file.getPercentComplete();
+			if (percent >= percentComplete+5) {
+			
+				percentComplete = percent - (percent % 5);
 				
 				i = listeners.iterator();
 					while (i.hasNext()) {
@@ -101,6 +123,15 @@ public class AnalysisRunner implements Runnable {
 					} 
 					catch (InterruptedException e) {}
 			}
+			else if (percent < 0 && seqCount / STREAM_UPDATE_INTERVAL != lastCount / STREAM_UPDATE_INTERVAL) {
+				
+				// We're reading from a stream whose length we don't know,
+				// so we just report how much we've got through.
+				i = listeners.iterator();
+				while (i.hasNext()) {
+					i.next().analysisUpdated(file,seqCount,-1);
+				}
+			}
 		}
 		
 		i = listeners.iterator();
@@ -110,4 +141,222 @@ public class AnalysisRunner implements Runnable {
 
 	}
 	
+	/**
+	 * Fills a batch from a file.  A very long read ends the batch early
+	 * and goes into a batch of its own, which wraps the read where it is
+	 * rather than copying it, so we never hold two copies of a long read.
+	 * 
+	 * @param file The file to read from
+	 * @param batch The batch to fill
+	 * @param longRead The batch to put a long read in
+	 * @throws SequenceFormatException
+	 */
+	private static void readBatch (SequenceFile file, SequenceBatch batch, SequenceBatch longRead) throws SequenceFormatException {
+		batch.clear();
+		longRead.clear();
+		while (!batch.isFull() && file.hasNext()) {
+			Sequence seq = file.next();
+			if (seq.getSequenceLength() >= SequenceBatch.LONG_READ_LENGTH) {
+				// The read is only valid until we move on, so it has to
+				// be analysed before we read anything else.
+				longRead.wrap(seq);
+				return;
+			}
+			batch.add(seq);
+		}
+	}
+	
+	/**
+	 * Passes the batches from readBatch to the modules, in the same order
+	 * as the reads were in the file.
+	 */
+	private static void processBatch (QCModule [] modules, SequenceBatch batch, SequenceBatch longRead) {
+		for (int m=0;m<modules.length;m++) {
+			if (batch.size() > 0) modules[m].processBatch(batch);
+			if (longRead.size() > 0) modules[m].processBatch(longRead);
+		}
+	}
+	
+	/**
+	 * Splits the file into sections if there are threads free and the
+	 * file can be split.  We also need to be able to make a fresh set of
+	 * modules for each section, since we merge them at the end.
+	 * 
+	 * Our own slot goes to reading the whole file for the modules which
+	 * can't be merged, and every section holds a slot of its own in the
+	 * AnalysisQueue, which has to be given back once it's been analysed.
+	 * 
+	 * @return The sections to analyse, or null to analyse the file as a whole
+	 */
+	private SequenceFile [] getSections () {
+		AnalysisQueue queue = AnalysisQueue.getInstance();
+		if (queue.availableSlots() < 2 || !(file instanceof MappedFastQFile)) return null;
+		
+		QCModule [] standardModules = ModuleFactory.getStandardModuleList();
+		if (standardModules.length != modules.length) return null;
+		for (int m=0;m<modules.length;m++) {
+			if (standardModules[m].getClass() != modules[m].getClass()) return null;
+		}
+		
+		// We can have as many sections as there are slots nobody else
+		// is using.
+		int extraSlots = queue.reserveSlots(queue.availableSlots()-1);
+		try {
+			SequenceFile [] sections = ((MappedFastQFile)file).split(extraSlots);
+			if (sections.length > 1) {
+				queue.releaseSlots(extraSlots-sections.length);
+				return sections;
+			}
+		}
+		catch (Exception e) {
+			// If anything is wrong with the file we'll find out
+			// when we read it as a whole.
+		}
+		queue.releaseSlots(extraSlots);
+		return null;
+	}
+	
+	private void processSections (SequenceFile [] sections) {
+		
+		SectionRunner [] runners = new SectionRunner[sections.length];
+		Thread [] threads = new Thread[sections.length+1];
+		
+		// Modules which can't be merged read the whole file in order on
+		// a thread of their own.
+		SectionRunner wholeFile = new SectionRunner(file, mergeable(modules, false));
+		threads[sections.length] = new Thread(wholeFile);
+		threads[sections.length].start();
+		
+		// The rest are run over each section.  The first section uses the
+		// modules we were given and the others get their own, which we
+		// merge in at the end.
+		for (int s=0;s<sections.length;s++) {
+			if (s == 0) {
+				runners[s] = new SectionRunner(sections[s], mergeable(modules, true));
+			}
+			else {
+				runners[s] = new SectionRunner(sections[s], mergeable(ModuleFactory.getStandardModuleList(), true));
+			}
+			threads[s] = new Thread(runners[s]);
+			threads[s].start();
+		}
+		
+		Iterator<AnalysisListener> i;
+		
+		for (int s=0;s<threads.length;s++) {
+			while (threads[s].isAlive()) {
+				try {
+					threads[s].join(500);
+				}
+				catch (InterruptedException e) {}
+				
+				// The sections are all about the same size so the
+				// average of their progress is good enough.
+				long seqCount = 0;
+				int percent = 0;
+				for (int r=0;r<runners.length;r++) {
+					seqCount += runners[r].count;
+					percent += runners[r].percent;
+				}
+				percent /= runners.length;
+				
+				// We're no further on than the pass over the whole file
+				percent = Math.min(percent, wholeFile.percent);
+				
+				if (percent >= percentComplete+5) {
+					percentComplete = percent - (percent % 5);
+					
+					i = listeners.iterator();
+					while (i.hasNext()) {
+						i.next().analysisUpdated(file,seqCount,percentComplete);
+					}
+				}
+			}
+		}
+		
+		for (int s=0;s<=runners.length;s++) {
+			SectionRunner runner = (s < runners.length) ? runners[s] : wholeFile;
+			if (runner.exception != null) {
+				i = listeners.iterator();
+				while (i.hasNext()) {
+					i.next().analysisExceptionReceived(file,runner.exception);
+				}
+				return;
+			}
+		}
+		
+		for (int s=1;s<runners.length;s++) {
+			for (int m=0;m<runners[0].modules.length;m++) {
+				runners[0].modules[m].merge(runners[s].modules[m]);
+			}
+		}
+		
+		i = listeners.iterator();
+		while (i.hasNext()) {
+			i.next().analysisComplete(file,modules);
+		}
+		
+	}
+	
+	/**
+	 * Picks out the modules which can or can't be merged, keeping them in
+	 * the same order so the sections' modules still line up.
+	 * 
+	 * @param modules The modules to choose from
+	 * @param canMerge Whether we want the ones which can be merged
+	 * @return The chosen modules
+	 */
+	private static QCModule [] mergeable (QCModule [] modules, boolean canMerge) {
+		List<QCModule> chosen = new ArrayList<QCModule>();
+		for (int m=0;m<modules.length;m++) {
+			if (modules[m].canMerge() == canMerge) chosen.add(modules[m]);
+		}
+		return chosen.toArray(new QCModule[0]);
+	}
+	
+	/**
+	 * Runs one section of a split file through its own set of modules.
+	 */
+	private class SectionRunner implements Runnable {
+		
+		private SequenceFile section;
+		private QCModule [] modules;
+		private Exception exception = null;
+		
+		// We only update these when the percentage changes so we're not
+		// writing to a volatile for every sequence.
+		private volatile long count = 0;
+		private volatile int percent = 0;
+		
+		public SectionRunner (SequenceFile section, QCModule [] modules) {
+			this.section = section;
+			this.modules = modules;
+		}
+		
+		public void run () {
+			SequenceBatch batch = new SequenceBatch();
+			SequenceBatch longRead = new SequenceBatch();
+			long seqCount = 0;
+			try {
+				while (section.hasNext()) {
+					readBatch(section, batch, longRead);
+					processBatch(modules, batch, longRead);
+					seqCount += batch.size()+longRead.size();
+					
+					if (section.getPercentComplete() != percent) {
+						count = seqCount;
+						percent = section.getPercentComplete();
+					}
+				}
+			}
+			catch (Throwable t) {
+				// Whatever went wrong, in the file or in a module, has to
+				// be reported or we'd merge in a section we never finished.
+				exception = (t instanceof Exception) ? (Exception)t : new Exception(t);
+			}
+			count = seqCount;
+		}
+		
+	}
+	
 }
@@ -0,0 +1,205 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import uk.ac.bbsrc.babraham.FastQC.Sequence.ReadCategoryFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFormatException;
+
+/**
+ * Reads batches of sequences from a file on its own thread, so that the
+ * next batch is being read while the last one is analysed.  Batches are
+ * handed back with recycle() once they've been used.
+ * 
+ * An interleaved paired end file is split as it's read, with alternate
+ * records going into batches for the first and second mate.  The two
+ * mates' batches are always made together, so they hold the same pairs.
+ * 
+ * A BAM file read for all read categories is split in the same way, but
+ * each read goes into the batches for its own category.
+ */
+class BatchReader implements Runnable {
+
+	// How many batches of each mate can be in use at once
+	private static final int BATCHES = 3;
+	
+	private SequenceFile file;
+	private SequenceFile [] mates;
+	private boolean byCategory;
+	private Thread thread;
+	
+	private List<BlockingQueue<SequenceBatch>> empty = new ArrayList<BlockingQueue<SequenceBatch>>();
+	private List<BlockingQueue<SequenceBatch>> full = new ArrayList<BlockingQueue<SequenceBatch>>();
+	
+	// Put on the full queues once there's nothing left to read
+	private SequenceBatch end = new SequenceBatch();
+	
+	private volatile SequenceFormatException exception = null;
+	private volatile int percent = 0;
+	
+	public BatchReader (SequenceFile file) {
+		this(file, new SequenceFile [] {file});
+	}
+	
+	/**
+	 * Makes a reader for an interleaved file.
+	 * 
+	 * @param file The interleaved file
+	 * @param mates The files the first and second mates will say they came from
+	 */
+	public BatchReader (SequenceFile file, SequenceFile [] mates) {
+		this(file, mates, false);
+	}
+	
+	/**
+	 * Makes a reader which splits a file into several parts.
+	 * 
+	 * @param file The file to split
+	 * @param mates The files the reads of each part will say they came from
+	 * @param byCategory false to put alternate reads in each part, true to
+	 * put each read in the part for its ReadCategoryFile's read number
+	 */
+	public BatchReader (SequenceFile file, SequenceFile [] mates, boolean byCategory) {
+		this.file = file;
+		this.mates = mates;
+		this.byCategory = byCategory;
+		
+		for (int m=0;m<mates.length;m++) {
+			empty.add(new ArrayBlockingQueue<SequenceBatch>(BATCHES));
+			full.add(new ArrayBlockingQueue<SequenceBatch>(BATCHES+1));
+			for (int b=0;b<BATCHES;b++) {
+				empty.get(m).add(new SequenceBatch());
+			}
+		}
+	}
+	
+	public void start () {
+		thread = new Thread(this);
+		thread.start();
+	}
+	
+	/**
+	 * Stops reading early, for when the analysis has failed.
+	 */
+	public void stop () {
+		if (thread != null) thread.interrupt();
+	}
+	
+	public void run () {
+		SequenceBatch [] batches = new SequenceBatch[mates.length];
+		try {
+			while (file.hasNext()) {
+				for (int m=0;m<mates.length;m++) {
+					batches[m] = empty.get(m).take();
+					batches[m].clear();
+				}
+				
+				if (byCategory) {
+					// We stop as soon as any category's batch is full
+					boolean full = false;
+					while (!full && file.hasNext()) {
+						Sequence sequence = file.next();
+						int category = ((ReadCategoryFile)sequence.file()).read();
+						batches[category].add(sequence, mates[category]);
+						full = batches[category].isFull();
+					}
+				}
+				else {
+					int mate = 0;
+					while (!batches[mate].isFull() && file.hasNext()) {
+						batches[mate].add(file.next(), mates[mate]);
+						mate = (mate+1) % mates.length;
+					}
+				}
+				
+				percent = file.getPercentComplete();
+				for (int m=0;m<mates.length;m++) {
+					full.get(m).put(batches[m]);
+				}
+			}
+		}
+		catch (SequenceFormatException e) {
+			exception = e;
+		}
+		catch (InterruptedException e) {}
+		catch (Throwable t) {
+			// Anything else still has to reach the analysis, which would
+			// otherwise wait for ever for the next batch.
+			t.printStackTrace();
+			exception = new SequenceFormatException("Failed to read "+file.name()+": "+t);
+		}
+		finally {
+			for (int m=0;m<mates.length;m++) {
+				full.get(m).offer(end);
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the next batch.
+	 * 
+	 * @param mate 0 unless the file is split, when it's which part we want
+	 * @return The batch, or null if the file has been read
+	 * @throws SequenceFormatException If the file couldn't be read
+	 */
+	public SequenceBatch next (int mate) throws SequenceFormatException {
+		SequenceBatch batch;
+		while (true) {
+			try {
+				batch = full.get(mate).take();
+				break;
+			}
+			catch (InterruptedException e) {}
+		}
+		
+		if (batch == end) {
+			// Leave the end marker there in case we're asked again
+			full.get(mate).offer(end);
+			if (exception != null) throw exception;
+			return null;
+		}
+		return batch;
+	}
+	
+	/**
+	 * Hands back a batch which has been analysed so it can be filled again.
+	 * 
+	 * @param mate Which part the batch came from, 0 unless the file is split
+	 * @param batch A batch returned by next()
+	 */
+	public void recycle (int mate, SequenceBatch batch) {
+		empty.get(mate).offer(batch);
+	}
+	
+	/**
+	 * @return How far through the file we'd got after the last batch we read
+	 */
+	public int getPercentComplete () {
+		return percent;
+	}
+	
+}
@@ -24,26 +24,28 @@ import java.io.IOException;
 import java.util.Vector;
 
 import uk.ac.bbsrc.babraham.FastQC.Modules.BasicStats;
-import uk.ac.bbsrc.babraham.FastQC.Modules.KmerContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.NContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.OverRepresentedSeqs;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseGCContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseQualityScores;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseSequenceContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerSequenceGCContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerSequenceQualityScores;
+import uk.ac.bbsrc.babraham.FastQC.Modules.ModuleFactory;
 import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
-import uk.ac.bbsrc.babraham.FastQC.Modules.SequenceLengthDistribution;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.BAMFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.ReadCategoryFile;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFactory;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFileGroup;
 import uk.ac.bbsrc.babraham.FastQC.Utilities.CasavaBasename;
+import uk.ac.bbsrc.babraham.FastQC.Utilities.PairedEndNames;
 
 public class OfflineRunner implements AnalysisListener {
 	
 	private int filesRemaining;
 	private boolean showUpdates = true;
+	private boolean validate = false;
 	private final int read;
+	
+	// BAM files read for all read categories can't say up front how many
+	// reports they'll make, so rather than counting their files we wait
+	// for their runners to finish.
+	private Vector<ReadCategoryAnalysisRunner> categoryRunners = new Vector<ReadCategoryAnalysisRunner>();
     
 	public OfflineRunner (String [] filenames, int read) {
         this.read = read;
@@ -53,12 +55,30 @@ public class OfflineRunner implements AnalysisListener {
 			showUpdates = false;
 		}
 		
+		// In validation mode we only count what's in each file and print
+		// a line for it, rather than running the full set of modules.
+		if (System.getProperty("fastqc.validate") != null && System.getProperty("fastqc.validate").equals("true")) {
+			validate = true;
+		}
+		
 		Vector<File> files = new Vector<File>();
 		
 		for (int f=0;f<filenames.length;f++) {
 			File file = new File(filenames[f]);
+			
+			// We can read from stdin ("-") and from named pipes, but
+			// stdin can only be used once.
+			if (filenames[f].equals("-")) {
+				if (files.contains(file)) {
+					System.err.println("Skipping '-' which has already been used to read from stdin");
+					continue;
+				}
+				files.add(file);
+				continue;
+			}
 			if (!file.exists() || ! file.canRead()) {
 				System.err.println("Skipping '"+filenames[f]+"' which didn't exist, or couldn't be read");
+				if (validate) printFailure(file.getName(), new IOException("File didn't exist, or couldn't be read"));
 				continue;
 			}
 			files.add(file);
@@ -78,23 +98,68 @@ public class OfflineRunner implements AnalysisListener {
 		}
 		
 		
-		filesRemaining = fileGroups.length;
+		// Interleaved files hold both mates of each pair, and we split
+		// them into a report for each mate.
+		if (System.getProperty("fastqc.interleaved") != null && System.getProperty("fastqc.interleaved").equals("true")) {
+			filesRemaining = fileGroups.length*2;
+			
+			for (int i=0;i<fileGroups.length;i++) {
+				try {
+					processInterleaved(fileGroups[i], read);
+				}
+				catch (Exception e) {
+					System.err.println("Failed to process "+fileGroups[i][0]);
+					e.printStackTrace();
+					if (validate) printFailure(fileGroups[i][0].getName(), e);
+					filesRemaining -= 2;
+				}
+			}
+		}
 		
-		for (int i=0;i<fileGroups.length;i++) {
-
-			try {
-				processFile(fileGroups[i], read);
+		// In paired end mode the two files of each pair are analysed
+		// together, but still give a report each.
+		else if (System.getProperty("fastqc.paired") != null && System.getProperty("fastqc.paired").equals("true")) {
+			File [][][] pairs = PairedEndNames.getPairs(fileGroups);
+			
+			filesRemaining = fileGroups.length;
+			
+			for (int i=0;i<pairs.length;i++) {
+				try {
+					if (pairs[i].length == 2) {
+						processPair(pairs[i][0], pairs[i][1], read);
+					}
+					else {
+						processFile(pairs[i][0], read);
+					}
+				}
+				catch (Exception e) {
+					System.err.println("Failed to process "+pairs[i][0][0]);
+					e.printStackTrace();
+					if (validate) printFailure(pairs[i][0][0].getName(), e);
+					filesRemaining -= pairs[i].length;
+				}
 			}
-			catch (Exception e) {
-				System.err.println("Failed to process "+fileGroups[i][0]);
-				e.printStackTrace();
-				--filesRemaining;
+		}
+		else {
+			filesRemaining = fileGroups.length;
+			
+			for (int i=0;i<fileGroups.length;i++) {
+	
+				try {
+					processFile(fileGroups[i], read);
+				}
+				catch (Exception e) {
+					System.err.println("Failed to process "+fileGroups[i][0]);
+					e.printStackTrace();
+					if (validate) printFailure(fileGroups[i][0].getName(), e);
+					--filesRemaining;
+				}
 			}
 		}
 		
 		// We need to hold this class open as otherwise the main method
 		// exits when it's finished.
-		while (filesRemaining > 0) {
+		while (filesRemaining > 0 || categoryRunnersRunning()) {
 			try {
 				Thread.sleep(1000);
 			} 
@@ -105,45 +170,111 @@ public class OfflineRunner implements AnalysisListener {
 	}
 	
 	public void processFile (File [] files, int read) throws Exception {
-		for (int f=0;f<files.length;f++) {
-			if (!files[f].exists()) {
-				throw new IOException(files[f].getName()+" doesn't exist");
+		SequenceFile sequenceFile = getSequenceFile(files, read);
+		
+		// A BAM file, or casava group of them, read for all categories is
+		// split up as it's read and gets a report for each category it has.
+		if (read == BAMFile.ALL_READS && isBAM(sequenceFile)) {
+			ReadCategoryAnalysisRunner runner = new ReadCategoryAnalysisRunner(sequenceFile);
+			runner.addAnalysisListener(this);
+			
+			QCModule [][] modules = new QCModule[BAMFile.READ_CATEGORIES][];
+			for (int c=0;c<modules.length;c++) {
+				modules[c] = getModuleList();
 			}
-		}
-		SequenceFile sequenceFile;
-		if (files.length == 1) {
-			sequenceFile = SequenceFactory.getSequenceFile(files[0], read);
-		}
-		else {
-			sequenceFile = SequenceFactory.getSequenceFile(files, read);
+			categoryRunners.add(runner);
+			--filesRemaining;
+			
+			runner.startAnalysis(modules);
+			return;
 		}
 						
 		AnalysisRunner runner = new AnalysisRunner(sequenceFile);
 		runner.addAnalysisListener(this);
 		
-		OverRepresentedSeqs os = new OverRepresentedSeqs();
-		
-		QCModule [] module_list = new QCModule [] {
-			new BasicStats(),
-			new PerBaseQualityScores(),
-			new PerSequenceQualityScores(),
-			new PerBaseSequenceContent(),
-			new PerBaseGCContent(), 
-			new PerSequenceGCContent(),
-			new NContent(),
-			new SequenceLengthDistribution(),
-			os.duplicationLevelModule(),
-			os,
-			new KmerContent()
-		};
-
-		runner.startAnalysis(module_list);
+		runner.startAnalysis(getModuleList());
 
 	}	
 	
+	public void processPair (File [] first, File [] second, int read) throws Exception {
+		SequenceFile firstFile = getSequenceFile(first, read);
+		SequenceFile secondFile = getSequenceFile(second, read);
+		
+		PairedAnalysisRunner runner = new PairedAnalysisRunner(firstFile, secondFile);
+		runner.addAnalysisListener(this);
+		
+		runner.startAnalysis(getModuleList(), getModuleList());
+	}
+	
+	public void processInterleaved (File [] files, int read) throws Exception {
+		PairedAnalysisRunner runner = new PairedAnalysisRunner(getSequenceFile(files, read));
+		runner.addAnalysisListener(this);
+		
+		runner.startAnalysis(getModuleList(), getModuleList());
+	}
+	
+	private QCModule [] getModuleList () {
+		if (validate) {
+			return ModuleFactory.getValidationModuleList();
+		}
+		return ModuleFactory.getStandardModuleList();
+	}
+	
+	private boolean categoryRunnersRunning () {
+		for (int r=0;r<categoryRunners.size();r++) {
+			if (!categoryRunners.elementAt(r).isFinished()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @return true if all of a file's reads come from BAM files
+	 */
+	private static boolean isBAM (SequenceFile file) {
+		if (file instanceof SequenceFileGroup) {
+			SequenceFile [] files = ((SequenceFileGroup)file).getFiles();
+			for (int f=0;f<files.length;f++) {
+				if (!isBAM(files[f])) return false;
+			}
+			return true;
+		}
+		return file instanceof BAMFile;
+	}
+	
+	/**
+	 * @return The read number a file's report is for
+	 */
+	private int readFor (SequenceFile file) {
+		if (file instanceof ReadCategoryFile) {
+			return ((ReadCategoryFile)file).read();
+		}
+		if (read == BAMFile.ALL_READS) return 0;
+		return read;
+	}
+	
+	private SequenceFile getSequenceFile (File [] files, int read) throws Exception {
+		for (int f=0;f<files.length;f++) {
+			if (!files[f].exists() && !SequenceFactory.isStream(files[f])) {
+				throw new IOException(files[f].getName()+" doesn't exist");
+			}
+		}
+		if (files.length == 1) {
+			return SequenceFactory.getSequenceFile(files[0], read);
+		}
+		return SequenceFactory.getSequenceFile(files, read);
+	}
+	
 	public void analysisComplete(SequenceFile file, QCModule[] results) {
 		File reportFile;
 		
+		int read = readFor(file);
+		
+		if (validate) {
+			printSummary(file, results);
+			if (!(file instanceof ReadCategoryFile)) --filesRemaining;
+			return;
+		}
+		
 		if (showUpdates) System.out.println("Analysis complete for "+file.name());
 
 		
@@ -162,11 +293,19 @@ public class OfflineRunner implements AnalysisListener {
 			analysisExceptionReceived(file, e);
 			return;
 		}
-		--filesRemaining;
+		if (!(file instanceof ReadCategoryFile)) --filesRemaining;
 
 	}
 
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {
+	public void analysisUpdated(SequenceFile file, long sequencesProcessed, int percentComplete) {
+		int read = readFor(file);
+		
+		// When we're reading from a pipe we don't know how far through we
+		// are, so we just say how much we've read.
+		if (percentComplete < 0) {
+			if (showUpdates) System.err.println("Read "+sequencesProcessed+" sequences ("+(file.getBytesRead()/(1024*1024))+"MB) from "+file.name()+" "+read);
+			return;
+		}
 		
 		if (percentComplete % 5 == 0) {
 			if (percentComplete == 105) {
@@ -182,13 +321,50 @@ public class OfflineRunner implements AnalysisListener {
 	}
 
 	public void analysisExceptionReceived(SequenceFile file, Exception e) {
-		System.err.println("Failed to process file "+file.name()+" "+read);
+		System.err.println("Failed to process file "+file.name()+" "+readFor(file));
 		e.printStackTrace();
-		--filesRemaining;
+		if (validate) printFailure(file.name(), e);
+		if (!(file instanceof ReadCategoryFile)) --filesRemaining;
+	}
+
+	/**
+	 * Prints the line for a file which passed validation.  The line has
+	 * the file name, PASS and then the counts from BasicStats, all
+	 * separated by tabs.
+	 */
+	private synchronized void printSummary (SequenceFile file, QCModule [] results) {
+		String name = file.name();
+		if (file instanceof ReadCategoryFile) name += ":"+readFor(file);
+		
+		for (int m=0;m<results.length;m++) {
+			if (results[m] instanceof BasicStats) {
+				String summary;
+				try {
+					summary = ((BasicStats)results[m]).summaryLine();
+				}
+				catch (IllegalArgumentException e) {
+					// We couldn't work out the quality encoding
+					printFailure(name, e);
+					return;
+				}
+				System.out.println(name+"\tPASS\t"+summary);
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Prints the line for a file which failed validation, which has the
+	 * file name, FAIL and the reason it failed.
+	 */
+	private synchronized void printFailure (String name, Exception e) {
+		String message = e.getLocalizedMessage();
+		if (message == null) message = e.getClass().getSimpleName();
+		System.out.println(name+"\tFAIL\terror="+message.replaceAll("\\s+", " "));
 	}
 
 	public void analysisStarted(SequenceFile file) {
-		if (showUpdates) System.err.println("Started analysis of "+file.name()+" "+read);
+		if (showUpdates) System.err.println("Started analysis of "+file.name()+" "+readFor(file));
 		
 	}
 	
@@ -0,0 +1,213 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Analysis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import uk.ac.bbsrc.babraham.FastQC.Modules.PairedEndStats;
+import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.MateFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFormatException;
+
+/**
+ * Analyses the two files of a paired end run together.  Each file is
+ * read on its own thread and goes through its own set of modules, and
+ * as we go we match up the mates to check that the files really pair.
+ * Listeners hear about each file separately, just as if they had been
+ * analysed on their own, and the pair results are added to both.
+ * 
+ * The pair can also come from a single interleaved file, in which case
+ * it's split into a MateFile for each mate.
+ */
+public class PairedAnalysisRunner implements Runnable {
+
+	private SequenceFile [] files;
+	private SequenceFile interleavedFile = null;
+	private QCModule [][] modules;
+	private PairedEndStats pairStats = new PairedEndStats();
+	private List<AnalysisListener> listeners = new ArrayList<AnalysisListener>();
+	private int [] percentComplete = new int[2];
+	
+	// How often we report progress when we can't give a percentage
+	private static final int STREAM_UPDATE_INTERVAL = 1000000;
+	
+	public PairedAnalysisRunner (SequenceFile first, SequenceFile second) {
+		files = new SequenceFile [] {first, second};
+	}
+	
+	/**
+	 * Analyses an interleaved file, where the first read of each pair is
+	 * followed by the second.
+	 * 
+	 * @param interleavedFile The file holding both mates
+	 */
+	public PairedAnalysisRunner (SequenceFile interleavedFile) {
+		this.interleavedFile = interleavedFile;
+		files = new SequenceFile [] {new MateFile(interleavedFile, 1), new MateFile(interleavedFile, 2)};
+	}
+	
+	public void addAnalysisListener (AnalysisListener l) {
+		if (l != null && !listeners.contains(l)) {
+			listeners.add(l);
+		}
+	}
+
+	public void removeAnalysisListener (AnalysisListener l) {
+		if (l != null && listeners.contains(l)) {
+			listeners.remove(l);
+		}
+	}
+	
+	public void startAnalysis (QCModule [] firstModules, QCModule [] secondModules) {
+		modules = new QCModule [][] {firstModules, secondModules};
+		for (int f=0;f<modules.length;f++) {
+			for (int m=0;m<modules[f].length;m++) {
+				modules[f][m].reset();
+			}
+		}
+		pairStats.reset();
+		AnalysisQueue.getInstance().addToQueue(this);
+	}
+
+	public void run() {
+
+		Iterator<AnalysisListener> i;
+		for (int f=0;f<files.length;f++) {
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisStarted(files[f]);
+			}
+		}
+		
+		// Each mate has a reader and the batch number it takes from that
+		// reader, which for an interleaved file is the same reader.
+		BatchReader [] readers = new BatchReader[files.length];
+		int [] mates = new int[files.length];
+		if (interleavedFile != null) {
+			readers[0] = new BatchReader(interleavedFile, files);
+			readers[1] = readers[0];
+			mates[1] = 1;
+			readers[0].start();
+		}
+		else {
+			for (int f=0;f<files.length;f++) {
+				readers[f] = new BatchReader(files[f]);
+				readers[f].start();
+			}
+		}
+		
+		SequenceBatch [] batches = new SequenceBatch[files.length];
+		int [] positions = new int[files.length];
+		long [] seqCounts = new long[files.length];
+		
+		try {
+			for (int f=0;f<files.length;f++) {
+				batches[f] = readers[f].next(mates[f]);
+			}
+			
+			while (batches[0] != null || batches[1] != null) {
+				
+				if (batches[0] != null && batches[1] != null) {
+					// The batches needn't be the same size, so we pair up
+					// as many reads as we can from where we got to in each.
+					int pairs = Math.min(batches[0].size()-positions[0], batches[1].size()-positions[1]);
+					for (int p=0;p<pairs;p++) {
+						pairStats.processPair(batches[0].sequence(positions[0]+p), batches[1].sequence(positions[1]+p));
+					}
+					positions[0] += pairs;
+					positions[1] += pairs;
+				}
+				else {
+					// One file has run out so nothing left in the other
+					// one has a mate.
+					for (int f=0;f<files.length;f++) {
+						if (batches[f] == null) continue;
+						for (int s=positions[f];s<batches[f].size();s++) {
+							pairStats.processUnpaired(f);
+						}
+						positions[f] = batches[f].size();
+					}
+				}
+				
+				for (int f=0;f<files.length;f++) {
+					if (batches[f] == null || positions[f] < batches[f].size()) continue;
+					
+					for (int m=0;m<modules[f].length;m++) {
+						modules[f][m].processBatch(batches[f]);
+					}
+					
+					long lastCount = seqCounts[f];
+					seqCounts[f] += batches[f].size();
+					updateProgress(f, readers[f].getPercentComplete(), lastCount, seqCounts[f]);
+					
+					readers[f].recycle(mates[f], batches[f]);
+					batches[f] = readers[f].next(mates[f]);
+					positions[f] = 0;
+				}
+			}
+		}
+		catch (SequenceFormatException e) {
+			for (int f=0;f<files.length;f++) {
+				readers[f].stop();
+				i = listeners.iterator();
+				while (i.hasNext()) {
+					i.next().analysisExceptionReceived(files[f],e);
+				}
+			}
+			return;
+		}
+		
+		for (int f=0;f<files.length;f++) {
+			QCModule [] results = new QCModule[modules[f].length+1];
+			System.arraycopy(modules[f], 0, results, 0, modules[f].length);
+			results[modules[f].length] = pairStats;
+			
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisComplete(files[f],results);
+			}
+		}
+
+	}
+	
+	private void updateProgress (int f, int percent, long lastCount, long seqCount) {
+		Iterator<AnalysisListener> i;
+		
+		if (percent >= percentComplete[f]+5) {
+			percentComplete[f] = percent - (percent % 5);
+			
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisUpdated(files[f],seqCount,percentComplete[f]);
+			}
+		}
+		else if (percent < 0 && seqCount / STREAM_UPDATE_INTERVAL != lastCount / STREAM_UPDATE_INTERVAL) {
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisUpdated(files[f],seqCount,-1);
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Analysis;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.BAMFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.ReadCategoryFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFormatException;
+
+/**
+ * Analyses every read category of a BAM file in a single pass.  The file
+ * has to have been opened with BAMFile.ALL_READS, and each read goes
+ * through the set of modules for its category.  Listeners hear about each
+ * category as a ReadCategoryFile, just as if it had been analysed on its
+ * own, but only once we've found a read in it, so categories which the
+ * file doesn't have don't get an empty report.  A file with no reads at
+ * all still gets a report for the first category.
+ */
+public class ReadCategoryAnalysisRunner implements Runnable {
+
+	private SequenceFile file;
+	private ReadCategoryFile [] categories;
+	private QCModule [][] modules;
+	private boolean [] started;
+	private List<AnalysisListener> listeners = new ArrayList<AnalysisListener>();
+	private int [] percentComplete;
+	private volatile boolean finished = false;
+
+	// How often we report progress when we can't give a percentage
+	private static final int STREAM_UPDATE_INTERVAL = 1000000;
+
+	/**
+	 * @param file A BAM file, or group of them, read for all read categories
+	 */
+	public ReadCategoryAnalysisRunner (SequenceFile file) {
+		this.file = file;
+		categories = new ReadCategoryFile[BAMFile.READ_CATEGORIES];
+		for (int c=0;c<categories.length;c++) {
+			categories[c] = new ReadCategoryFile(file, c);
+		}
+		started = new boolean[categories.length];
+		percentComplete = new int[categories.length];
+	}
+
+	public void addAnalysisListener (AnalysisListener l) {
+		if (l != null && !listeners.contains(l)) {
+			listeners.add(l);
+		}
+	}
+
+	public void removeAnalysisListener (AnalysisListener l) {
+		if (l != null && listeners.contains(l)) {
+			listeners.remove(l);
+		}
+	}
+
+	/**
+	 * @param modules A set of modules for each read category, indexed by read number
+	 */
+	public void startAnalysis (QCModule [][] modules) {
+		this.modules = modules;
+		for (int c=0;c<modules.length;c++) {
+			for (int m=0;m<modules[c].length;m++) {
+				modules[c][m].reset();
+			}
+		}
+		AnalysisQueue.getInstance().addToQueue(this);
+	}
+
+	/**
+	 * @return true once every category's analysis has finished or failed
+	 */
+	public boolean isFinished () {
+		return finished;
+	}
+
+	public void run() {
+		try {
+			analyse();
+		}
+		finally {
+			finished = true;
+		}
+	}
+
+	private void analyse () {
+
+		Iterator<AnalysisListener> i;
+
+		BatchReader reader = new BatchReader(file, categories, true);
+		reader.start();
+
+		SequenceBatch [] batches = new SequenceBatch[categories.length];
+		long [] seqCounts = new long[categories.length];
+
+		try {
+			while (true) {
+				// The reader makes a batch for every category each time,
+				// so they all run out together.
+				for (int c=0;c<categories.length;c++) {
+					batches[c] = reader.next(c);
+				}
+				if (batches[0] == null) break;
+
+				for (int c=0;c<categories.length;c++) {
+					if (batches[c].size() > 0) {
+						if (!started[c]) {
+							started[c] = true;
+							i = listeners.iterator();
+							while (i.hasNext()) {
+								i.next().analysisStarted(categories[c]);
+							}
+						}
+
+						for (int m=0;m<modules[c].length;m++) {
+							modules[c][m].processBatch(batches[c]);
+						}
+
+						long lastCount = seqCounts[c];
+						seqCounts[c] += batches[c].size();
+						updateProgress(c, reader.getPercentComplete(), lastCount, seqCounts[c]);
+					}
+					reader.recycle(c, batches[c]);
+				}
+			}
+		}
+		catch (SequenceFormatException e) {
+			reader.stop();
+
+			// If we hadn't found any reads yet we still need to say that
+			// something went wrong, so we blame the first category.
+			boolean anyStarted = false;
+			for (int c=0;c<categories.length;c++) {
+				if (started[c]) anyStarted = true;
+			}
+			for (int c=0;c<categories.length;c++) {
+				if (!started[c] && (anyStarted || c > 0)) continue;
+				i = listeners.iterator();
+				while (i.hasNext()) {
+					i.next().analysisExceptionReceived(categories[c],e);
+				}
+			}
+			return;
+		}
+
+		// A file with no reads in any category still has to say that it
+		// was looked at, so we report it as an empty first category.
+		boolean anyStarted = false;
+		for (int c=0;c<categories.length;c++) {
+			if (started[c]) anyStarted = true;
+		}
+		if (!anyStarted) {
+			started[0] = true;
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisStarted(categories[0]);
+			}
+		}
+
+		for (int c=0;c<categories.length;c++) {
+			if (!started[c]) continue;
+
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisComplete(categories[c],modules[c]);
+			}
+		}
+
+	}
+
+	private void updateProgress (int c, int percent, long lastCount, long seqCount) {
+		Iterator<AnalysisListener> i;
+
+		if (percent >= percentComplete[c]+5) {
+			percentComplete[c] = percent - (percent % 5);
+
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisUpdated(categories[c],seqCount,percentComplete[c]);
+			}
+		}
+		else if (percent < 0 && seqCount / STREAM_UPDATE_INTERVAL != lastCount / STREAM_UPDATE_INTERVAL) {
+			i = listeners.iterator();
+			while (i.hasNext()) {
+				i.next().analysisUpdated(categories[c],seqCount,-1);
+			}
+		}
+	}
+
+}
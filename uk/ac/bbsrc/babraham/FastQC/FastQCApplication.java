@@ -42,19 +42,11 @@ import uk.ac.bbsrc.babraham.FastQC.FileFilters.CasavaFastQFileFilter;
 import uk.ac.bbsrc.babraham.FastQC.FileFilters.FastQFileFilter;
 import uk.ac.bbsrc.babraham.FastQC.FileFilters.MappedBAMFileFilter;
 import uk.ac.bbsrc.babraham.FastQC.FileFilters.SequenceFileFilter;
-import uk.ac.bbsrc.babraham.FastQC.Modules.BasicStats;
-import uk.ac.bbsrc.babraham.FastQC.Modules.KmerContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.OverRepresentedSeqs;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseGCContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.NContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseQualityScores;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerBaseSequenceContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerSequenceGCContent;
-import uk.ac.bbsrc.babraham.FastQC.Modules.PerSequenceQualityScores;
+import uk.ac.bbsrc.babraham.FastQC.Modules.ModuleFactory;
 import uk.ac.bbsrc.babraham.FastQC.Modules.QCModule;
-import uk.ac.bbsrc.babraham.FastQC.Modules.SequenceLengthDistribution;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Results.ResultsPanel;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.BAMFile;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFactory;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFile;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceFormatException;
@@ -197,21 +189,7 @@ public class FastQCApplication extends JFrame {
 			runner.addAnalysisListener(rp);
 			fileTabs.addTab(sequenceFile.name(), rp);
 			
-			OverRepresentedSeqs os = new OverRepresentedSeqs();
-			
-			QCModule [] module_list = new QCModule [] {
-				new BasicStats(),
-				new PerBaseQualityScores(),
-				new PerSequenceQualityScores(),
-				new PerBaseSequenceContent(),
-				new PerBaseGCContent(), 
-				new PerSequenceGCContent(),
-				new NContent(),
-				new SequenceLengthDistribution(),
-				os.duplicationLevelModule(),
-				os,
-				new KmerContent()
-			};
+			QCModule [] module_list = ModuleFactory.getStandardModuleList();
 	
 			runner.startAnalysis(module_list);
 		}
@@ -288,7 +266,11 @@ public class FastQCApplication extends JFrame {
 	}
 
 	public static void main(String[] args) {
-        System.out.println("arguments: " + Arrays.toString(args));
+		// Validation mode prints one line per file, so we mustn't
+		// add anything else to stdout.
+		if (System.getProperty("fastqc.validate") == null || ! System.getProperty("fastqc.validate").equals("true")) {
+			System.out.println("arguments: " + Arrays.toString(args));
+		}
 
 		// See if we just have to print out the version
 		if (System.getProperty("fastqc.show_version") != null && System.getProperty("fastqc.show_version").equals("true")) {
@@ -306,9 +288,11 @@ public class FastQCApplication extends JFrame {
 			if (System.getProperty("fastqc.unzip") == null || ! System.getProperty("fastqc.unzip").equals("false")) {
 				System.setProperty("fastqc.unzip", "true");
 			}
-			if(args.length == 2){
-                int read = Integer.parseInt(args[0]);
-                String[] files = new String[]{args[1]};
+			if(args.length >= 2){
+                // "all" reads a BAM file once for every read category
+                int read = args[0].equals("all") ? BAMFile.ALL_READS : Integer.parseInt(args[0]);
+                // Paired and casava runs need more than one file
+                String[] files = Arrays.copyOfRange(args, 1, args.length);
                 new OfflineRunner(files, read);
             }
 			System.exit(0);
@@ -30,6 +30,19 @@ import java.util.Vector;
  */
 public class BaseGroup {
 
+	// The first group which can be 500 bases wide, counting from 1 like
+	// the groups do.  Positions before it are always counted one at a
+	// time.  From here on we never report groups of fewer than 500 bases,
+	// so modules can add up their counts for each bin as the reads come
+	// in, and only need to keep a few bins however long the reads are.
+	private static final int FIRST_WIDE_GROUP = 2000;
+	
+	// Once the groups are this many times the width of the last change
+	// we make them ten times wider.
+	private static final int TIER_LENGTH = 20;
+	
+	private static final boolean NO_GROUP = System.getProperty("fastqc.nogroup") != null && System.getProperty("fastqc.nogroup").equals("true");
+
 	private int lowerCount;
 	private int upperCount;
 	
@@ -78,6 +91,12 @@ public class BaseGroup {
 				if (startingBase == 1000 && maxLength > 2000) {
 					interval = 500;
 				}
+				
+				// Really long reads keep getting wider groups so that
+				// the plots stay a sensible size.
+				if (interval >= 500 && startingBase == interval*TIER_LENGTH) {
+					interval *= 10;
+				}
 			}
 			
 		}
@@ -87,6 +106,74 @@ public class BaseGroup {
 	}
 	
 	
+	/**
+	 * Finds the bin which counts a position in a read.  Modules which
+	 * keep counts for each position put them in bins, which are just the
+	 * positions themselves for the first 1999 bases and then get wider.
+	 * The wide bins start and end in the same places as the groups, so
+	 * they always fit inside the groups we make, whatever the length of
+	 * the longest read turns out to be.
+	 * 
+	 * @param position The position in the read, starting from 0
+	 * @return The bin to count it in
+	 */
+	public static int binForPosition (int position) {
+		if (position < exactPositions()) return position;
+		
+		// We work from 1 here, as the groups do.  These are longs since
+		// the last tier goes past the largest int.
+		long base = position+1L;
+		long bin = FIRST_WIDE_GROUP-1;
+		long start = FIRST_WIDE_GROUP;
+		long interval = 500;
+		while (base >= interval*TIER_LENGTH) {
+			bin += ((interval*TIER_LENGTH)-start)/interval;
+			start = interval*TIER_LENGTH;
+			interval *= 10;
+		}
+		return (int)(bin+((base-start)/interval));
+	}
+	
+	/**
+	 * @return How many positions at the start of a read have a bin to themselves
+	 */
+	public static int exactPositions () {
+		if (NO_GROUP) return Integer.MAX_VALUE;
+		return FIRST_WIDE_GROUP-1;
+	}
+	
+	/**
+	 * @param bin A bin from binForPosition
+	 * @return The position just after the last one in the bin
+	 */
+	public static int binEnd (int bin) {
+		if (bin < exactPositions()) return bin+1;
+		
+		long firstBin = FIRST_WIDE_GROUP-1;
+		long start = FIRST_WIDE_GROUP;
+		long interval = 500;
+		while (true) {
+			long bins = ((interval*TIER_LENGTH)-start)/interval;
+			if (bin < firstBin+bins) {
+				// The last position of the bin counting from 1, which is
+				// the one after it counting from 0.
+				return (int)Math.min(Integer.MAX_VALUE, start+(((bin-firstBin)+1)*interval)-1);
+			}
+			firstBin += bins;
+			start = interval*TIER_LENGTH;
+			interval *= 10;
+		}
+	}
+	
+	/**
+	 * @param length The length of a read
+	 * @return The number of bins needed to count every position in it
+	 */
+	public static int binsForLength (int length) {
+		if (length == 0) return 0;
+		return binForPosition(length-1)+1;
+	}
+	
 	/**
 	 * 
 	 * @param lowerCount
@@ -106,6 +193,20 @@ public class BaseGroup {
 		return upperCount;
 	}
 	
+	/**
+	 * @return The first bin holding counts for this group
+	 */
+	public int lowerBin () {
+		return binForPosition(lowerCount-1);
+	}
+	
+	/**
+	 * @return The last bin holding counts for this group
+	 */
+	public int upperBin () {
+		return binForPosition(upperCount-1);
+	}
+	
 	public boolean containsValue (int value) {
 		return value>=lowerCount && value<=upperCount;
 	}
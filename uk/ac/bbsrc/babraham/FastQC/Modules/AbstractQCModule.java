@@ -0,0 +1,43 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Modules;
+
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
+
+/**
+ * A base for modules which handles batches by passing each sequence
+ * in turn to processSequence.  Modules which can work faster on the
+ * batch arrays directly can override processBatch.
+ */
+public abstract class AbstractQCModule implements QCModule {
+
+	public void processBatch(SequenceBatch batch) {
+		boolean ignoreFiltered = ignoreFilteredSequences();
+		for (int s=0;s<batch.size();s++) {
+			if (ignoreFiltered && batch.isFiltered(s)) continue;
+			processSequence(batch.sequence(s));
+		}
+	}
+	
+	public boolean canMerge () {
+		return true;
+	}
+
+}
@@ -30,15 +30,17 @@ import javax.swing.table.TableModel;
 
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class BasicStats implements QCModule {
+public class BasicStats extends AbstractQCModule {
 
 	private String name = null;
-	private int actualCount = 0;
-	private int filteredCount = 0;
+	private long actualCount = 0;
+	private long filteredCount = 0;
 	private int minLength = 0;
 	private int maxLength = 0;
+	private long totalBases = 0;
 	private long gCount = 0;
 	private long cCount = 0;
 	private long aCount = 0;
@@ -70,12 +72,36 @@ public class BasicStats implements QCModule {
 	public void reset () {
 		minLength = 0;
 		maxLength = 0;
+		totalBases = 0;
 		gCount = 0;
 		cCount = 0;
 		aCount = 0;
 		tCount = 0;
 		nCount = 0;
 	}
+	
+	public void merge (QCModule module) {
+		BasicStats other = (BasicStats)module;
+		
+		if (name == null) name = other.name;
+		if (fileType == null) fileType = other.fileType;
+		
+		if (other.actualCount > 0) {
+			if (actualCount == 0 || other.minLength < minLength) minLength = other.minLength;
+			if (actualCount == 0 || other.maxLength > maxLength) maxLength = other.maxLength;
+		}
+		
+		actualCount += other.actualCount;
+		filteredCount += other.filteredCount;
+		totalBases += other.totalBases;
+		gCount += other.gCount;
+		cCount += other.cCount;
+		aCount += other.aCount;
+		tCount += other.tCount;
+		nCount += other.nCount;
+		
+		if (other.lowestChar < lowestChar) lowestChar = other.lowestChar;
+	}
 
 	public String name() {
 		return "Basic Statistics";
@@ -102,18 +128,21 @@ public class BasicStats implements QCModule {
 			}
 		}
 		
+		int length = sequence.getSequenceLength();
 		if (actualCount == 1) {
-			minLength = sequence.getSequence().length();
-			maxLength = sequence.getSequence().length();
+			minLength = length;
+			maxLength = length;
 		}
 		else {
-			if (sequence.getSequence().length() < minLength) minLength = sequence.getSequence().length();
-			if (sequence.getSequence().length() > maxLength) maxLength = sequence.getSequence().length();
+			if (length < minLength) minLength = length;
+			if (length > maxLength) maxLength = length;
 		}
+		totalBases += length;
 
-		char [] chars = sequence.getSequence().toCharArray();
-		for (int c=0;c<chars.length;c++) {			
-			switch (chars[c]) {
+		byte [] bases = sequence.getSequenceBytes();
+		int end = sequence.getSequenceOffset()+length;
+		for (int c=sequence.getSequenceOffset();c<end;c++) {			
+			switch (bases[c]) {
 				case 'G': ++gCount;break;
 				case 'A': ++aCount;break;
 				case 'T': ++tCount;break;
@@ -122,12 +151,110 @@ public class BasicStats implements QCModule {
 			}
 		}
 		
-		chars = sequence.getQualityString().toCharArray();
-		for (int c=0;c<chars.length;c++) {
-			if (chars[c] < lowestChar) {
-				lowestChar = chars[c];
+		byte [] quals = sequence.getQualityBytes();
+		end = sequence.getQualityOffset()+sequence.getQualityLength();
+		for (int c=sequence.getQualityOffset();c<end;c++) {
+			if (quals[c] < lowestChar) {
+				lowestChar = (char)quals[c];
+			}
+		}
+	}
+	
+	public void processBatch(SequenceBatch batch) {
+		
+		// This is the only module we run when just validating files, so
+		// it gets a tight loop which counts every base through a table
+		// rather than testing each one.
+		long [] baseCounts = new long[256];
+		byte [] bases = batch.bases();
+		byte [] quals = batch.qualities();
+		int lowest = lowestChar;
+		
+		for (int s=0;s<batch.size();s++) {
+			if (name == null) name = batch.sequence(s).file().name();
+			
+			if (batch.isFiltered(s)) {
+				filteredCount++;
+				continue;
+			}
+			
+			actualCount++;
+			
+			if (fileType == null) {
+				if (batch.sequence(s).getColorspace() != null) {
+					fileType = "Colorspace converted to bases";
+				}
+				else {
+					fileType = "Conventional base calls";
+				}
 			}
+			
+			int length = batch.baseLength(s);
+			if (actualCount == 1) {
+				minLength = length;
+				maxLength = length;
+			}
+			else {
+				if (length < minLength) minLength = length;
+				if (length > maxLength) maxLength = length;
+			}
+			totalBases += length;
+			
+			int end = batch.baseOffset(s)+length;
+			for (int c=batch.baseOffset(s);c<end;c++) {
+				++baseCounts[bases[c] & 0xff];
+			}
+			
+			end = batch.qualityOffset(s)+batch.qualityLength(s);
+			for (int c=batch.qualityOffset(s);c<end;c++) {
+				if (quals[c] < lowest) lowest = quals[c];
+			}
+		}
+		
+		gCount += baseCounts['G'];
+		aCount += baseCounts['A'];
+		tCount += baseCounts['T'];
+		cCount += baseCounts['C'];
+		nCount += baseCounts['N'];
+		lowestChar = (char)lowest;
+	}
+	
+	/**
+	 * Summarises the file on a single line of tab separated name=value
+	 * fields, which is what we print instead of a report when we're only
+	 * validating files.
+	 * 
+	 * @return The summary line, without the file name
+	 */
+	public String summaryLine () {
+		StringBuffer sb = new StringBuffer();
+		sb.append("reads=");
+		sb.append(actualCount);
+		sb.append("\tfiltered=");
+		sb.append(filteredCount);
+		sb.append("\tbases=");
+		sb.append(totalBases);
+		sb.append("\tmin_length=");
+		sb.append(minLength);
+		sb.append("\tmax_length=");
+		sb.append(maxLength);
+		sb.append("\tgc=");
+		if (aCount+tCount+gCount+cCount > 0) {
+			sb.append(Math.round(((gCount+cCount)*100d)/(aCount+tCount+gCount+cCount)));
+		}
+		else {
+			sb.append(0);
+		}
+		sb.append("\tn=");
+		sb.append(nCount);
+		sb.append("\tencoding=");
+		if (actualCount > 0) {
+			sb.append(PhredEncoding.getFastQEncodingOffset(lowestChar).name());
+		}
+		else {
+			sb.append("none");
 		}
+		return sb.toString();
 	}
 	
 	public boolean raisesError() {
@@ -34,7 +34,7 @@ import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 
-public class DuplicationLevel implements QCModule {
+public class DuplicationLevel extends AbstractQCModule {
 
 	private OverRepresentedSeqs overrepresentedModule;
 	private double [] counts = null;
@@ -60,17 +60,17 @@ public class DuplicationLevel implements QCModule {
 		if (counts != null) return;
 		
 		counts = new double[10];
-		int [] tempCounts = new int [10];
+		long [] tempCounts = new long [10];
 		labels = new String [10];
 		maxCount = 0;
 				
-		Iterator<String> it = overrepresentedModule.sequences.keySet().iterator();
+		Iterator<Long> it = overrepresentedModule.sequences.values().iterator();
 				
 		while (it.hasNext()) {
-			int thisCount = overrepresentedModule.sequences.get(it.next());
+			long thisCount = it.next();
 			if (thisCount > 10) thisCount = 10;
 			thisCount -= 1; // Convert count to array index
-			++tempCounts[thisCount];
+			++tempCounts[(int)thisCount];
 		}
 		
 		// To prevent infinite values later we need to ensure we have a count
@@ -194,5 +194,14 @@ public class DuplicationLevel implements QCModule {
 	public void reset() {
 		counts = null;
 	}
+	
+	public boolean canMerge () {
+		// Our data lives in the overrepresented sequences module
+		return false;
+	}
+	
+	public void merge(QCModule module) {
+		throw new UnsupportedOperationException(name()+" has to see the whole file in order");
+	}
 
 }
@@ -24,8 +24,6 @@ import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.Vector;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -42,11 +40,14 @@ import javax.swing.table.TableModel;
 import uk.ac.bbsrc.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.PackedSequence;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 
-public class KmerContent implements QCModule {
+public class KmerContent extends AbstractQCModule {
 
-	private Hashtable<String, Kmer> kmers = new Hashtable<String, Kmer>((int)Math.pow(4, MAX_KMER_SIZE));
+	// Kmers are looked up by their packed code with an extra bit set just
+	// above it, so kmers of different lengths never share a slot.
+	private Kmer [] kmers = new Kmer[1 << ((2*MAX_KMER_SIZE)+1)];
 	private long gCount = 0;
 	private long aCount = 0;
 	private long tCount = 0;
@@ -99,21 +100,22 @@ public class KmerContent implements QCModule {
 	 * seen at each position within the run.  We can use this later on to calculate
 	 * the enrichment of the Kmers we actually count.
 	 * 
-	 * We take in the Kmer sequence even though this isn't used in the total counts
-	 * we do this because we don't want to count Kmers with Ns in them, but we do
+	 * We take in whether the Kmer has an N even though those aren't used in the
+	 * total counts.  We don't want to count Kmers with Ns in them, but we do
 	 * need to ensure that the data structure is expanded to the right size, and if
 	 * we have libraries where later positions are Ns in all sequences then our
 	 * data structure ends up too short and we crash. 
 	 * 
-	 * @param position Position within the read.  0 indexed
+	 * @param bin The BaseGroup bin for the position within the read
 	 * @param kmerLength Actual length of the Kmer analysed
+	 * @param hasN Whether the Kmer contains anything other than GATC
 	 */
-	private void addKmerCount (int position,int kmerLength, String kmer) {
+	private void addKmerCount (int bin,int kmerLength, boolean hasN) {
 	
 		
-		if (position >= totalKmerCounts.length) {
+		if (bin >= totalKmerCounts.length) {
 			// We need to expand the array
-			long [][] newCounts = new long[position+1][];
+			long [][] newCounts = new long[bin+1][];
 			for (int i=0;i<totalKmerCounts.length;i++) {
 				newCounts[i] = totalKmerCounts[i];
 			}
@@ -124,9 +126,9 @@ public class KmerContent implements QCModule {
 			totalKmerCounts = newCounts;
 		}
 		
-		if (kmer.indexOf("N") >=0) return;
+		if (hasN) return;
 
-		++totalKmerCounts[position][kmerLength-1];
+		++totalKmerCounts[bin][kmerLength-1];
 		
 	}
 
@@ -149,10 +151,9 @@ public class KmerContent implements QCModule {
 
 		Vector<Kmer>enrichedKmers = new Vector<Kmer>();
 				
-		Iterator<Kmer> rawKmers = kmers.values().iterator();
-		
-		KMER: while (rawKmers.hasNext()) {
-			Kmer k = rawKmers.next();
+		KMER: for (int index=0;index<kmers.length;index++) {
+			Kmer k = kmers[index];
+			if (k == null) continue;
 			
 			long totalKmerCount = 0;
 
@@ -191,7 +192,7 @@ public class KmerContent implements QCModule {
 				// This is a summation of the number of hit Kmers which fall within
 				// this base group.
 				long totalGroupHits = 0;
-				for (int p=groups[g].lowerCount()-1;p<groups[g].upperCount() && p < positionCounts.length ;p++) {
+				for (int p=groups[g].lowerBin();p<=groups[g].upperBin() && p < positionCounts.length ;p++) {
 					totalGroupCount += totalKmerCounts[p][chars.length-1];
 					totalGroupHits += positionCounts[p];
 				}
@@ -260,45 +261,75 @@ public class KmerContent implements QCModule {
 		++skipCount;
 		if (skipCount % 5 != 0) return;
 		
-		char [] seq = sequence.getSequence().toCharArray();
+		// We work straight from the bases rather than the packed sequence
+		// so long reads don't need a packed copy of the whole read.
+		byte [] bases = sequence.getSequenceBytes();
+		int offset = sequence.getSequenceOffset();
+		int length = sequence.getSequenceLength();
 
-		if (seq.length > longestSequence) {
-			longestSequence = seq.length;
+		if (length > longestSequence) {
+			longestSequence = length;
 		}
 				
-		for (int i=0;i<seq.length;i++) {
-			switch (seq[i]) {
-			case 'G': ++gCount;break;
-			case 'A': ++aCount;break;
-			case 'T': ++tCount;break;
-			case 'C': ++cCount;break;
+		for (int i=0;i<length;i++) {
+			switch (PackedSequence.CODES[bases[offset+i] & 0xff]) {
+			case 0: ++aCount;break;
+			case 1: ++cCount;break;
+			case 2: ++gCount;break;
+			case 3: ++tCount;break;
 			}
 		}
 		
-		// Now we go through all of the Kmers to count these
+		// Now we go through all of the Kmers to count these.  We roll the
+		// packed code for each Kmer along the read one base at a time.
 		for (int kmerSize=MIN_KMER_SIZE;kmerSize<=MAX_KMER_SIZE;kmerSize++) {
-			for (int i=0;i<=seq.length-kmerSize;i++) {
+			int mask = (1 << (2*kmerSize))-1;
+			int code = 0;
+			int lastN = -1;
+			for (int i=0;i<length;i++) {
+				int base = PackedSequence.CODES[bases[offset+i] & 0xff];
+				if (base < 0) {
+					lastN = i;
+					base = 0;
+				}
+				code = ((code << 2) | base) & mask;
 				
-				String kmer = sequence.getSequence().substring(i, i+kmerSize);
+				int start = (i-kmerSize)+1;
+				if (start < 0) continue;
+				int bin = BaseGroup.binForPosition(start);
 				
 				// Add to the counts before skipping Kmers containing Ns (see
 				// explanation in addKmerCount for the reasoning).
-				addKmerCount(i, kmerSize, kmer);
+				boolean hasN = lastN >= start;
+				addKmerCount(bin, kmerSize, hasN);
 				
 				// Skip Kmers containing N
-				if (kmer.indexOf("N") >=0) continue;
+				if (hasN) continue;
 
-				if (kmers.containsKey(kmer)) {
-					kmers.get(kmer).incrementCount(i);
+				int index = (mask+1) | code;
+				if (kmers[index] != null) {
+					kmers[index].incrementCount(bin);
 				}
 				else {
-					kmers.put(kmer, new Kmer(kmer,i,(seq.length-kmerSize)+1));
+					kmers[index] = new Kmer(kmerSequence(code, kmerSize),bin,(length-kmerSize)+1);
 				}
 
 			}
 		}
 	}
 	
+	/**
+	 * Turns a packed Kmer code back into its bases.
+	 */
+	private static String kmerSequence (int code, int kmerSize) {
+		char [] chars = new char[kmerSize];
+		for (int i=kmerSize-1;i>=0;i--) {
+			chars[i] = (char)PackedSequence.BASES[code & 3];
+			code >>>= 2;
+		}
+		return new String(chars);
+	}
+	
 	public void reset () {
 		calculated = false;
 		gCount = 0;
@@ -309,7 +340,17 @@ public class KmerContent implements QCModule {
 		longestSequence = 0;
 		skipCount = 0;
 		enrichedKmers = null;
-		kmers.clear();
+		Arrays.fill(kmers, null);
+	}
+	
+	public boolean canMerge () {
+		// We only count every fifth sequence, and which ones those are
+		// depends on how many came before them.
+		return false;
+	}
+	
+	public void merge (QCModule module) {
+		throw new UnsupportedOperationException(name()+" has to see the whole file in order");
 	}
 
 	public String description() {
@@ -414,29 +455,29 @@ public class KmerContent implements QCModule {
 		private float [] obsExpPositions = null;
 		private long [] positions = new long[0];
 		
-		public Kmer (String sequence, int position, int seqLength) {
+		public Kmer (String sequence, int bin, int seqLength) {
 
 			// Do this slightly convoluted dance to try to avoid
 			// keeping the whole original sequence in memory
 			char [] chars = sequence.toCharArray();
 			this.sequence = new String(chars);
 			count = 1;
-			positions = new long[seqLength];
-			++positions[position];
+			positions = new long[BaseGroup.binsForLength(seqLength)];
+			++positions[bin];
 		}
 		
-		public void incrementCount (int position) {
+		public void incrementCount (int bin) {
 			++count;
 			
-			if (position >= positions.length) {
-				long [] newPositions = new long[position+1];
+			if (bin >= positions.length) {
+				long [] newPositions = new long[bin+1];
 				for (int i=0;i<positions.length;i++) {
 					newPositions[i] = positions[i];
 				}
 				positions = newPositions;
 			}
 			
-			++positions[position];
+			++positions[bin];
 			
 		}
 		
@@ -0,0 +1,60 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Modules;
+
+public class ModuleFactory {
+
+	/**
+	 * Makes a new set of the modules we run on every file.
+	 * 
+	 * @return A fresh set of modules
+	 */
+	public static QCModule [] getStandardModuleList () {
+		
+		OverRepresentedSeqs os = new OverRepresentedSeqs();
+		
+		QCModule [] module_list = new QCModule [] {
+			new BasicStats(),
+			new PerBaseQualityScores(),
+			new PerSequenceQualityScores(),
+			new PerBaseSequenceContent(),
+			new PerBaseGCContent(), 
+			new PerSequenceGCContent(),
+			new NContent(),
+			new SequenceLengthDistribution(),
+			os.duplicationLevelModule(),
+			os,
+			new KmerContent()
+		};
+		
+		return module_list;
+	}
+	
+	/**
+	 * Makes the modules we run when we're only validating files and
+	 * counting what's in them.
+	 * 
+	 * @return A fresh set of modules
+	 */
+	public static QCModule [] getValidationModuleList () {
+		return new QCModule [] {new BasicStats()};
+	}
+	
+}
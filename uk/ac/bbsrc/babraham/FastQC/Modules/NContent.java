@@ -32,11 +32,13 @@ import uk.ac.bbsrc.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 
-public class NContent implements QCModule {
+public class NContent extends AbstractQCModule {
 
 	public long [] nCounts = new long [0];
 	public long [] notNCounts = new long [0];
+	private int longestSequence = 0;
 	public boolean calculated = false;
 	public double [] percentages = null;
 	public String [] xCategories = new String[0];
@@ -53,7 +55,7 @@ public class NContent implements QCModule {
 	
 	private synchronized void getPercentages () {
 		
-		BaseGroup [] groups = BaseGroup.makeBaseGroups(nCounts.length);
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(longestSequence);
 		
 		xCategories = new String[groups.length];
 
@@ -69,10 +71,10 @@ public class NContent implements QCModule {
 			nCount = 0;
 			total = 0;
 			
-			for (int bp=groups[i].lowerCount()-1;bp<groups[i].upperCount();bp++) {		
-				nCount += nCounts[bp];
-				total += nCounts[bp];
-				total += notNCounts[bp];
+			for (int bin=groups[i].lowerBin();bin<=groups[i].upperBin();bin++) {		
+				nCount += nCounts[bin];
+				total += nCounts[bin];
+				total += notNCounts[bin];
 			}
 			
 			percentages[i] = 100*(nCount/(double)total);
@@ -84,12 +86,32 @@ public class NContent implements QCModule {
 		
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
-		if (nCounts.length < seq.length) {
+		ensureLength(sequence.getSequenceLength());
+		countBases(sequence.getSequenceBytes(), sequence.getSequenceOffset(), sequence.getSequenceLength());
+	}
+	
+	public void processBatch(SequenceBatch batch) {
+		calculated = false;
+		
+		// We only need to check the size once for the whole batch
+		ensureLength(batch.maxSequenceLength());
+		
+		byte [] bases = batch.bases();
+		for (int s=0;s<batch.size();s++) {
+			if (batch.isFiltered(s)) continue;
+			countBases(bases, batch.baseOffset(s), batch.baseLength(s));
+		}
+	}
+	
+	private void ensureLength (int length) {
+		if (length > longestSequence) longestSequence = length;
+		
+		int bins = BaseGroup.binsForLength(length);
+		if (nCounts.length < bins) {
 			// We need to expand the size of the data structures
 			
-			long [] nCountsNew = new long [seq.length];
-			long [] notNCountsNew = new long [seq.length];
+			long [] nCountsNew = new long [bins];
+			long [] notNCountsNew = new long [bins];
 
 			for (int i=0;i<nCounts.length;i++) {
 				nCountsNew[i] = nCounts[i];
@@ -99,9 +121,14 @@ public class NContent implements QCModule {
 			nCounts = nCountsNew;
 			notNCounts = notNCountsNew;
 		}
-		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'N') {
+	}
+	
+	private void countBases (byte [] bases, int offset, int length) {
+		// Positions are counted in the bins from BaseGroup, which are
+		// single positions until we get a long way into the read.
+		int exact = Math.min(length, BaseGroup.exactPositions());
+		for (int i=0;i<exact;i++) {
+			if (bases[offset+i] == 'N') {
 				++nCounts[i];
 			}
 			else {
@@ -109,11 +136,49 @@ public class NContent implements QCModule {
 			}
 		}
 		
+		int i = exact;
+		for (int bin=exact;i<length;bin++) {
+			int end = Math.min(length, BaseGroup.binEnd(bin));
+			for (;i<end;i++) {
+				if (bases[offset+i] == 'N') {
+					++nCounts[bin];
+				}
+				else {
+					++notNCounts[bin];
+				}
+			}
+		}
 	}
 	
 	public void reset () {
 		nCounts = new long[0];
 		notNCounts = new long[0];
+		longestSequence = 0;
+	}
+	
+	public void merge (QCModule module) {
+		NContent other = (NContent)module;
+		calculated = false;
+		
+		if (other.longestSequence > longestSequence) longestSequence = other.longestSequence;
+		
+		if (nCounts.length < other.nCounts.length) {
+			long [] nCountsNew = new long [other.nCounts.length];
+			long [] notNCountsNew = new long [other.nCounts.length];
+
+			for (int i=0;i<nCounts.length;i++) {
+				nCountsNew[i] = nCounts[i];
+				notNCountsNew[i] = notNCounts[i];
+			}
+			
+			nCounts = nCountsNew;
+			notNCounts = notNCountsNew;
+		}
+		
+		for (int i=0;i<other.nCounts.length;i++) {
+			nCounts[i] += other.nCounts[i];
+			notNCounts[i] += other.notNCounts[i];
+		}
 	}
 
 	public String description() {
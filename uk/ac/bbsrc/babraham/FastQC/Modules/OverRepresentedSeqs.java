@@ -34,14 +34,17 @@ import javax.swing.table.AbstractTableModel;
 import javax.swing.table.TableModel;
 
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.PackedSequence;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Contaminant.ContaminantHit;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Contaminant.ContaminentFinder;
 
-public class OverRepresentedSeqs implements QCModule {
+public class OverRepresentedSeqs extends AbstractQCModule {
 
-	protected HashMap<String, Integer>sequences = new HashMap<String, Integer>();
-	protected int count = 0;
+	// Sequences are kept packed, which takes a fraction of the memory of
+	// a String and makes them quicker to hash and compare.
+	protected HashMap<PackedSequence, Long>sequences = new HashMap<PackedSequence, Long>();
+	protected long count = 0;
 	private OverrepresentedSeq [] overrepresntedSeqs = null;
 	private boolean calculated = false;
 	private boolean frozen = false;
@@ -55,7 +58,7 @@ public class OverRepresentedSeqs implements QCModule {
 	// This was the total count at the point at which we saw our total
 	// number of unique sequences, so we know what to correct by when
 	// extrapolating to the whole file
-	protected int countAtUniqueLimit = 0;
+	protected long countAtUniqueLimit = 0;
 	
 	
 	public OverRepresentedSeqs () {
@@ -105,14 +108,14 @@ public class OverRepresentedSeqs implements QCModule {
 		// we stomp all over the data
 		duplicationModule.calculateLevels();
 		
-		Iterator<String> s = sequences.keySet().iterator();
+		Iterator<PackedSequence> s = sequences.keySet().iterator();
 		List<OverrepresentedSeq>keepers = new ArrayList<OverrepresentedSeq>();
 		
 		while (s.hasNext()) {
-			String seq = s.next();
+			PackedSequence seq = s.next();
 			double percentage = ((double)sequences.get(seq)/count)*100;
 			if (percentage > 0.1) {
-				OverrepresentedSeq os = new OverrepresentedSeq(seq, sequences.get(seq), percentage);
+				OverrepresentedSeq os = new OverrepresentedSeq(seq.toString(), sequences.get(seq), percentage);
 				keepers.add(os);
 			}
 		}
@@ -128,6 +131,15 @@ public class OverRepresentedSeqs implements QCModule {
 		count = 0;
 		sequences.clear();
 	}
+	
+	public boolean canMerge () {
+		// Which sequences we track depends on which we saw first
+		return false;
+	}
+	
+	public void merge (QCModule module) {
+		throw new UnsupportedOperationException(name()+" has to see the whole file in order");
+	}
 
 	public String name() {
 		return "Overrepresented sequences";
@@ -141,9 +153,12 @@ public class OverRepresentedSeqs implements QCModule {
 		
 		// Since we rely on identity to match sequences we can't trust really long
 		// sequences, so anything over 75bp gets truncated to 50bp.
-		String seq = sequence.getSequence();
-		if (seq.length() > 75) {
-			seq = new String(seq.substring(0, 50));
+		PackedSequence seq;
+		if (sequence.getSequenceLength() > 75) {
+			seq = sequence.getPackedPrefix(50);
+		}
+		else {
+			seq = sequence.getPackedSequence();
 		}
 				
 		if (sequences.containsKey(seq)) {
@@ -151,7 +166,7 @@ public class OverRepresentedSeqs implements QCModule {
 		}
 		else {
 			if (! frozen) {
-				sequences.put(seq, 1);
+				sequences.put(seq, 1L);
 				++uniqueSequenceCount;
 				countAtUniqueLimit = count;
 				if (uniqueSequenceCount == OBSERVATION_CUTOFF) {
@@ -204,7 +219,7 @@ public class OverRepresentedSeqs implements QCModule {
 		public Class<?> getColumnClass (int columnIndex) {
 			switch (columnIndex) {
 			case 0: return String.class;
-			case 1: return Integer.class;
+			case 1: return Long.class;
 			case 2: return Double.class;
 			case 3: return String.class;
 		}
@@ -216,11 +231,11 @@ public class OverRepresentedSeqs implements QCModule {
 	private class OverrepresentedSeq implements Comparable<OverrepresentedSeq>{
 		
 		private String seq;
-		private int count;
+		private long count;
 		private double percentage;
 		private ContaminantHit contaminantHit;
 		
-		public OverrepresentedSeq (String seq, int count, double percentage) {
+		public OverrepresentedSeq (String seq, long count, double percentage) {
 			this.seq = seq;
 			this.count = count;
 			this.percentage = percentage;
@@ -231,7 +246,7 @@ public class OverRepresentedSeqs implements QCModule {
 			return seq;
 		}
 		
-		public int count () {
+		public long count () {
 			return count;
 		}
 		
@@ -249,7 +264,9 @@ public class OverRepresentedSeqs implements QCModule {
 		}
 
 		public int compareTo(OverrepresentedSeq o) {
-			return o.count-count;
+			if (o.count > count) return 1;
+			if (o.count < count) return -1;
+			return 0;
 		}
 	}
 
@@ -0,0 +1,329 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Modules;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableModel;
+
+import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+
+/**
+ * Checks that the reads in a pair of files really do pair up.  Unlike
+ * the other modules this doesn't look at single sequences, but is given
+ * each pair of mates by the runner which is reading both files.  The
+ * same results are added to the report for each file.
+ */
+public class PairedEndStats extends AbstractQCModule {
+
+	private String firstName = null;
+	private String secondName = null;
+	private long pairCount = 0;
+	private long idMismatches = 0;
+	private long mateOrderErrors = 0;
+	private long lengthMismatches = 0;
+	private long lengthDifference = 0;
+	private long [] unpaired = new long[2];
+	private String firstMismatch = null;
+	
+	public String description() {
+		return "Checks that the reads in the two files of a pair match up";
+	}
+	
+	public boolean ignoreFilteredSequences() {
+		return false;
+	}
+
+	public JPanel getResultsPanel() {
+		JPanel returnPanel = new JPanel();
+		returnPanel.setLayout(new BorderLayout());
+		returnPanel.add(new JLabel("Paired end stats",JLabel.CENTER),BorderLayout.NORTH);
+		
+		TableModel model = new ResultsTable();
+		returnPanel.add(new JScrollPane(new JTable(model)),BorderLayout.CENTER);
+		
+		return returnPanel;
+	}
+	
+	public void reset () {
+		firstName = null;
+		secondName = null;
+		pairCount = 0;
+		idMismatches = 0;
+		mateOrderErrors = 0;
+		lengthMismatches = 0;
+		lengthDifference = 0;
+		unpaired = new long[2];
+		firstMismatch = null;
+	}
+	
+	public void merge (QCModule module) {
+		PairedEndStats other = (PairedEndStats)module;
+		
+		if (firstName == null) firstName = other.firstName;
+		if (secondName == null) secondName = other.secondName;
+		if (firstMismatch == null) firstMismatch = other.firstMismatch;
+		
+		pairCount += other.pairCount;
+		idMismatches += other.idMismatches;
+		mateOrderErrors += other.mateOrderErrors;
+		lengthMismatches += other.lengthMismatches;
+		lengthDifference += other.lengthDifference;
+		unpaired[0] += other.unpaired[0];
+		unpaired[1] += other.unpaired[1];
+	}
+
+	public String name() {
+		return "Paired End Statistics";
+	}
+
+	/**
+	 * Pairs are passed in through processPair so there's nothing to do
+	 * with single sequences.
+	 */
+	public void processSequence(Sequence sequence) {}
+	
+	/**
+	 * Compares the two mates of a pair.
+	 * 
+	 * @param first The read from the first file
+	 * @param second The read from the second file
+	 */
+	public void processPair (Sequence first, Sequence second) {
+		if (firstName == null) {
+			firstName = first.file().name();
+			secondName = second.file().name();
+		}
+		
+		++pairCount;
+		
+		// We compare the ids where they are rather than making Strings
+		// of them for every pair.
+		byte [] firstID = first.getIDBytes();
+		int firstOffset = first.getIDOffset();
+		int firstLength = first.getIDLength();
+		byte [] secondID = second.getIDBytes();
+		int secondOffset = second.getIDOffset();
+		int secondLength = second.getIDLength();
+		
+		int firstEnd = mateNameEnd(firstID, firstOffset, firstLength);
+		if (firstEnd != mateNameEnd(secondID, secondOffset, secondLength) || !regionMatches(firstID, firstOffset, secondID, secondOffset, firstEnd)) {
+			++idMismatches;
+			if (firstMismatch == null) {
+				firstMismatch = first.getID()+" / "+second.getID();
+			}
+		}
+		
+		// If the ids say which mate they are then the first read should
+		// be mate 1, which tells us if an interleaved file is out of step.
+		int firstMate = mateNumber(firstID, firstOffset, firstLength);
+		int secondMate = mateNumber(secondID, secondOffset, secondLength);
+		if ((firstMate != 0 && firstMate != 1) || (secondMate != 0 && secondMate != 2)) {
+			++mateOrderErrors;
+		}
+		
+		int difference = first.getSequenceLength()-second.getSequenceLength();
+		if (difference != 0) {
+			++lengthMismatches;
+			lengthDifference += Math.abs(difference);
+		}
+	}
+	
+	/**
+	 * Counts a read which has no mate because the other file has
+	 * already run out.
+	 * 
+	 * @param mate 0 if the read is from the first file, 1 if from the second
+	 */
+	public void processUnpaired (int mate) {
+		++unpaired[mate];
+	}
+	
+	/**
+	 * Finds how much of an id names the pair rather than the read.  That's
+	 * everything up to the first space, less any /1 or /2 on the end.
+	 * 
+	 * @param id The array holding the id line of the read
+	 * @param offset Where the id starts
+	 * @param length The length of the id
+	 * @return The length of the part which should be the same for both mates
+	 */
+	private static int mateNameEnd (byte [] id, int offset, int length) {
+		int end = nameLength(id, offset, length);
+		if (end >= 2 && id[offset+end-2] == '/' && (id[offset+end-1] == '1' || id[offset+end-1] == '2')) {
+			end -= 2;
+		}
+		return end;
+	}
+	
+	/**
+	 * @return The length of the id up to the first space or tab
+	 */
+	private static int nameLength (byte [] id, int offset, int length) {
+		int end = 0;
+		while (end < length && id[offset+end] != ' ' && id[offset+end] != '\t') {
+			++end;
+		}
+		return end;
+	}
+	
+	private static boolean regionMatches (byte [] first, int firstOffset, byte [] second, int secondOffset, int length) {
+		for (int i=0;i<length;i++) {
+			if (first[firstOffset+i] != second[secondOffset+i]) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Finds which mate a read says it is, either from a /1 or /2 on the
+	 * end of the name or from the casava 1.8 " 1:N:0" style comment.
+	 * 
+	 * @param id The array holding the id line of the read
+	 * @param offset Where the id starts
+	 * @param length The length of the id
+	 * @return 1 or 2, or 0 if the id doesn't say
+	 */
+	private static int mateNumber (byte [] id, int offset, int length) {
+		int end = nameLength(id, offset, length);
+		if (end >= 2 && id[offset+end-2] == '/') {
+			if (id[offset+end-1] == '1') return 1;
+			if (id[offset+end-1] == '2') return 2;
+		}
+		if (end+2 < length && id[offset+end+2] == ':') {
+			if (id[offset+end+1] == '1') return 1;
+			if (id[offset+end+1] == '2') return 2;
+		}
+		return 0;
+	}
+	
+	public boolean raisesError() {
+		return idMismatches > 0 || mateOrderErrors > 0 || unpaired[0] > 0 || unpaired[1] > 0;
+	}
+
+	public boolean raisesWarning() {
+		return false;
+	}
+
+	public void makeReport(HTMLReportArchive report) {
+		ResultsTable table = new ResultsTable();
+		
+		StringBuffer b = report.htmlDocument();
+		StringBuffer d = report.dataDocument();
+		
+		b.append("<table>\n");
+		// Do the headers
+		b.append("<tr>\n");
+		d.append("#");
+		for (int c=0;c<table.getColumnCount();c++) {
+			b.append("<th>");
+			b.append(table.getColumnName(c));
+			d.append(table.getColumnName(c));
+			b.append("</th>\n");
+			d.append("\t");
+		}
+		b.append("</tr>\n");
+		d.append("\n");
+		
+		// Do the rows
+		for (int r=0;r<table.getRowCount();r++) {
+			b.append("<tr>\n");
+			for (int c=0;c<table.getColumnCount();c++) {
+				b.append("<td>");
+				b.append(table.getValueAt(r, c));
+				d.append(table.getValueAt(r, c));
+				b.append("</td>\n");
+				d.append("\t");
+			}
+			b.append("</tr>\n");
+			d.append("\n");
+		}
+		
+		b.append("</table>\n");
+	}
+
+	private class ResultsTable extends AbstractTableModel {
+				
+		private String [] rowNames = new String [] {
+				"First file",
+				"Second file",
+				"Total pairs",
+				"Pairs with mismatched IDs",
+				"Pairs with mates in the wrong order",
+				"Unpaired reads in first file",
+				"Unpaired reads in second file",
+				"Pairs with different lengths",
+				"Mean length difference where different",
+				"First mismatched IDs",
+		};		
+		
+		public int getColumnCount() {
+			return 2;
+		}
+	
+		public int getRowCount() {
+			return rowNames.length;
+		}
+	
+		public Object getValueAt(int rowIndex, int columnIndex) {
+			switch (columnIndex) {
+				case 0: return rowNames[rowIndex];
+				case 1:
+					switch (rowIndex) {
+					case 0 : return firstName;
+					case 1 : return secondName;
+					case 2 : return ""+pairCount;
+					case 3 : return ""+idMismatches;
+					case 4 : return ""+mateOrderErrors;
+					case 5 : return ""+unpaired[0];
+					case 6 : return ""+unpaired[1];
+					case 7 : return ""+lengthMismatches;
+					case 8 :
+						if (lengthMismatches > 0) {
+							return ""+(lengthDifference/(double)lengthMismatches);
+						}
+						return "0";
+					case 9 :
+						if (firstMismatch == null) return "None";
+						return firstMismatch;
+					}
+			}
+			return null;
+		}
+		
+		public String getColumnName (int columnIndex) {
+			switch (columnIndex) {
+				case 0: return "Measure";
+				case 1: return "Value";
+			}
+			return null;
+		}
+		
+		public Class<?> getColumnClass (int columnIndex) {
+			return String.class;
+		}
+	}
+
+}
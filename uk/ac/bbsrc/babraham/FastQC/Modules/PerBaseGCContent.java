@@ -32,11 +32,13 @@ import uk.ac.bbsrc.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 
-public class PerBaseGCContent implements QCModule {
+public class PerBaseGCContent extends AbstractQCModule {
 
 	public long [] gcCounts = new long [0];
 	public long [] atCounts = new long [0];
+	private int longestSequence = 0;
 	private double [] percentages = null;
 	private String [] xCategories = new String[0];
 	private boolean calculated = false;
@@ -56,7 +58,7 @@ public class PerBaseGCContent implements QCModule {
 	
 	private synchronized void getPercentages () {
 
-		BaseGroup [] groups = BaseGroup.makeBaseGroups(gcCounts.length);
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(longestSequence);
 		
 		xCategories = new String[groups.length];
 
@@ -78,10 +80,10 @@ public class PerBaseGCContent implements QCModule {
 			gcCount = 0;
 			total = 0;
 			
-			for (int bp=groups[i].lowerCount()-1;bp<groups[i].upperCount();bp++) {		
-				gcCount += gcCounts[bp];
-				total += gcCounts[bp];
-				total += atCounts[bp];
+			for (int bin=groups[i].lowerBin();bin<=groups[i].upperBin();bin++) {		
+				gcCount += gcCounts[bin];
+				total += gcCounts[bin];
+				total += atCounts[bin];
 			}
 			
 			percentages[i] = 100*(gcCount/(double)total);
@@ -104,13 +106,32 @@ public class PerBaseGCContent implements QCModule {
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
-
-		if (gcCounts.length < seq.length) {
+		ensureLength(sequence.getSequenceLength());
+		countBases(sequence.getSequenceBytes(), sequence.getSequenceOffset(), sequence.getSequenceLength());
+	}
+	
+	public void processBatch(SequenceBatch batch) {
+		calculated = false;
+		
+		// We only need to check the size once for the whole batch
+		ensureLength(batch.maxSequenceLength());
+		
+		byte [] bases = batch.bases();
+		for (int s=0;s<batch.size();s++) {
+			if (batch.isFiltered(s)) continue;
+			countBases(bases, batch.baseOffset(s), batch.baseLength(s));
+		}
+	}
+	
+	private void ensureLength (int length) {
+		if (length > longestSequence) longestSequence = length;
+		
+		int bins = BaseGroup.binsForLength(length);
+		if (gcCounts.length < bins) {
 			// We need to expand the size of the data structures
 			
-			long [] gcCountsNew = new long [seq.length];
-			long [] atCountsNew = new long [seq.length];
+			long [] gcCountsNew = new long [bins];
+			long [] atCountsNew = new long [bins];
 
 			for (int i=0;i<gcCounts.length;i++) {
 				gcCountsNew[i] = gcCounts[i];
@@ -120,21 +141,65 @@ public class PerBaseGCContent implements QCModule {
 			gcCounts = gcCountsNew;
 			atCounts = atCountsNew;
 		}
-		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G' || seq[i] == 'C') {
+	}
+	
+	private void countBases (byte [] bases, int offset, int length) {
+		// Positions are counted in the bins from BaseGroup, which are
+		// single positions until we get a long way into the read.
+		int exact = Math.min(length, BaseGroup.exactPositions());
+		for (int i=0;i<exact;i++) {
+			if (bases[offset+i] == 'G' || bases[offset+i] == 'C') {
 				++gcCounts[i];
 			}
-			if (seq[i] == 'A' || seq[i] == 'T' || seq[i] == 'U') {
+			if (bases[offset+i] == 'A' || bases[offset+i] == 'T' || bases[offset+i] == 'U') {
 				++atCounts[i];
 			}
 		}
 		
+		int i = exact;
+		for (int bin=exact;i<length;bin++) {
+			int end = Math.min(length, BaseGroup.binEnd(bin));
+			for (;i<end;i++) {
+				if (bases[offset+i] == 'G' || bases[offset+i] == 'C') {
+					++gcCounts[bin];
+				}
+				if (bases[offset+i] == 'A' || bases[offset+i] == 'T' || bases[offset+i] == 'U') {
+					++atCounts[bin];
+				}
+			}
+		}
+		
 	}
 	
 	public void reset () {
 		gcCounts = new long[0];
 		atCounts = new long[0];
+		longestSequence = 0;
+	}
+	
+	public void merge (QCModule module) {
+		PerBaseGCContent other = (PerBaseGCContent)module;
+		calculated = false;
+		
+		if (other.longestSequence > longestSequence) longestSequence = other.longestSequence;
+		
+		if (gcCounts.length < other.gcCounts.length) {
+			long [] gcCountsNew = new long [other.gcCounts.length];
+			long [] atCountsNew = new long [other.gcCounts.length];
+
+			for (int i=0;i<gcCounts.length;i++) {
+				gcCountsNew[i] = gcCounts[i];
+				atCountsNew[i] = atCounts[i];
+			}
+			
+			gcCounts = gcCountsNew;
+			atCounts = atCountsNew;
+		}
+		
+		for (int i=0;i<other.gcCounts.length;i++) {
+			gcCounts[i] += other.gcCounts[i];
+			atCounts[i] += other.atCounts[i];
+		}
 	}
 
 	public String description() {
@@ -37,9 +37,10 @@ import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class PerBaseQualityScores implements QCModule {
+public class PerBaseQualityScores extends AbstractQCModule {
 
 	public QualityCount [] qualityCounts = new QualityCount[0];
+	private int longestSequence = 0;
 	double [] means = null;
 	double [] medians = null;
 	double [] lowerQuartile = null;
@@ -74,7 +75,7 @@ public class PerBaseQualityScores implements QCModule {
 			high = 35;
 		}
 		
-		BaseGroup [] groups = BaseGroup.makeBaseGroups(qualityCounts.length);
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(longestSequence);
 		
 		means = new double[groups.length];
 		medians = new double[groups.length];
@@ -86,8 +87,8 @@ public class PerBaseQualityScores implements QCModule {
 		
 		for (int i=0;i<groups.length;i++) {
 			xLabels[i] = groups[i].toString();
-			int minBase = groups[i].lowerCount();
-			int maxBase = groups[i].upperCount();
+			int minBase = groups[i].lowerBin();
+			int maxBase = groups[i].upperBin();
 			lowest[i] = getPercentile(minBase, maxBase, encodingScheme.offset(), 10);
 			highest[i] = getPercentile(minBase, maxBase, encodingScheme.offset(), 90);
 			means[i] = getMean(minBase,maxBase,encodingScheme.offset());
@@ -127,10 +128,15 @@ public class PerBaseQualityScores implements QCModule {
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] qual = sequence.getQualityString().toCharArray();
-		if (qualityCounts.length < qual.length) {
+		byte [] qual = sequence.getQualityBytes();
+		int offset = sequence.getQualityOffset();
+		int length = sequence.getQualityLength();
+		if (length > longestSequence) longestSequence = length;
+		
+		int bins = BaseGroup.binsForLength(length);
+		if (qualityCounts.length < bins) {
 			
-			QualityCount [] qualityCountsNew = new QualityCount[qual.length];
+			QualityCount [] qualityCountsNew = new QualityCount[bins];
 			
 			for (int i=0;i<qualityCounts.length;i++) {
 				qualityCountsNew[i] = qualityCounts[i];
@@ -142,14 +148,48 @@ public class PerBaseQualityScores implements QCModule {
 			
 		}
 		
-		for (int i=0;i<qual.length;i++) {
-			qualityCounts[i].addValue(qual[i]);
+		// Past the first couple of thousand bases each bin pools the
+		// qualities of several positions.
+		int exact = Math.min(length, BaseGroup.exactPositions());
+		for (int i=0;i<exact;i++) {
+			qualityCounts[i].addValue((char)qual[offset+i]);
+		}
+		
+		int i = exact;
+		for (int bin=exact;i<length;bin++) {
+			int end = Math.min(length, BaseGroup.binEnd(bin));
+			for (;i<end;i++) {
+				qualityCounts[bin].addValue((char)qual[offset+i]);
+			}
 		}
 		
 	}
 	
 	public void reset () {
 		qualityCounts = new QualityCount[0];
+		longestSequence = 0;
+	}
+	
+	public void merge (QCModule module) {
+		PerBaseQualityScores other = (PerBaseQualityScores)module;
+		calculated = false;
+		
+		if (other.longestSequence > longestSequence) longestSequence = other.longestSequence;
+		
+		if (qualityCounts.length < other.qualityCounts.length) {
+			QualityCount [] qualityCountsNew = new QualityCount[other.qualityCounts.length];
+			for (int i=0;i<qualityCounts.length;i++) {
+				qualityCountsNew[i] = qualityCounts[i];
+			}
+			for (int i=qualityCounts.length;i<qualityCountsNew.length;i++) {
+				qualityCountsNew[i] = new QualityCount();				
+			}
+			qualityCounts = qualityCountsNew;
+		}
+		
+		for (int i=0;i<other.qualityCounts.length;i++) {
+			qualityCounts[i].addCounts(other.qualityCounts[i]);
+		}
 	}
 
 	public String description() {
@@ -228,11 +268,11 @@ public class PerBaseQualityScores implements QCModule {
 		}
 	}
 	
-	private double getPercentile (int minbp, int maxbp, int offset, int percentile) {
+	private double getPercentile (int minBin, int maxBin, int offset, int percentile) {
 		int count = 0;
 		double total = 0;
 	
-		for (int i=minbp-1;i<maxbp;i++) {
+		for (int i=minBin;i<=maxBin;i++) {
 			if (qualityCounts[i].getTotalCount() > 100) {
 				count++;
 				total += qualityCounts[i].getPercentile(offset, percentile);
@@ -246,11 +286,11 @@ public class PerBaseQualityScores implements QCModule {
 		
 	}
 
-	private double getMean (int minbp, int maxbp, int offset) {
+	private double getMean (int minBin, int maxBin, int offset) {
 		int count = 0;
 		double total = 0;
 	
-		for (int i=minbp-1;i<maxbp;i++) {
+		for (int i=minBin;i<=maxBin;i++) {
 			if (qualityCounts[i].getTotalCount() > 0) {
 				count++;
 				total += qualityCounts[i].getMean(offset);
@@ -280,6 +320,20 @@ public class PerBaseQualityScores implements QCModule {
 			}
 		}
 		
+		public void addCounts (QualityCount other) {
+			totalCounts += other.totalCounts;
+			Iterator<Character>c = other.counts.keySet().iterator();
+			while (c.hasNext()) {
+				Character thisChar = c.next();
+				if (counts.containsKey(thisChar)) {
+					counts.put(thisChar, counts.get(thisChar)+other.counts.get(thisChar));
+				}
+				else {
+					counts.put(thisChar, other.counts.get(thisChar));
+				}
+			}
+		}
+		
 		public long getTotalCount () {
 			return totalCounts;
 		}
@@ -32,13 +32,15 @@ import uk.ac.bbsrc.babraham.FastQC.Graphs.BaseGroup;
 import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 
-public class PerBaseSequenceContent implements QCModule {
+public class PerBaseSequenceContent extends AbstractQCModule {
 
 	public long [] gCounts = new long [0];
 	public long [] aCounts = new long [0];
 	public long [] cCounts = new long [0];
 	public long [] tCounts = new long [0];
+	private int longestSequence = 0;
 	private double [][] percentages = null;
 	private String [] xCategories = new String[0];
 	private boolean calculated = false;
@@ -57,7 +59,7 @@ public class PerBaseSequenceContent implements QCModule {
 
 	private synchronized void getPercentages () {
 
-		BaseGroup [] groups = BaseGroup.makeBaseGroups(gCounts.length);
+		BaseGroup [] groups = BaseGroup.makeBaseGroups(longestSequence);
 		
 		xCategories = new String[groups.length];
 
@@ -83,17 +85,17 @@ public class PerBaseSequenceContent implements QCModule {
 			cCount = 0;
 			total = 0;
 			
-			for (int bp=groups[i].lowerCount()-1;bp<groups[i].upperCount();bp++) {
+			for (int bin=groups[i].lowerBin();bin<=groups[i].upperBin();bin++) {
 
-				total += gCounts[bp];
-				total += cCounts[bp];
-				total += aCounts[bp];
-				total += tCounts[bp];
+				total += gCounts[bin];
+				total += cCounts[bin];
+				total += aCounts[bin];
+				total += tCounts[bin];
 
-				aCount += aCounts[bp];
-				tCount += tCounts[bp];
-				cCount += cCounts[bp];
-				gCount += gCounts[bp];				
+				aCount += aCounts[bin];
+				tCount += tCounts[bin];
+				cCount += cCounts[bin];
+				gCount += gCounts[bin];				
 			}
 			
 			gPercent[i] = (gCount/(double)total)*100;
@@ -110,13 +112,33 @@ public class PerBaseSequenceContent implements QCModule {
 	
 	public void processSequence(Sequence sequence) {
 		calculated = false;
-		char [] seq = sequence.getSequence().toCharArray();
-		if (gCounts.length < seq.length) {
+		ensureLength(sequence.getSequenceLength());
+		countBases(sequence.getSequenceBytes(), sequence.getSequenceOffset(), sequence.getSequenceLength());
+	}
+	
+	public void processBatch(SequenceBatch batch) {
+		calculated = false;
+		
+		// We only need to check the size once for the whole batch
+		ensureLength(batch.maxSequenceLength());
+		
+		byte [] bases = batch.bases();
+		for (int s=0;s<batch.size();s++) {
+			if (batch.isFiltered(s)) continue;
+			countBases(bases, batch.baseOffset(s), batch.baseLength(s));
+		}
+	}
+	
+	private void ensureLength (int length) {
+		if (length > longestSequence) longestSequence = length;
+		
+		int bins = BaseGroup.binsForLength(length);
+		if (gCounts.length < bins) {
 			
-			long [] gCountsNew = new long [seq.length];
-			long [] aCountsNew = new long [seq.length];
-			long [] cCountsNew = new long [seq.length];
-			long [] tCountsNew = new long [seq.length];
+			long [] gCountsNew = new long [bins];
+			long [] aCountsNew = new long [bins];
+			long [] cCountsNew = new long [bins];
+			long [] tCountsNew = new long [bins];
 
 			for (int i=0;i<gCounts.length;i++) {
 				gCountsNew[i] = gCounts[i];
@@ -130,22 +152,46 @@ public class PerBaseSequenceContent implements QCModule {
 			tCounts = tCountsNew;
 			cCounts = cCountsNew;
 		}
-		
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G') {
+	}
+	
+	private void countBases (byte [] bases, int offset, int length) {
+		// Positions are counted in the bins from BaseGroup, which are
+		// single positions until we get a long way into the read.
+		int exact = Math.min(length, BaseGroup.exactPositions());
+		for (int i=0;i<exact;i++) {
+			if (bases[offset+i] == 'G') {
 				++gCounts[i];
 			}
-			else if (seq[i] == 'A') {
+			else if (bases[offset+i] == 'A') {
 				++aCounts[i];
 			}
-			else if (seq[i] == 'T') {
+			else if (bases[offset+i] == 'T') {
 				++tCounts[i];
 			}
-			else if (seq[i] == 'C') {
+			else if (bases[offset+i] == 'C') {
 				++cCounts[i];
 			}
 		}
 		
+		int i = exact;
+		for (int bin=exact;i<length;bin++) {
+			int end = Math.min(length, BaseGroup.binEnd(bin));
+			for (;i<end;i++) {
+				if (bases[offset+i] == 'G') {
+					++gCounts[bin];
+				}
+				else if (bases[offset+i] == 'A') {
+					++aCounts[bin];
+				}
+				else if (bases[offset+i] == 'T') {
+					++tCounts[bin];
+				}
+				else if (bases[offset+i] == 'C') {
+					++cCounts[bin];
+				}
+			}
+		}
+		
 	}
 	
 	public void reset () {
@@ -153,6 +199,41 @@ public class PerBaseSequenceContent implements QCModule {
 		aCounts = new long[0];
 		tCounts = new long[0];
 		cCounts = new long[0];
+		longestSequence = 0;
+	}
+	
+	public void merge (QCModule module) {
+		PerBaseSequenceContent other = (PerBaseSequenceContent)module;
+		calculated = false;
+		
+		if (other.longestSequence > longestSequence) longestSequence = other.longestSequence;
+		
+		if (gCounts.length < other.gCounts.length) {
+			
+			long [] gCountsNew = new long [other.gCounts.length];
+			long [] aCountsNew = new long [other.gCounts.length];
+			long [] cCountsNew = new long [other.gCounts.length];
+			long [] tCountsNew = new long [other.gCounts.length];
+
+			for (int i=0;i<gCounts.length;i++) {
+				gCountsNew[i] = gCounts[i];
+				aCountsNew[i] = aCounts[i];
+				tCountsNew[i] = tCounts[i];
+				cCountsNew[i] = cCounts[i];
+			}		
+
+			gCounts = gCountsNew;
+			aCounts = aCountsNew;
+			tCounts = tCountsNew;
+			cCounts = cCountsNew;
+		}
+		
+		for (int i=0;i<other.gCounts.length;i++) {
+			gCounts[i] += other.gCounts[i];
+			aCounts[i] += other.aCounts[i];
+			tCounts[i] += other.tCounts[i];
+			cCounts[i] += other.cCounts[i];
+		}
 	}
 
 	public String description() {
@@ -36,7 +36,7 @@ import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 import uk.ac.bbsrc.babraham.FastQC.Statistics.NormalDistribution;
 
-public class PerSequenceGCContent implements QCModule {
+public class PerSequenceGCContent extends AbstractQCModule {
 
 	private double [] gcDistribution = new double[101];
 	private double [] theoreticalDistribution  = new double[101];
@@ -170,23 +170,25 @@ public class PerSequenceGCContent implements QCModule {
 		// rounding off the sequence once we get above a certain size
 		
 		
-		char [] seq = truncateSequence(sequence);
+		int length = truncatedLength(sequence.getSequenceLength());
 		
-		if (seq.length == 0) return; // Ignore empty sequences
+		if (length == 0) return; // Ignore empty sequences
 		
 		
+		byte [] bases = sequence.getSequenceBytes();
+		int offset = sequence.getSequenceOffset();
 		int thisSeqGCCount = 0;
-		for (int i=0;i<seq.length;i++) {
-			if (seq[i] == 'G' || seq[i] == 'C') {
+		for (int i=offset;i<offset+length;i++) {
+			if (bases[i] == 'G' || bases[i] == 'C') {
 				++thisSeqGCCount;
 			}
 		}
 
-		if (! cachedModels.containsKey(seq.length)) {
-			cachedModels.put(seq.length,new GCModel(seq.length));
+		if (! cachedModels.containsKey(length)) {
+			cachedModels.put(length,new GCModel(length));
 		}
 
-		GCModelValue [] values = cachedModels.get(seq.length).getModelValues(thisSeqGCCount);
+		GCModelValue [] values = cachedModels.get(length).getModelValues(thisSeqGCCount);
 
 		for (int i=0;i<values.length;i++) {
 			gcDistribution[values[i].percentage()] += values[i].increment();
@@ -194,29 +196,34 @@ public class PerSequenceGCContent implements QCModule {
 		
 	}
 	
-	private char [] truncateSequence (Sequence sequence) {
+	private int truncatedLength (int length) {
 		
-		String seq = sequence.getSequence();
-		
-		// TODO: We should return a random chunk of sequence, rather
+		// TODO: We should use a random chunk of sequence, rather
 		// than the start.
 		
-		if (seq.length() > 1000) {
-			int length = (seq.length()/1000)*1000;
-			return seq.substring(0, length).toCharArray();
+		if (length > 1000) {
+			return (length/1000)*1000;
 		}
-		if (seq.length() > 100) {
-			int length = (seq.length()/100)*100;
-			return seq.substring(0, length).toCharArray();
+		if (length > 100) {
+			return (length/100)*100;
 		}
 
-		return seq.toCharArray();		
+		return length;		
 		
 	}
 	
 	public void reset () {
 		gcDistribution = new double[101];
 	}
+	
+	public void merge (QCModule module) {
+		PerSequenceGCContent other = (PerSequenceGCContent)module;
+		calculated = false;
+		
+		for (int i=0;i<gcDistribution.length;i++) {
+			gcDistribution[i] += other.gcDistribution[i];
+		}
+	}
 
 	public String description() {
 		return "Shows the distribution of GC contents for whole sequences";
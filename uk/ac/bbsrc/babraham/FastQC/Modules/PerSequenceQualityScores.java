@@ -24,6 +24,7 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -35,13 +36,13 @@ import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.QualityEncoding.PhredEncoding;
 
-public class PerSequenceQualityScores implements QCModule {
+public class PerSequenceQualityScores extends AbstractQCModule {
 
 	private HashMap<Integer, Long> averageScoreCounts = new HashMap<Integer, Long>();
 	private double [] qualityDistribution = null;
 	private int [] xCategories = new int[0];
 	private char lowestChar = 126;
-	private int maxCount = 0;
+	private double maxCount = 0;
 	private int mostFrequentScore;
 	private boolean calculated = false;
 	
@@ -75,7 +76,7 @@ public class PerSequenceQualityScores implements QCModule {
 		
 		for (int i=0;i<qualityDistribution.length;i++) {
 			if (qualityDistribution[i]>maxCount) {
-				maxCount = (int)qualityDistribution[i];
+				maxCount = qualityDistribution[i];
 				mostFrequentScore = xCategories[i];
 			}
 		}
@@ -84,18 +85,20 @@ public class PerSequenceQualityScores implements QCModule {
 	}
 
 	public void processSequence(Sequence sequence) {
-		char [] seq = sequence.getQualityString().toCharArray();
+		byte [] seq = sequence.getQualityBytes();
+		int offset = sequence.getQualityOffset();
+		int length = sequence.getQualityLength();
 		int averageQuality = 0;
 		
-		for (int i=0;i<seq.length;i++) {
+		for (int i=offset;i<offset+length;i++) {
 			if (seq[i] < lowestChar) {
-				lowestChar = seq[i];
+				lowestChar = (char)seq[i];
 			}
 			averageQuality += seq[i];
 		}
 
-		if (seq.length > 0) {
-			averageQuality /= seq.length;
+		if (length > 0) {
+			averageQuality /= length;
 		
 			if (averageScoreCounts.containsKey(averageQuality)) {
 				long currentCount = averageScoreCounts.get(averageQuality);
@@ -114,6 +117,24 @@ public class PerSequenceQualityScores implements QCModule {
 		maxCount = 0;
 		calculated = false;
 	}
+	
+	public void merge (QCModule module) {
+		PerSequenceQualityScores other = (PerSequenceQualityScores)module;
+		calculated = false;
+		
+		Iterator<Integer> scores = other.averageScoreCounts.keySet().iterator();
+		while (scores.hasNext()) {
+			Integer score = scores.next();
+			if (averageScoreCounts.containsKey(score)) {
+				averageScoreCounts.put(score, averageScoreCounts.get(score)+other.averageScoreCounts.get(score));
+			}
+			else {
+				averageScoreCounts.put(score, other.averageScoreCounts.get(score));
+			}
+		}
+		
+		if (other.lowestChar < lowestChar) lowestChar = other.lowestChar;
+	}
 
 	public String description() {
 		return "Shows the distribution of average quality scores for whole sequences";
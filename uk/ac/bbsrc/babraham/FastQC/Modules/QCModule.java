@@ -25,10 +25,21 @@ import javax.swing.JPanel;
 
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
+import uk.ac.bbsrc.babraham.FastQC.Sequence.SequenceBatch;
 
 public interface QCModule {
 
 	public void processSequence(Sequence sequence);
+	
+	/**
+	 * Processes a whole batch of sequences.  Filtered sequences are
+	 * included, so modules which ignore them must skip them here.
+	 * Modules which extend AbstractQCModule get a version which just
+	 * passes each sequence to processSequence.
+	 * 
+	 * @param batch The sequences to process
+	 */
+	public void processBatch(SequenceBatch batch);
 
 	public JPanel getResultsPanel();
 	
@@ -38,6 +49,24 @@ public interface QCModule {
 	
 	public void reset ();
 	
+	/**
+	 * Adds in the results from another instance of this module which
+	 * has been run over a different part of the same file.
+	 * 
+	 * @param module A module of the same class as this one
+	 */
+	public void merge (QCModule module);
+	
+	/**
+	 * Says whether merge() gives exactly the same results as running one
+	 * instance over the whole file.  Modules which only look at some of
+	 * the sequences, or stop collecting new ones part way through, depend
+	 * on the order they see them in, so they have to see the file whole.
+	 * 
+	 * @return true if the module can be run over parts of a file and merged
+	 */
+	public boolean canMerge ();
+	
 	public boolean raisesError();
 	
 	public boolean raisesWarning();
@@ -32,7 +32,7 @@ import uk.ac.bbsrc.babraham.FastQC.Graphs.LineGraph;
 import uk.ac.bbsrc.babraham.FastQC.Report.HTMLReportArchive;
 import uk.ac.bbsrc.babraham.FastQC.Sequence.Sequence;
 
-public class SequenceLengthDistribution implements QCModule {
+public class SequenceLengthDistribution extends AbstractQCModule {
 
 	private long [] lengthCounts = new long[0];
 	private double [] graphCounts = null;
@@ -111,7 +111,7 @@ public class SequenceLengthDistribution implements QCModule {
 	}
 
 	public void processSequence(Sequence sequence) {
-		int seqLen = sequence.getSequence().length();
+		int seqLen = sequence.getSequenceLength();
 
 		if (seqLen+2 > lengthCounts.length) {
 			long [] newLengthCounts = new long[seqLen+2];
@@ -168,6 +168,23 @@ public class SequenceLengthDistribution implements QCModule {
 	public void reset () {
 		lengthCounts = new long[0];
 	}
+	
+	public void merge (QCModule module) {
+		SequenceLengthDistribution other = (SequenceLengthDistribution)module;
+		calculated = false;
+		
+		if (other.lengthCounts.length > lengthCounts.length) {
+			long [] newLengthCounts = new long[other.lengthCounts.length];
+			for (int i=0;i<lengthCounts.length;i++) {
+				newLengthCounts[i] = lengthCounts[i];
+			}
+			lengthCounts = newLengthCounts;
+		}
+		
+		for (int i=0;i<other.lengthCounts.length;i++) {
+			lengthCounts[i] += other.lengthCounts[i];
+		}
+	}
 
 	public String description() {
 		return "Shows the distribution of sequence length over all sequences";
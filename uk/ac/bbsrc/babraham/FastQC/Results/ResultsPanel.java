@@ -131,8 +131,11 @@ public class ResultsPanel extends JPanel implements ListSelectionListener, Analy
 		
 	}
 
-	public void analysisUpdated(SequenceFile file, int sequencesProcessed, int percentComplete) {
-		if (percentComplete > 99) {
+	public void analysisUpdated(SequenceFile file, long sequencesProcessed, int percentComplete) {
+		if (percentComplete < 0) {
+			progressLabel.setText("Read "+sequencesProcessed+" sequences ("+(file.getBytesRead()/(1024*1024))+"MB)");
+		}
+		else if (percentComplete > 99) {
 			progressLabel.setText("Read "+sequencesProcessed+" sequences");			
 		}
 		else {
@@ -22,74 +22,223 @@ package uk.ac.bbsrc.babraham.FastQC.Sequence;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.util.Iterator;
 
+import net.sf.samtools.SAMException;
 import net.sf.samtools.SAMFileReader;
-import net.sf.samtools.SAMFormatException;
 import net.sf.samtools.SAMRecord;
 
 public class BAMFile implements SequenceFile {
 
+	/**
+	 * The read number which keeps the reads of every category, each of
+	 * which says it came from the ReadCategoryFile for its read number.
+	 */
+	public static final int ALL_READS = -1;
+	
+	/** The number of read categories, which are numbered from 0 */
+	public static final int READ_CATEGORIES = 6;
+	
+	// The flags a record must have to be in each read category
+	private static final int [] READ_FILTERS = new int [] {
+		4,		//unmapped
+		77,		//paired unmapped  unmapped  first
+		141,	//paired unmapped  unmapped  second
+		516,	//unmapped  + non PF
+		589,	//paired unmapped  unmapped  first + non PF
+		653,	//paired unmapped  unmapped  second + non PF
+	};
+
 	private File file;
 	private boolean onlyMapped;
 	private long fileSize = 0;
 	private long recordSize = 0;
-	private int count = 0;
-	private int rawCount = 0;
+	private long count = 0;
+	private long rawCount = 0;
 	
-	// We keep the file stream around just so we can see how far through
-	// the file we've got.  We don't read from this directly, but it's the
-	// only way to access the file pointer.
-	private FileInputStream fis;
+	// We count the raw bytes as they're read so we can see how far
+	// through the file we've got.  This works for pipes too, where
+	// there's no file pointer to ask.
+	private CountingInputStream counter;
 
-	private SAMFileReader br;
+	private boolean binary;
 	private String name;
 	private Sequence nextSequence = null;
-	Iterator<SAMRecord> it;
+	
+	// BAM files are read through our own reader, and SAM text through
+	// the library, so only one of these is used.
+	private BAMRecordReader bamReader = null;
+	private Iterator<SAMRecord> it = null;
 	private final int read;
 	private final int readFilter;
+	private ReadCategoryFile [] categories = null;
+	
+	// Lookup tables giving the upper case of each base, and the upper
+	// case of its complement.
+	private static final byte [] UPPER_CASE = new byte[256];
+	private static final byte [] COMPLEMENT = new byte[256];
+	
+	static {
+		for (int b=0;b<256;b++) {
+			byte upper = (byte)b;
+			if (b >= 'a' && b <= 'z') upper -= 32;
+			UPPER_CASE[b] = upper;
+			switch (upper) {
+			case 'G': COMPLEMENT[b] = 'C';break;
+			case 'A': COMPLEMENT[b] = 'T';break;
+			case 'T': COMPLEMENT[b] = 'A';break;
+			case 'C': COMPLEMENT[b] = 'G';break;
+			default: COMPLEMENT[b] = upper;
+			}
+		}
+	}
+	
+	private static final byte [] MISSING = new byte [] {'*'};
+	
+	private byte [][] bases = new byte[2][256];
+	private byte [][] quals = new byte[2][256];
+	private byte [][] names = new byte[2][64];
+	private int currentBuffer = 0;
+	
+	// The lengths of what's in the current buffers
+	private int sequenceLength;
+	private int qualityLength;
+	private int nameLength;
+	
+	private static final int UNMAPPED = 0x4;
+	private static final int NEGATIVE_STRAND = 0x10;
     
     
 	protected BAMFile (File file, boolean onlyMapped, int read) throws SequenceFormatException, IOException {
+		this(file, new FileInputStream(file), file.length(), onlyMapped, read);
+	}
+	
+	/**
+	 * Reads from a stream, such as stdin or a named pipe, whose length
+	 * we don't know.
+	 * 
+	 * @param file The name to report the data under
+	 * @param in The SAM or BAM data
+	 * @param onlyMapped Whether to skip unmapped reads
+	 * @param read Which reads to use
+	 * @throws SequenceFormatException
+	 * @throws IOException
+	 */
+	protected BAMFile (File file, InputStream in, boolean onlyMapped, int read) throws SequenceFormatException, IOException {
+		this(file, in, -1, onlyMapped, read);
+	}
+	
+	private BAMFile (File file, InputStream in, long fileSize, boolean onlyMapped, int read) throws SequenceFormatException, IOException {
         this.read = read;
-        switch (read){
-            case 0: readFilter = 4; break;    //unmapped
-            case 1: readFilter = 77; break;   //paired unmapped  unmapped  first
-            case 2: readFilter = 141; break; //paired unmapped  unmapped  second
-            case 3: readFilter = 516; break; //unmapped  + non PF
-            case 4: readFilter = 589; break;  //paired unmapped  unmapped  first + non PF
-            case 5: readFilter = 653; break;  //paired unmapped  unmapped  second + non PF
-            default: throw new RuntimeException("wrong read number must be 0-5: "+ read+" "+file.getAbsolutePath());
+        if (read == ALL_READS) {
+            readFilter = -1;
+            categories = new ReadCategoryFile[READ_CATEGORIES];
+            for (int c=0;c<categories.length;c++) {
+                categories[c] = new ReadCategoryFile(this, c);
+            }
+        }
+        else if (read >= 0 && read < READ_FILTERS.length) {
+            readFilter = READ_FILTERS[read];
+        }
+        else {
+            throw new RuntimeException("wrong read number must be 0-5: "+ read+" "+file.getAbsolutePath());
         }
         
 		this.file = file;
-		fileSize = file.length();
+		this.fileSize = fileSize;
 		name = file.getName();
 		this.onlyMapped = onlyMapped;
 
 		SAMFileReader.setDefaultValidationStringency(SAMFileReader.ValidationStringency.SILENT);
 
-		fis = new FileInputStream(file);
-		
-		br = new SAMFileReader(fis);
+		counter = new CountingInputStream(in);
+		PushbackInputStream pushback = new PushbackInputStream(counter, 16);
 		
-		it = br.iterator();
+		// BAM files are BGZF compressed.  SAMFileReader would inflate the
+		// blocks on this thread, so we inflate them on a pool of threads
+		// ahead of where we're reading and decode the records ourselves.
+		// Anything else is taken to be SAM text.
+		binary = Codec.detect(pushback) == Codec.BGZF;
+		if (binary) {
+			InputStream inflated = Codec.BGZF.open(pushback);
+			bamReader = new BAMRecordReader(inflated, name);
+			
+			// Every read category is unmapped reads, so in a sorted file
+			// with an index we may be able to skip all of the mapped reads.
+			if (fileSize >= 0 && !onlyMapped && bamReader.isCoordinateSorted()) {
+				BAMIndex index = BAMIndex.load(file);
+				if (index != null && index.unmappedReadsAreUnplaced() && index.unplacedStart() > 0) {
+					try {
+						jumpTo(index.unplacedStart());
+						inflated.close();
+					}
+					catch (IOException ioe) {
+						// We can still read the whole file from the start
+						System.err.println("Ignoring BAM index "+BAMIndex.indexFile(file)+" which we couldn't use: "+ioe.getMessage());
+					}
+				}
+			}
+		}
+		else {
+			it = new SAMFileReader(pushback).iterator();
+		}
 		readNext();
 	}
 	
+	/**
+	 * Carries on reading from a point part way through the file.  Progress
+	 * is then shown for the part of the file which is left.  If we can't
+	 * get there nothing is changed, so we can carry on from where we were.
+	 * 
+	 * @param virtualOffset Where to start, as a BGZF virtual offset
+	 * @throws IOException
+	 */
+	private void jumpTo (long virtualOffset) throws IOException {
+		long blockStart = virtualOffset >>> 16;
+		int blockOffset = (int)(virtualOffset & 0xffff);
+		if (blockStart >= file.length()) throw new IOException("BAM index points past the end of "+name);
+		
+		FileInputStream fis = new FileInputStream(file);
+		CountingInputStream jumpCounter = new CountingInputStream(fis);
+		InputStream inflated = null;
+		try {
+			fis.getChannel().position(blockStart);
+			inflated = Codec.BGZF.open(jumpCounter);
+			while (blockOffset > 0) {
+				long skipped = inflated.skip(blockOffset);
+				if (skipped <= 0) throw new IOException("BAM index points past the end of "+name);
+				blockOffset -= skipped;
+			}
+		}
+		catch (IOException ioe) {
+			if (inflated != null) {
+				inflated.close();
+			}
+			else {
+				fis.close();
+			}
+			throw ioe;
+		}
+		
+		counter = jumpCounter;
+		fileSize -= blockStart;
+		bamReader.jump(inflated);
+	}
+	
 	public String name () {
 		return name;
 	}
 		
 	public int getPercentComplete() {
-		try {
-			int percent = (int) (((double)fis.getChannel().position()/ fileSize)*100);
-			return percent;
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
-		}
-		return 0;
+		if (fileSize < 0) return -1;
+		int percent = (int) (((double)counter.getCount()/ fileSize)*100);
+		return percent;
+	}
+	
+	public long getBytesRead() {
+		return counter.getCount();
 	}
 
 	public boolean isColorspace () {
@@ -108,91 +257,205 @@ public class BAMFile implements SequenceFile {
 	
 	private void readNext() throws SequenceFormatException {
 		
-		SAMRecord record;
-		
-		while (true) {
-			
-			if (!it.hasNext()) {
-				nextSequence = null;
-				return;
-			}
-		
-			try {
-				record = it.next();
-			}
-			catch (SAMFormatException sfe) {
-				throw new SequenceFormatException(sfe.getMessage());
-			}
-			++rawCount;
+		SAMRecord record = null;
+		int category;
 		
-			// We skip over entries with no mapping if that's what the user asked for
-			if (onlyMapped && record.getReadUnmappedFlag()) {
-				continue;
-			} else if(record.getFlags() != readFilter){
-                continue;
-            }
-			else {
-				break;
+		try {
+			while (true) {
+				
+				// For BAM files we only read the flags to start with, so
+				// records we don't want are skipped without decoding them.
+				int flags;
+				if (bamReader != null) {
+					if (!bamReader.next()) {
+						nextSequence = null;
+						return;
+					}
+					flags = bamReader.flags();
+				}
+				else {
+					if (!it.hasNext()) {
+						nextSequence = null;
+						return;
+					}
+					record = it.next();
+					flags = record.getFlags();
+				}
+				++rawCount;
+				
+				category = category(flags);
+				if (category >= 0) break;
 			}
 		}
+		catch (SAMException se) {
+			throw new SequenceFormatException(se.getMessage());
+		}
+		catch (IOException ioe) {
+			throw new SequenceFormatException(ioe.getMessage());
+		}
 
+		++count;
 
+		// We copy the read into buffers which we reuse rather than going
+		// through Strings.  There are two sets, since the sequence we're
+		// about to return still points into the other one.
+		currentBuffer = 1-currentBuffer;
 
-		++count;
+		try {
+			if (bamReader != null) {
+				copyRecord(bamReader);
+			}
+			else {
+				copyRecord(record);
+			}
+		}
+		catch (IOException ioe) {
+			throw new SequenceFormatException(ioe.getMessage());
+		}
 
 		if (recordSize == 0) {
-			recordSize = (record.getReadLength()*2)+150;
-			if (br.isBinary()) {
+			recordSize = (sequenceLength*2)+150;
+			if (binary) {
 				recordSize /= 4;
 			}
 		}
 
-		String sequence = record.getReadString();
-		String qualities = record.getBaseQualityString();
+		SequenceFile sequenceFile = this;
+		if (categories != null) sequenceFile = categories[category];
+		nextSequence = new Sequence(sequenceFile, names[currentBuffer], 0, nameLength, bases[currentBuffer], 0, sequenceLength, quals[currentBuffer], 0, qualityLength);
 
+	}
+	
+	/**
+	 * Copies a record from a BAM file into the current buffers.
+	 */
+	private void copyRecord (BAMRecordReader reader) throws SequenceFormatException, IOException {
+		
 		// BAM/SAM files always show sequence relative to the top strand of
 		// the mapped reference so if this sequence maps to the reverse strand
 		// we need to reverse complement the sequence and reverse the qualities
 		// to get the original orientation of the read.
-		if (record.getReadNegativeStrandFlag()) {
-			sequence = reverseComplement(sequence);
-			qualities = reverse(qualities);
+		boolean reverse = (reader.flags() & NEGATIVE_STRAND) != 0;
+		
+		nameLength = reader.nameLength();
+		byte [] id = names[currentBuffer] = ensureCapacity(names[currentBuffer], nameLength);
+		reader.copyName(id);
+		
+		// Reads without bases or qualities have them written as *
+		if (reader.readLength() == 0) {
+			setMissing(bases);
+			sequenceLength = 1;
+		}
+		else {
+			sequenceLength = reader.readLength();
+			byte [] sequence = bases[currentBuffer] = ensureCapacity(bases[currentBuffer], sequenceLength);
+			reader.copyBases(sequence, reverse ? COMPLEMENT : UPPER_CASE, reverse);
 		}
+		
+		if (!reader.hasQualities()) {
+			setMissing(quals);
+			qualityLength = 1;
+		}
+		else {
+			qualityLength = reader.readLength();
+			byte [] qualities = quals[currentBuffer] = ensureCapacity(quals[currentBuffer], qualityLength);
+			reader.copyQualities(qualities, reverse);
+		}
+	}
+	
+	/**
+	 * Copies a record from a SAM file into the current buffers.
+	 */
+	private void copyRecord (SAMRecord record) {
+		
+		byte [] readBases = record.getReadBases();
+		byte [] readQualities = record.getBaseQualities();
+		String readName = record.getReadName();
 
-		nextSequence = new Sequence(this, sequence, qualities, record.getReadName());
+		// Reads without bases or qualities have them written as *
+		if (readBases.length == 0) readBases = MISSING;
+		boolean qualitiesMissing = readQualities.length == 0;
+		if (qualitiesMissing) readQualities = MISSING;
 
+		sequenceLength = readBases.length;
+		qualityLength = readQualities.length;
+		nameLength = readName.length();
+		byte [] sequence = bases[currentBuffer] = ensureCapacity(bases[currentBuffer], sequenceLength);
+		byte [] qualities = quals[currentBuffer] = ensureCapacity(quals[currentBuffer], qualityLength);
+		byte [] id = names[currentBuffer] = ensureCapacity(names[currentBuffer], nameLength);
 
-	}
+		// As for BAM records, reads on the reverse strand are turned back
+		// round to the way they were sequenced.
+		int last = readBases.length-1;
+		if (record.getReadNegativeStrandFlag()) {
+			for (int i=0;i<readBases.length;i++) {
+				sequence[last-i] = COMPLEMENT[readBases[i] & 0xff];
+			}
+		}
+		else {
+			for (int i=0;i<readBases.length;i++) {
+				sequence[i] = UPPER_CASE[readBases[i] & 0xff];
+			}
+		}
 
-	
-	private String reverseComplement (String sequence) {
-		
-		char [] letters = reverse(sequence).toUpperCase().toCharArray();
-		char [] rc = new char[letters.length];
-		
-		for (int i=0;i<letters.length;i++) {
-			switch(letters[i]) {
-			case 'G': rc[i] = 'C';break;
-			case 'A': rc[i] = 'T';break;
-			case 'T': rc[i] = 'A';break;
-			case 'C': rc[i] = 'G';break;
-			default: rc[i] = letters[i];
+		// The qualities are stored as phred scores, which we turn back into
+		// the characters of the Sanger encoding.
+		int qualityOffset = qualitiesMissing ? 0 : 33;
+		last = readQualities.length-1;
+		if (record.getReadNegativeStrandFlag()) {
+			for (int i=0;i<readQualities.length;i++) {
+				qualities[last-i] = (byte)(readQualities[i]+qualityOffset);
+			}
+		}
+		else {
+			for (int i=0;i<readQualities.length;i++) {
+				qualities[i] = (byte)(readQualities[i]+qualityOffset);
 			}
 		}
-	
-		return new String(rc);
 
+		for (int i=0;i<nameLength;i++) {
+			id[i] = (byte)readName.charAt(i);
+		}
+	}
+	
+	private void setMissing (byte [][] buffers) {
+		buffers[currentBuffer] = ensureCapacity(buffers[currentBuffer], MISSING.length);
+		System.arraycopy(MISSING, 0, buffers[currentBuffer], 0, MISSING.length);
 	}
 	
-	private String reverse (String sequence) {
-		char [] starting = sequence.toCharArray();
-		char [] reversed = new char[starting.length];
+	/**
+	 * @param flags The flags of a record
+	 * @return The read category of the record, or -1 if we don't want it
+	 */
+	private int category (int flags) {
 		
-		for (int i=0;i<starting.length;i++) {
-			reversed[reversed.length-(1+i)] = starting[i];
+		// We skip over entries with no mapping if that's what the user asked for
+		if (onlyMapped && (flags & UNMAPPED) != 0) {
+			return -1;
 		}
-		
-		return new String(reversed);
+		else if (categories != null) {
+			return readCategory(flags);
+		}
+		else if (flags != readFilter) {
+			return -1;
+		}
+		return read;
+	}
+
+	/**
+	 * @param flags The flags of a record
+	 * @return The read category the record is in, or -1 if it's not in any
+	 */
+	private static int readCategory (int flags) {
+		for (int c=0;c<READ_FILTERS.length;c++) {
+			if (flags == READ_FILTERS[c]) return c;
+		}
+		return -1;
+	}
+	
+	private static byte [] ensureCapacity (byte [] array, int needed) {
+		if (needed <= array.length) return array;
+		return new byte[Math.max(needed, array.length*2)];
 	}
 
 	public File getFile() {
@@ -0,0 +1,165 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * The parts of a BAI index which tell us where the unmapped reads of a
+ * coordinate sorted BAM file are.  Reads which have no position are all
+ * at the end of a sorted file, after the last record the index covers,
+ * so if no reads with a position are unmapped we can jump straight to
+ * that point to find every unmapped read.
+ */
+public class BAMIndex {
+
+	// The bin which samtools and picard use to hold the statistics for
+	// each reference rather than any real chunks.
+	private static final int STATISTICS_BIN = 37450;
+
+	private long unplacedStart = 0;
+	private boolean placedUnmapped = false;
+	private boolean hasStatistics = true;
+
+	private BAMIndex () {}
+
+	/**
+	 * @param file A BAM file
+	 * @return The index next to it, as either file.bam.bai or file.bai, or null if there isn't one
+	 */
+	public static File indexFile (File file) {
+		File indexFile = new File(file.getPath()+".bai");
+		if (indexFile.exists()) return indexFile;
+
+		String path = file.getPath();
+		if (path.toLowerCase().endsWith(".bam")) {
+			indexFile = new File(path.substring(0, path.length()-4)+".bai");
+			if (indexFile.exists()) return indexFile;
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the index for a BAM file, if there is one which is at least
+	 * as new as the file.
+	 *
+	 * @param file The BAM file
+	 * @return The index, or null if there isn't a usable one
+	 */
+	public static BAMIndex load (File file) {
+		File indexFile = indexFile(file);
+		if (indexFile == null) return null;
+		if (indexFile.lastModified() < file.lastModified()) {
+			System.err.println("Ignoring BAM index "+indexFile+" which is older than "+file.getName());
+			return null;
+		}
+
+		BAMIndex index = new BAMIndex();
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			try {
+				byte [] magic = new byte[4];
+				in.readFully(magic);
+				if (magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'I' || magic[3] != 1) {
+					throw new IOException("Not a BAI file");
+				}
+
+				int references = readInt(in);
+				for (int r=0;r<references;r++) {
+					index.readReference(in);
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ioe) {
+			// A damaged index is no worse than not having one
+			System.err.println("Ignoring unreadable BAM index "+indexFile+": "+ioe.getMessage());
+			return null;
+		}
+
+		return index;
+	}
+
+	private void readReference (DataInputStream in) throws IOException {
+		int bins = readInt(in);
+		boolean foundStatistics = false;
+
+		for (int b=0;b<bins;b++) {
+			int bin = readInt(in);
+			int chunks = readInt(in);
+
+			if (bin == STATISTICS_BIN && chunks == 2) {
+				// The first chunk is where the reference's reads are and
+				// the second is the number of mapped and unmapped reads.
+				foundStatistics = true;
+				readLong(in);
+				unplacedStart = Math.max(unplacedStart, readLong(in));
+				readLong(in);
+				if (readLong(in) > 0) placedUnmapped = true;
+				continue;
+			}
+
+			for (int c=0;c<chunks;c++) {
+				readLong(in);
+				unplacedStart = Math.max(unplacedStart, readLong(in));
+			}
+		}
+
+		if (bins > 0 && !foundStatistics) hasStatistics = false;
+
+		// We don't need the linear index
+		int intervals = readInt(in);
+		in.readFully(new byte[intervals*8]);
+	}
+
+	private static int readInt (DataInputStream in) throws IOException {
+		return Integer.reverseBytes(in.readInt());
+	}
+
+	private static long readLong (DataInputStream in) throws IOException {
+		return Long.reverseBytes(in.readLong());
+	}
+
+	/**
+	 * Says whether we can find every unmapped read by starting from
+	 * unplacedStart().  That's only the case if the index says how many
+	 * unmapped reads each reference has, and none of them have any.
+	 *
+	 * @return true if all of the unmapped reads are at the end
+	 */
+	public boolean unmappedReadsAreUnplaced () {
+		return hasStatistics && !placedUnmapped;
+	}
+
+	/**
+	 * @return The virtual offset just after the last read with a position
+	 */
+	public long unplacedStart () {
+		return unplacedStart;
+	}
+
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Goes through the records of a BAM file whose BGZF blocks have already
+ * been inflated, as a BGZFInputStream does on a pool of threads.
+ *
+ * Each call to next() only reads the fixed size part of a record, which
+ * has the flags and lengths in it.  Records we don't want can then be
+ * skipped without looking at the rest of them, and for the ones we do
+ * want the name, bases and qualities are copied straight out of the raw
+ * record, so we never build a SAMRecord.
+ */
+public class BAMRecordReader {
+
+	private static final byte [] BAM_MAGIC = new byte [] {'B','A','M',1};
+
+	// The part of each record after the block size which is always there
+	private static final int FIXED_SIZE = 32;
+
+	// What each 4 bit code in the packed bases stands for
+	private static final byte [] BASE_CODES = "=ACMGRSVTWYHKDBN".getBytes();
+
+	private DataInputStream in;
+	private String source;
+	private boolean coordinateSorted = false;
+
+	private byte [] fixed = new byte[FIXED_SIZE];
+	private byte [] record = new byte[1024];
+
+	// Where we are in the current record
+	private int remaining = 0;
+	private boolean recordRead = false;
+	private int flags;
+	private int nameLength;
+	private int cigarLength;
+	private int readLength;
+
+	/**
+	 * @param is The inflated BAM data, starting with the magic number
+	 * @param source The name to give in any errors
+	 * @throws SequenceFormatException If this isn't BAM data
+	 * @throws IOException
+	 */
+	public BAMRecordReader (InputStream is, String source) throws SequenceFormatException, IOException {
+		in = new DataInputStream(is);
+		this.source = source;
+		readHeader();
+	}
+
+	/**
+	 * Reads the header.  There's the SAM header text and then a list of
+	 * the references, which we don't need.
+	 */
+	private void readHeader () throws SequenceFormatException, IOException {
+		try {
+			byte [] magic = new byte[BAM_MAGIC.length];
+			in.readFully(magic);
+			for (int i=0;i<magic.length;i++) {
+				if (magic[i] != BAM_MAGIC[i]) {
+					throw new SequenceFormatException(source+" is BGZF compressed but isn't a BAM file");
+				}
+			}
+
+			// All we want from the text is the sort order
+			byte [] text = new byte[readInt()];
+			in.readFully(text);
+			String firstLine = new String(text, "ISO-8859-1").split("\n", 2)[0];
+			coordinateSorted = firstLine.startsWith("@HD") && firstLine.contains("\tSO:coordinate");
+
+			int referenceCount = readInt();
+			for (int r=0;r<referenceCount;r++) {
+				// The name then the length of the reference
+				skipFully(readInt()+4);
+			}
+		}
+		catch (EOFException eof) {
+			throw new SequenceFormatException(source+" ended in the BAM header");
+		}
+	}
+
+	/**
+	 * @return true if the header says the file is sorted by position
+	 */
+	public boolean isCoordinateSorted () {
+		return coordinateSorted;
+	}
+
+	/**
+	 * Carries on reading records from a different stream.  This is how we
+	 * jump part way through a file, so the stream must start at the
+	 * beginning of a record.
+	 *
+	 * @param is The inflated BAM data to read from now
+	 */
+	public void jump (InputStream is) {
+		in = new DataInputStream(is);
+		remaining = 0;
+		recordRead = false;
+	}
+
+	private int readInt () throws IOException {
+		in.readFully(fixed, 0, 4);
+		return getInt(fixed, 0);
+	}
+
+	private static int getInt (byte [] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset+1] & 0xff) << 8) | ((data[offset+2] & 0xff) << 16) | ((data[offset+3] & 0xff) << 24);
+	}
+
+	/**
+	 * Moves on to the next record, skipping whatever's left of the current
+	 * one, and reads its fixed size part.
+	 *
+	 * @return false if there are no more records
+	 * @throws SequenceFormatException
+	 * @throws IOException
+	 */
+	public boolean next () throws SequenceFormatException, IOException {
+		skipRemaining();
+
+		// The data can only end cleanly between records
+		int first = in.read();
+		if (first < 0) return false;
+
+		try {
+			fixed[0] = (byte)first;
+			in.readFully(fixed, 1, 3);
+			int blockSize = getInt(fixed, 0);
+			in.readFully(fixed, 0, FIXED_SIZE);
+
+			int binMappingName = getInt(fixed, 8);
+			int flagCigar = getInt(fixed, 12);
+			nameLength = binMappingName & 0xff;
+			flags = flagCigar >>> 16;
+			cigarLength = flagCigar & 0xffff;
+			readLength = getInt(fixed, 16);
+
+			// The sizes are worked out as longs since a corrupt read
+			// length could make them overflow an int.
+			long needed = nameLength+(cigarLength*4L)+((readLength+1L)/2)+readLength;
+			if (blockSize < FIXED_SIZE || readLength < 0 || blockSize-(long)FIXED_SIZE < needed) {
+				throw new SequenceFormatException("Corrupt BAM record in "+source);
+			}
+			remaining = blockSize-FIXED_SIZE;
+		}
+		catch (EOFException eof) {
+			throw new SequenceFormatException(source+" ended part way through a BAM record");
+		}
+
+		recordRead = false;
+		return true;
+	}
+
+	private void skipRemaining () throws SequenceFormatException, IOException {
+		try {
+			skipFully(remaining);
+		}
+		catch (EOFException eof) {
+			throw new SequenceFormatException(source+" ended part way through a BAM record");
+		}
+		remaining = 0;
+	}
+
+	private void skipFully (int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped <= 0) throw new EOFException();
+			length -= skipped;
+		}
+	}
+
+	/**
+	 * Reads the rest of the current record so its name, bases and
+	 * qualities can be copied out.
+	 */
+	private void readRecord () throws SequenceFormatException, IOException {
+		if (recordRead) return;
+		if (record.length < remaining) {
+			record = new byte[Math.max(remaining, record.length*2)];
+		}
+		try {
+			in.readFully(record, 0, remaining);
+		}
+		catch (EOFException eof) {
+			throw new SequenceFormatException(source+" ended part way through a BAM record");
+		}
+		remaining = 0;
+		recordRead = true;
+	}
+
+	/**
+	 * @return The flags of the current record
+	 */
+	public int flags () {
+		return flags;
+	}
+
+	/**
+	 * @return The number of bases in the current record
+	 */
+	public int readLength () {
+		return readLength;
+	}
+
+	/**
+	 * @return The length of the read name, not counting its terminating null
+	 */
+	public int nameLength () {
+		return Math.max(0, nameLength-1);
+	}
+
+	/**
+	 * @return true if the current record has qualities for its bases
+	 */
+	public boolean hasQualities () throws SequenceFormatException, IOException {
+		readRecord();
+		return readLength > 0 && record[qualityStart()] != (byte)0xff;
+	}
+
+	/**
+	 * Copies the read name into an array, which must be at least
+	 * nameLength() long.
+	 */
+	public void copyName (byte [] name) throws SequenceFormatException, IOException {
+		readRecord();
+		System.arraycopy(record, 0, name, 0, nameLength());
+	}
+
+	/**
+	 * Copies the bases into an array, which must be at least readLength()
+	 * long, passing each through a lookup table on the way.
+	 *
+	 * @param bases Where to put the bases
+	 * @param table What to turn each base into
+	 * @param reverse Whether to put the bases in backwards
+	 */
+	public void copyBases (byte [] bases, byte [] table, boolean reverse) throws SequenceFormatException, IOException {
+		readRecord();
+		int start = nameLength+(cigarLength*4);
+		int last = readLength-1;
+		for (int i=0;i<readLength;i++) {
+			int packed = record[start+(i/2)];
+			int code = (i % 2 == 0) ? (packed >> 4) & 0xf : packed & 0xf;
+			bases[reverse ? last-i : i] = table[BASE_CODES[code]];
+		}
+	}
+
+	/**
+	 * Copies the qualities into an array, which must be at least
+	 * readLength() long, turning the phred scores into Sanger encoded
+	 * characters.
+	 *
+	 * @param qualities Where to put the qualities
+	 * @param reverse Whether to put the qualities in backwards
+	 */
+	public void copyQualities (byte [] qualities, boolean reverse) throws SequenceFormatException, IOException {
+		readRecord();
+		int start = qualityStart();
+		int last = readLength-1;
+		for (int i=0;i<readLength;i++) {
+			qualities[reverse ? last-i : i] = (byte)(record[start+i]+33);
+		}
+	}
+
+	private int qualityStart () {
+		return nameLength+(cigarLength*4)+((readLength+1)/2);
+	}
+
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses BGZF files, as written by bgzip and used inside BAM
+ * files.  These are a series of small gzip members which each say how
+ * big they are, so we can find them without decompressing anything and
+ * inflate lots of them at once on a pool of threads.  The decompressed
+ * blocks are handed back in the order they appear in the file.
+ */
+public class BGZFInputStream extends InputStream {
+
+	// The fixed part of a gzip header, up to and including XLEN
+	private static final int HEADER_SIZE = 12;
+
+	// How many blocks we'll have queued up for each thread.  Blocks are
+	// at most 64kb so this doesn't take up much memory.
+	private static final int BLOCKS_PER_THREAD = 16;
+
+	private InputStream is;
+	private ExecutorService pool;
+	private int maxPending;
+	private LinkedList<Future<byte []>> pending = new LinkedList<Future<byte []>>();
+	private boolean endOfFile = false;
+
+	private byte [] header = new byte[HEADER_SIZE];
+
+	private byte [] currentBlock = null;
+	private int currentPosition = 0;
+
+	/**
+	 * @param is The raw compressed data
+	 * @param threads How many blocks to inflate at once
+	 */
+	public BGZFInputStream (InputStream is, int threads) {
+		this.is = is;
+		maxPending = threads*BLOCKS_PER_THREAD;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Says whether a file starts with a BGZF block.  We just look at the
+	 * first header, which must have an extra field whose first subfield
+	 * is the BC block size.
+	 *
+	 * @param file The file to check
+	 * @return true if this is a BGZF file
+	 * @throws IOException
+	 */
+	public static boolean isBGZF (File file) throws IOException {
+		byte [] start = new byte[16];
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			if (!readFully(fis, start, 0, start.length)) return false;
+		}
+		finally {
+			fis.close();
+		}
+
+		return (start[0] & 0xff) == 0x1f &&
+			   (start[1] & 0xff) == 0x8b &&
+			   start[2] == 8 &&
+			   (start[3] & 4) != 0 &&
+			   start[12] == 'B' &&
+			   start[13] == 'C' &&
+			   start[14] == 2 &&
+			   start[15] == 0;
+	}
+
+	/**
+	 * Reads the next compressed block and sets it inflating.
+	 *
+	 * @return false if there are no more blocks
+	 * @throws IOException
+	 */
+	private boolean queueNextBlock () throws IOException {
+
+		if (!readFully(is, header, 0, HEADER_SIZE)) {
+			return false;
+		}
+
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8 || (header[3] & 4) == 0) {
+			throw new IOException("Didn't find a BGZF block header");
+		}
+
+		int extraLength = readShort(header, 10);
+		byte [] extra = new byte[extraLength];
+		if (!readFully(is, extra, 0, extraLength)) {
+			throw new IOException("BGZF file ended in a block header");
+		}
+
+		// Find the BC subfield which tells us the size of the block
+		int blockSize = -1;
+		for (int i=0;i+4<=extraLength;) {
+			int fieldLength = readShort(extra, i+2);
+			if (extra[i] == 'B' && extra[i+1] == 'C' && fieldLength == 2) {
+				blockSize = readShort(extra, i+4)+1;
+				break;
+			}
+			i += 4+fieldLength;
+		}
+		if (blockSize < 0) {
+			throw new IOException("BGZF block didn't have a block size");
+		}
+
+		// The rest of the block is the compressed data followed by the
+		// CRC and the uncompressed size.
+		final byte [] data = new byte[blockSize-(HEADER_SIZE+extraLength)];
+		if (data.length < 8 || !readFully(is, data, 0, data.length)) {
+			throw new IOException("BGZF file ended part way through a block");
+		}
+
+		pending.add(pool.submit(new Callable<byte []>() {
+			public byte [] call() throws IOException {
+				return inflateBlock(data);
+			}
+		}));
+
+		return true;
+	}
+
+	private static byte [] inflateBlock (byte [] data) throws IOException {
+		int crc = readInt(data, data.length-8);
+		int size = readInt(data, data.length-4);
+
+		byte [] inflated = new byte[size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, 0, data.length-8);
+			int done = 0;
+			while (done < size) {
+				int read = inflater.inflate(inflated, done, size-done);
+				if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IOException("BGZF block was shorter than it said");
+				}
+				done += read;
+			}
+		}
+		catch (DataFormatException dfe) {
+			throw new IOException("Corrupt BGZF block: "+dfe.getMessage());
+		}
+		finally {
+			inflater.end();
+		}
+
+		CRC32 check = new CRC32();
+		check.update(inflated, 0, size);
+		if ((int)check.getValue() != crc) {
+			throw new IOException("BGZF block failed its CRC check");
+		}
+
+		return inflated;
+	}
+
+	/**
+	 * Moves on to the next block of data if we've used up the current one.
+	 *
+	 * @return false if there's no more data
+	 * @throws IOException
+	 */
+	private boolean nextBlock () throws IOException {
+		while (currentBlock == null || currentPosition >= currentBlock.length) {
+
+			while (!endOfFile && pending.size() < maxPending) {
+				if (!queueNextBlock()) {
+					endOfFile = true;
+				}
+			}
+
+			if (pending.isEmpty()) return false;
+
+			try {
+				currentBlock = pending.removeFirst().get();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted whilst inflating BGZF block");
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException(e.getCause().getMessage());
+			}
+			currentPosition = 0;
+		}
+		return true;
+	}
+
+	public int read () throws IOException {
+		if (!nextBlock()) return -1;
+		return currentBlock[currentPosition++] & 0xff;
+	}
+
+	public int read (byte [] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!nextBlock()) return -1;
+
+		int read = Math.min(length, currentBlock.length-currentPosition);
+		System.arraycopy(currentBlock, currentPosition, buffer, offset, read);
+		currentPosition += read;
+		return read;
+	}
+
+	public void close () throws IOException {
+		pool.shutdownNow();
+		pending.clear();
+		is.close();
+	}
+
+	private static boolean readFully (InputStream is, byte [] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int read = is.read(buffer, offset, length);
+			if (read < 0) return false;
+			offset += read;
+			length -= read;
+		}
+		return true;
+	}
+
+	private static int readShort (byte [] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset+1] & 0xff) << 8);
+	}
+
+	private static int readInt (byte [] data, int offset) {
+		return (data[offset] & 0xff) | ((data[offset+1] & 0xff) << 8) | ((data[offset+2] & 0xff) << 16) | ((data[offset+3] & 0xff) << 24);
+	}
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+import org.itadaki.bzip2.BZip2InputStream;
+
+/**
+ * The ways a sequence file can be compressed.  We work out which one a
+ * file uses from the first few bytes of the file rather than from its
+ * name, so a gzipped file without a .gz extension, or a plain file which
+ * has been given one, is still read properly.
+ */
+public abstract class Codec {
+
+	// How much of the start of a file we look at to decide
+	private static final int HEADER_SIZE = 16;
+
+	public static final Codec BGZF = new Codec("bgzf") {
+		protected boolean matches (byte [] header, int length) {
+			// A gzip header with an extra field whose first subfield
+			// is the BC block size.
+			return GZIP.matches(header, length) && length >= 16 &&
+				   (header[3] & 4) != 0 &&
+				   header[12] == 'B' &&
+				   header[13] == 'C' &&
+				   header[14] == 2 &&
+				   header[15] == 0;
+		}
+
+		public InputStream open (InputStream is) {
+			return new BGZFInputStream(new BufferedInputStream(is, 1024*1024), FastQFile.decompressionThreads());
+		}
+	};
+
+	public static final Codec GZIP = new Codec("gzip") {
+		protected boolean matches (byte [] header, int length) {
+			return length >= 3 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8;
+		}
+
+		public InputStream open (File file, FileInputStream fis) throws IOException {
+			int threads = FastQFile.decompressionThreads();
+
+			if (threads > 1 && System.getProperty("fastqc.gzip_index") != null && System.getProperty("fastqc.gzip_index").equals("true")) {
+				// We've been asked to use an index, making one if there
+				// isn't one already.  It's only any use with more than one
+				// thread to decompress the chunks it splits the file into.
+				GzipIndex index = GzipIndex.load(file);
+				if (index == null) {
+					index = new GzipIndex(file);
+				}
+				return new ParallelGzipInputStream(fis, threads, index);
+			}
+
+			if (threads >= ParallelGzipInputStream.MIN_THREADS && file.length() >= ParallelGzipInputStream.CHUNK_SIZE*4) {
+				// Ordinary gzip files can still be split up, as long as
+				// they're big enough to be worth it.  If we made an index
+				// on an earlier run then we can use that to do it.
+				return new ParallelGzipInputStream(fis, threads, GzipIndex.load(file));
+			}
+
+			return open(fis);
+		}
+
+		public InputStream open (InputStream is) throws IOException {
+			return new ReadAheadInputStream(new GzipInputStream(is));
+		}
+	};
+
+	public static final Codec BZIP2 = new Codec("bzip2") {
+		protected boolean matches (byte [] header, int length) {
+			return length >= 4 && header[0] == 'B' && header[1] == 'Z' && header[2] == 'h' && header[3] >= '1' && header[3] <= '9';
+		}
+
+		public InputStream open (InputStream is) throws IOException {
+			if (FastQFile.decompressionThreads() > 1) {
+				// Each bzip2 block can be decoded on its own thread
+				return new ParallelBZip2InputStream(new BufferedInputStream(is, 1024*1024), FastQFile.decompressionThreads());
+			}
+			return new ReadAheadInputStream(new BZip2InputStream(is, false));
+		}
+	};
+
+	public static final Codec PLAIN = new Codec("plain") {
+		protected boolean matches (byte [] header, int length) {
+			return true;
+		}
+
+		public InputStream open (InputStream is) {
+			return is;
+		}
+	};
+
+	// The codecs we try, in order.  BGZF files are also gzip files so
+	// that has to be checked first, and anything we don't recognise is
+	// taken to be uncompressed.
+	private static final Codec [] REGISTRY = new Codec [] {BGZF, GZIP, BZIP2, PLAIN};
+
+	private String name;
+
+	private Codec (String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Works out how a file is compressed from the first few bytes.
+	 *
+	 * @param file The file to check
+	 * @return The codec to read it with
+	 * @throws IOException
+	 */
+	public static Codec detect (File file) throws IOException {
+		byte [] header = new byte[HEADER_SIZE];
+		int length;
+
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			length = readHeader(fis, header);
+		}
+		finally {
+			fis.close();
+		}
+
+		return detect(header, length);
+	}
+
+	/**
+	 * Works out how a stream is compressed from the first few bytes.
+	 * The bytes we look at are pushed back so they can still be read.
+	 *
+	 * @param is The stream to check, which must allow at least 16 bytes to be pushed back
+	 * @return The codec to read it with
+	 * @throws IOException
+	 */
+	public static Codec detect (PushbackInputStream is) throws IOException {
+		byte [] header = new byte[HEADER_SIZE];
+		int length = readHeader(is, header);
+		is.unread(header, 0, length);
+		return detect(header, length);
+	}
+
+	private static int readHeader (InputStream is, byte [] header) throws IOException {
+		int length = 0;
+		while (length < header.length) {
+			int read = is.read(header, length, header.length-length);
+			if (read < 0) break;
+			length += read;
+		}
+		return length;
+	}
+
+	private static Codec detect (byte [] header, int length) {
+		for (int c=0;c<REGISTRY.length;c++) {
+			if (REGISTRY[c].matches(header, length)) {
+				return REGISTRY[c];
+			}
+		}
+		return PLAIN;
+	}
+
+	/**
+	 * @return A short name for the codec
+	 */
+	public String name () {
+		return name;
+	}
+
+	/**
+	 * @return true unless the data is just plain text
+	 */
+	public boolean isCompressed () {
+		return this != PLAIN;
+	}
+
+	/**
+	 * @param header The first bytes of the file
+	 * @param length How many bytes of the header are valid
+	 * @return true if the file uses this codec
+	 */
+	protected abstract boolean matches (byte [] header, int length);
+
+	/**
+	 * Opens a stream which gives the uncompressed data from a file.
+	 * Codecs which can do better when they can read any part of the
+	 * file override this.
+	 *
+	 * @param file The file being read
+	 * @param fis An open stream at the start of the file
+	 * @return The uncompressed data
+	 * @throws IOException
+	 */
+	public InputStream open (File file, FileInputStream fis) throws IOException {
+		return open(fis);
+	}
+
+	/**
+	 * Opens a stream which gives the uncompressed data from a stream
+	 * which can only be read once from start to finish.
+	 *
+	 * @param is The compressed data
+	 * @return The uncompressed data
+	 * @throws IOException
+	 */
+	public abstract InputStream open (InputStream is) throws IOException;
+
+	public String toString () {
+		return name;
+	}
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps track of how many bytes have been read from a stream.  We use
+ * this for pipes, where there's no file position we can ask for.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	private long count = 0;
+
+	public CountingInputStream (InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return How many bytes have been read so far
+	 */
+	public long getCount () {
+		return count;
+	}
+
+	public int read () throws IOException {
+		int b = in.read();
+		if (b >= 0) count++;
+		return b;
+	}
+
+	public int read (byte [] buffer, int offset, int length) throws IOException {
+		int read = in.read(buffer, offset, length);
+		if (read > 0) count += read;
+		return read;
+	}
+
+	public long skip (long n) throws IOException {
+		long skipped = in.skip(n);
+		count += skipped;
+		return skipped;
+	}
+
+	public boolean markSupported () {
+		return false;
+	}
+
+}
@@ -0,0 +1,639 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A deflate decoder which can start at any block boundary in a file,
+ * even if it doesn't know the 32kb of data which came before it.
+ *
+ * The output is kept as chars.  Values below 256 are real bytes, and
+ * values from 256 up stand for a byte in the window before the place
+ * we started, which we couldn't see.  Once that window is known the
+ * output can be turned into real bytes with resolve().
+ *
+ * This works because the only thing a deflate block needs from earlier
+ * blocks is the data its back references point at, so we can decode
+ * everything else and just copy the placeholders around.
+ */
+public class DeflateDecoder {
+
+	public static final int WINDOW_SIZE = 32768;
+
+	// Placeholders start here.  Placeholder WINDOW_START+i stands for
+	// byte i of the window before where we started.
+	private static final int WINDOW_START = 256;
+
+	private static final int [] LENGTH_BASE = {3,4,5,6,7,8,9,10,11,13,15,17,19,23,27,31,35,43,51,59,67,83,99,115,131,163,195,227,258};
+	private static final int [] LENGTH_EXTRA = {0,0,0,0,0,0,0,0,1,1,1,1,2,2,2,2,3,3,3,3,4,4,4,4,5,5,5,5,0};
+	private static final int [] DISTANCE_BASE = {1,2,3,4,5,7,9,13,17,25,33,49,65,97,129,193,257,385,513,769,1025,1537,2049,3073,4097,6145,8193,12289,16385,24577};
+	private static final int [] DISTANCE_EXTRA = {0,0,0,0,1,1,2,2,3,3,4,4,5,5,6,6,7,7,8,8,9,9,10,10,11,11,12,12,13,13};
+	private static final int [] CODE_LENGTH_ORDER = {16,17,18,0,8,7,9,6,10,5,11,4,12,3,13,2,14,1,15};
+
+	private BitReader in;
+
+	private char [] out = new char[4*1024*1024];
+	private int outLength = 0;
+	private int outStart = 0;
+
+	// If we're checking for text then any other byte makes the data invalid.
+	// We use this to tell real block starts from random bits.
+	private boolean textOnly = false;
+
+	private boolean finalBlock = false;
+
+	private Huffman lengthCodes = new Huffman(286);
+	private Huffman distanceCodes = new Huffman(30);
+	private Huffman codeLengthCodes = new Huffman(19);
+	private Huffman fixedLengthCodes = new Huffman(288);
+	private Huffman fixedDistanceCodes = new Huffman(30);
+	private int [] lengths = new int[286+30];
+
+	public DeflateDecoder (FileChannel channel) throws IOException {
+		in = new BitReader(channel);
+
+		int [] fixed = new int[288];
+		Arrays.fill(fixed, 0, 144, 8);
+		Arrays.fill(fixed, 144, 256, 9);
+		Arrays.fill(fixed, 256, 280, 7);
+		Arrays.fill(fixed, 280, 288, 8);
+		fixedLengthCodes.build(fixed, 0, 288);
+		Arrays.fill(fixed, 0, 30, 5);
+		fixedDistanceCodes.build(fixed, 0, 30);
+	}
+
+	/**
+	 * Decodes whole blocks, starting at a block boundary, until we pass
+	 * the end position or reach the last block in the stream.
+	 *
+	 * @param startBit The bit in the file where a block starts
+	 * @param endBit We stop at the first block boundary at or after this
+	 * @param window The data before the start, or null if we don't know it
+	 * @param windowLength How much of the window is valid data
+	 * @throws DataFormatException If the data isn't valid deflate data
+	 * @throws IOException
+	 */
+	public void decode (long startBit, long endBit, byte [] window, int windowLength) throws DataFormatException, IOException {
+
+		startOutput(window, windowLength);
+		in.seek(startBit);
+
+		while (in.position() < endBit) {
+			if (decodeBlock()) break;
+		}
+
+		if (in.position() > in.length()*8) {
+			throw new DataFormatException("Compressed data ended part way through a block");
+		}
+	}
+
+	/**
+	 * Finds the first place at or after the given bit which looks like
+	 * the start of a block.  We only look for dynamic blocks which aren't
+	 * the last block, and which decode to plain text, along with the
+	 * block after them.  Random data almost never gets through that.
+	 *
+	 * @param fromBit Where to start looking
+	 * @param toBit Where to stop looking
+	 * @return The bit where a block starts, or -1 if we didn't find one
+	 * @throws IOException
+	 */
+	public long findBlockStart (long fromBit, long toBit) throws IOException {
+		textOnly = true;
+		try {
+			for (long bit=fromBit;bit<toBit;bit++) {
+
+				// Most places fail on the first few bits, so we check those
+				// straight from the bytes before doing anything else.  We
+				// want a dynamic block which isn't the last one, with no more
+				// than the maximum number of codes.
+				long b = bit >>> 3;
+				int header = (in.byteAt(b) | (in.byteAt(b+1) << 8) | (in.byteAt(b+2) << 16)) >>> (bit & 7);
+				if ((header & 7) != 4 || ((header >>> 3) & 31) > 29 || ((header >>> 8) & 31) > 29) continue;
+
+				// The code length code has to be complete, which we can
+				// check just by adding up the lengths.
+				in.seek(bit+13);
+				int codeLengthCount = in.bits(4)+4;
+				int total = 0;
+				for (int i=0;i<codeLengthCount;i++) {
+					int length = in.bits(3);
+					if (length > 0) total += 128 >>> length;
+				}
+				if (total != 128) continue;
+
+				in.seek(bit);
+
+				// What we copy around doesn't matter here, so we don't
+				// bother filling in the window.
+				outLength = WINDOW_SIZE;
+				outStart = WINDOW_SIZE;
+				try {
+					if (decodeBlock()) continue;
+					decodeBlock();
+				}
+				catch (DataFormatException dfe) {
+					continue;
+				}
+
+				if (in.position() <= in.length()*8) return bit;
+			}
+		}
+		finally {
+			textOnly = false;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return Where in the file we stopped
+	 */
+	public long endBit () {
+		return in.position();
+	}
+
+	/**
+	 * @return Whether we stopped because we reached the last block
+	 */
+	public boolean reachedFinalBlock () {
+		return finalBlock;
+	}
+
+	/**
+	 * @return How many bytes we decoded
+	 */
+	public int outputLength () {
+		return outLength-outStart;
+	}
+
+	/**
+	 * Turns what we decoded into real bytes.
+	 *
+	 * @param window The 32kb before where we started.  Only needed if we
+	 * didn't know it when we started decoding.
+	 * @param windowLength How much of the window is valid data.  The valid
+	 * data is at the end of the array.
+	 * @return The decoded data
+	 * @throws DataFormatException If we refer to data which isn't there
+	 */
+	public byte [] resolve (byte [] window, int windowLength) throws DataFormatException {
+		byte [] data = new byte[outLength-outStart];
+		int firstValid = WINDOW_START+WINDOW_SIZE-windowLength;
+		for (int i=0;i<data.length;i++) {
+			char c = out[outStart+i];
+			if (c >= WINDOW_START) {
+				if (c < firstValid) {
+					throw new DataFormatException("Back reference before the start of the data");
+				}
+				data[i] = window[c-WINDOW_START];
+			}
+			else {
+				data[i] = (byte)c;
+			}
+		}
+		return data;
+	}
+
+	private void startOutput (byte [] window, int windowLength) {
+		finalBlock = false;
+		if (window == null) {
+			for (int i=0;i<WINDOW_SIZE;i++) {
+				out[i] = (char)(WINDOW_START+i);
+			}
+			outLength = WINDOW_SIZE;
+		}
+		else {
+			for (int i=0;i<windowLength;i++) {
+				out[i] = (char)(window[WINDOW_SIZE-windowLength+i] & 0xff);
+			}
+			outLength = windowLength;
+		}
+		outStart = outLength;
+	}
+
+	private void ensureOutput (int extra) {
+		if (outLength+extra > out.length) {
+			out = Arrays.copyOf(out, Math.max(out.length*2, outLength+extra));
+		}
+	}
+
+	/**
+	 * Decodes one block.
+	 *
+	 * @return true if this was the last block in the stream
+	 * @throws DataFormatException
+	 * @throws IOException
+	 */
+	private boolean decodeBlock () throws DataFormatException, IOException {
+		boolean last = in.bits(1) == 1;
+		int type = in.bits(2);
+
+		switch (type) {
+			case 0:
+				storedBlock();
+				break;
+			case 1:
+				codes(fixedLengthCodes, fixedDistanceCodes);
+				break;
+			case 2:
+				dynamicTables();
+				codes(lengthCodes, distanceCodes);
+				break;
+			default:
+				throw new DataFormatException("Invalid block type");
+		}
+
+		if (in.position() > in.length()*8) {
+			throw new DataFormatException("Compressed data ended part way through a block");
+		}
+
+		finalBlock = last;
+		return last;
+	}
+
+	private void storedBlock () throws DataFormatException, IOException {
+		in.alignToByte();
+		int length = in.bits(16);
+		int check = in.bits(16);
+		if (length != (~check & 0xffff)) {
+			throw new DataFormatException("Stored block length didn't match its complement");
+		}
+		ensureOutput(length);
+		for (int i=0;i<length;i++) {
+			int b = in.bits(8);
+			if (textOnly && !isText(b)) {
+				throw new DataFormatException("Not text");
+			}
+			out[outLength++] = (char)b;
+		}
+	}
+
+	private void dynamicTables () throws DataFormatException, IOException {
+		int lengthCount = in.bits(5)+257;
+		int distanceCount = in.bits(5)+1;
+		int codeLengthCount = in.bits(4)+4;
+		if (lengthCount > 286 || distanceCount > 30) {
+			throw new DataFormatException("Too many codes");
+		}
+
+		Arrays.fill(lengths, 0, 19, 0);
+		for (int i=0;i<codeLengthCount;i++) {
+			lengths[CODE_LENGTH_ORDER[i]] = in.bits(3);
+		}
+		if (codeLengthCodes.build(lengths, 0, 19) != 0) {
+			throw new DataFormatException("Incomplete code length codes");
+		}
+
+		int index = 0;
+		while (index < lengthCount+distanceCount) {
+			int symbol = codeLengthCodes.decode(in);
+			if (symbol < 0) {
+				throw new DataFormatException("Invalid code length code");
+			}
+			if (symbol < 16) {
+				lengths[index++] = symbol;
+				continue;
+			}
+
+			int value = 0;
+			int repeat;
+			if (symbol == 16) {
+				if (index == 0) {
+					throw new DataFormatException("Repeat with no previous length");
+				}
+				value = lengths[index-1];
+				repeat = 3+in.bits(2);
+			}
+			else if (symbol == 17) {
+				repeat = 3+in.bits(3);
+			}
+			else {
+				repeat = 11+in.bits(7);
+			}
+			if (index+repeat > lengthCount+distanceCount) {
+				throw new DataFormatException("Too many code lengths");
+			}
+			while (repeat-- > 0) {
+				lengths[index++] = value;
+			}
+		}
+
+		if (lengths[256] == 0) {
+			throw new DataFormatException("No end of block code");
+		}
+
+		// Incomplete codes are only allowed if they have a single code
+		int left = lengthCodes.build(lengths, 0, lengthCount);
+		if (left < 0 || (left > 0 && lengthCount-lengthCodes.count[0] != 1)) {
+			throw new DataFormatException("Invalid literal/length code");
+		}
+		left = distanceCodes.build(lengths, lengthCount, distanceCount);
+		if (left < 0 || (left > 0 && distanceCount-distanceCodes.count[0] != 1)) {
+			throw new DataFormatException("Invalid distance code");
+		}
+	}
+
+	private void codes (Huffman lengthCodes, Huffman distanceCodes) throws DataFormatException, IOException {
+		BitReader in = this.in;
+		long endOfData = in.length()*8;
+
+		while (true) {
+			// Past the end of the file we only read zeros, which can go on
+			// decoding to symbols for ever, so we have to check as we go.
+			if (in.position() > endOfData) {
+				throw new DataFormatException("Compressed data ended part way through a block");
+			}
+
+			int symbol = lengthCodes.decode(in);
+
+			if (symbol < 256) {
+				if (symbol < 0) {
+					throw new DataFormatException("Invalid literal/length code");
+				}
+				if (textOnly && !isText(symbol)) {
+					throw new DataFormatException("Not text");
+				}
+				if (outLength == out.length) ensureOutput(1);
+				out[outLength++] = (char)symbol;
+				continue;
+			}
+
+			if (symbol == 256) return;
+
+			symbol -= 257;
+			if (symbol >= 29) {
+				throw new DataFormatException("Invalid length code");
+			}
+			int length = LENGTH_BASE[symbol]+in.bits(LENGTH_EXTRA[symbol]);
+
+			symbol = distanceCodes.decode(in);
+			if (symbol < 0 || symbol >= 30) {
+				throw new DataFormatException("Invalid distance code");
+			}
+			int distance = DISTANCE_BASE[symbol]+in.bits(DISTANCE_EXTRA[symbol]);
+			if (distance > outLength) {
+				throw new DataFormatException("Distance too far back");
+			}
+
+			ensureOutput(length);
+			char [] out = this.out;
+			int from = outLength-distance;
+			int to = outLength;
+
+			// The copy can overlap what it's writing, in which case we
+			// have to go a char at a time.
+			if (distance >= length) {
+				System.arraycopy(out, from, out, to, length);
+			}
+			else {
+				for (int i=0;i<length;i++) {
+					out[to+i] = out[from+i];
+				}
+			}
+			outLength += length;
+		}
+	}
+
+	private static boolean isText (int b) {
+		return (b >= 32 && b < 127) || b == '\n' || b == '\r' || b == '\t';
+	}
+
+	/**
+	 * A canonical Huffman code.  Codes up to FAST_BITS long are looked up
+	 * in a table, and longer ones are decoded a bit at a time.
+	 */
+	private static class Huffman {
+
+		private static final int FAST_BITS = 9;
+		private static final int MAX_BITS = 15;
+
+		private int [] count = new int[MAX_BITS+1];
+		private int [] symbols;
+		private int [] offsets = new int[MAX_BITS+2];
+
+		// Each entry is the code length in the top half and the symbol in
+		// the bottom half, or 0 if the code is longer than FAST_BITS.
+		private int [] fast = new int[1<<FAST_BITS];
+
+		public Huffman (int maxSymbols) {
+			symbols = new int[maxSymbols];
+		}
+
+		/**
+		 * @return 0 for a complete code, a positive number for an incomplete
+		 * code and a negative number for an over-subscribed code.
+		 */
+		public int build (int [] lengths, int offset, int n) {
+			Arrays.fill(count, 0);
+			for (int s=0;s<n;s++) {
+				count[lengths[offset+s]]++;
+			}
+			if (count[0] == n) {
+				Arrays.fill(fast, 0);
+				return 0;
+			}
+
+			int left = 1;
+			for (int len=1;len<=MAX_BITS;len++) {
+				left <<= 1;
+				left -= count[len];
+				if (left < 0) return left;
+			}
+
+			Arrays.fill(fast, 0);
+
+			offsets[1] = 0;
+			for (int len=1;len<MAX_BITS;len++) {
+				offsets[len+1] = offsets[len]+count[len];
+			}
+			for (int s=0;s<n;s++) {
+				if (lengths[offset+s] != 0) {
+					symbols[offsets[lengths[offset+s]]++] = s;
+				}
+			}
+
+			// The canonical codes are handed out in symbol order within each
+			// length.  We store them bit reversed since that's the order
+			// they come out of the stream.
+			int code = 0;
+			int index = 0;
+			for (int len=1;len<=FAST_BITS;len++) {
+				for (int i=0;i<count[len];i++) {
+					int reversed = Integer.reverse(code) >>> (32-len);
+					int entry = (len << 16) | symbols[index++];
+					for (int r=reversed;r<fast.length;r+=1<<len) {
+						fast[r] = entry;
+					}
+					code++;
+				}
+				code <<= 1;
+			}
+
+			return left;
+		}
+
+		/**
+		 * @return The next symbol, or -1 if the bits aren't a valid code
+		 */
+		public int decode (BitReader in) throws IOException {
+			in.need(MAX_BITS);
+			int entry = fast[in.peek(FAST_BITS)];
+			if (entry != 0) {
+				in.drop(entry >>> 16);
+				return entry & 0xffff;
+			}
+
+			// We go through the code a bit at a time, as in zlib's puff.
+			int code = 0;
+			int first = 0;
+			int index = 0;
+			for (int len=1;len<=MAX_BITS;len++) {
+				code |= in.bits(1);
+				int c = count[len];
+				if (code - c < first) {
+					return symbols[index+(code-first)];
+				}
+				index += c;
+				first += c;
+				first <<= 1;
+				code <<= 1;
+			}
+			return -1;
+		}
+
+	}
+
+	/**
+	 * Reads a file a bit at a time, least significant bit first, from any
+	 * bit position.  We use positional reads so that lots of readers can
+	 * share a channel.  Reading past the end of the file gives zeros, so
+	 * callers need to check the position against the length.
+	 */
+	private static class BitReader {
+
+		private FileChannel channel;
+		private long length;
+
+		private byte [] buffer = new byte[1024*1024];
+		private long bufferStart = 0;
+		private int bufferLength = 0;
+
+		private long bits = 0;
+		private int bitCount = 0;
+		private long nextByte = 0;
+
+		public BitReader (FileChannel channel) throws IOException {
+			this.channel = channel;
+			length = channel.size();
+		}
+
+		public long length () {
+			return length;
+		}
+
+		public long position () {
+			return (nextByte << 3) - bitCount;
+		}
+
+		public void seek (long bit) throws IOException {
+			nextByte = bit >>> 3;
+			bits = 0;
+			bitCount = 0;
+			int skip = (int)(bit & 7);
+			if (skip > 0) {
+				need(skip);
+				drop(skip);
+			}
+		}
+
+		public void alignToByte () {
+			drop(bitCount & 7);
+		}
+
+		public void need (int n) throws IOException {
+			if (bitCount >= n) return;
+
+			// We top up as far as we can so we're not back here for
+			// every code.
+			while (bitCount <= 56) {
+				long offset = nextByte-bufferStart;
+				if (offset < 0 || offset >= bufferLength) {
+					if (nextByte >= length) {
+						// Past the end of the file
+						nextByte++;
+						bitCount += 8;
+						continue;
+					}
+					fill(nextByte);
+					offset = 0;
+				}
+				bits |= (long)(buffer[(int)offset] & 0xff) << bitCount;
+				bitCount += 8;
+				nextByte++;
+			}
+		}
+
+		public int peek (int n) {
+			return (int)(bits & ((1L << n)-1));
+		}
+
+		public void drop (int n) {
+			bits >>>= n;
+			bitCount -= n;
+		}
+
+		public int bits (int n) throws IOException {
+			need(n);
+			int value = (int)(bits & ((1L << n)-1));
+			bits >>>= n;
+			bitCount -= n;
+			return value;
+		}
+
+		/**
+		 * @return The byte at the given position, or 0 past the end of the file
+		 */
+		public int byteAt (long position) throws IOException {
+			long offset = position-bufferStart;
+			if (offset < 0 || offset >= bufferLength) {
+				if (position >= length) return 0;
+				fill(position);
+				offset = 0;
+			}
+			return buffer[(int)offset] & 0xff;
+		}
+
+		private void fill (long position) throws IOException {
+			bufferStart = position;
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			while (bb.hasRemaining()) {
+				int read = channel.read(bb, position+bb.position());
+				if (read < 0) break;
+			}
+			bufferLength = bb.position();
+		}
+	}
+
+}
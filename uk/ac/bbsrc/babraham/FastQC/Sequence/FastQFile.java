@@ -19,58 +19,170 @@
  */
 package uk.ac.bbsrc.babraham.FastQC.Sequence;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-
-import org.itadaki.bzip2.BZip2InputStream;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 public class FastQFile implements SequenceFile {
 
+	// We parse records directly out of this many bytes of the file at a
+	// time.  The buffer will grow if we find a record which won't fit.
+	private static final int BUFFER_SIZE = 4*1024*1024;
+	
+	// Constants for finding newlines in 8 bytes at once
+	private static final long NEWLINES = 0x0a0a0a0a0a0a0a0aL;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+	private static final long CASE_BITS = 0x2020202020202020L;
+	
+	// Lookup table for decoding colorspace.  The bases are numbered as in
+	// PackedSequence, which makes the colour between two bases the
+	// exclusive or of their numbers.
+	private static final byte [] COLOURS = new byte[256];
+	private static final byte UNKNOWN_COLOUR = 4;
+	private static final byte INVALID_COLOUR = -1;
+	
+	static {
+		Arrays.fill(COLOURS, INVALID_COLOUR);
+		for (int c=0;c<4;c++) {
+			COLOURS['0'+c] = (byte)c;
+		}
+		COLOURS['.'] = UNKNOWN_COLOUR;
+		COLOURS['4'] = UNKNOWN_COLOUR;
+		COLOURS['5'] = UNKNOWN_COLOUR;
+		COLOURS['6'] = UNKNOWN_COLOUR;
+	}
+
 	private Sequence nextSequence = null;
 	private File file;
 	private long fileSize = 0;
-	private int count = 0;
+	private long count = 0;
 	
 	private boolean casavaMode = false;
 	
-	// We actually read our final data from this buffered reader
-	private BufferedReader br;
+	// When we're only validating files we're stricter about what we
+	// accept, so that damaged files fail rather than being read as far
+	// as we can go.
+	private boolean validateMode = false;
+	
+	// We actually read our final data from this stream, which will be
+	// decompressing the file if it needs to.
+	private InputStream is;
 	
 	// We keep the file stream around just so we can see how far through
 	// the file we've got.  We don't read from this directly, but it's the
 	// only way to access the file pointer.
 	private FileInputStream fis;
 	
+	// When we're reading from a pipe there's no file to ask, so we
+	// count the raw bytes ourselves.
+	private CountingInputStream counter = null;
+	
+	// The raw bytes we're parsing.  We keep track of where the record
+	// we're currently parsing starts, and where the valid data ends.
+	private byte [] buffer = new byte[BUFFER_SIZE];
+	private ByteBuffer wordBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+	private int recordStart = 0;
+	private int bufferEnd = 0;
+	private boolean endOfFile = false;
+	
+	// How far through the stream the start of the buffer is, and how far
+	// through the raw file we were the last time we filled the buffer.
+	private long bufferOffset = 0;
+	private long filePosition = 0;
+	
+	// We stop at the first record which starts this far into the data
+	private long dataLimit = Long.MAX_VALUE;
+	
+	// The sequences we hand out point into our buffer, so we don't parse
+	// the next record until we're asked if there is one.  That way the
+	// caller can finish with the last sequence before we overwrite it.
+	private boolean nextParsed = false;
+	private SequenceFormatException nextException = null;
+	
 	private String name;
 	private boolean isColorspace = false;
+	
+	// Colorspace reads are decoded into this, which we reuse for every
+	// read in the same way as the main buffer.
+	private byte [] colorspaceBases = new byte[256];
 
 	protected FastQFile(File file) throws SequenceFormatException, IOException {
+		this(file, Codec.detect(file));
+	}
+	
+	/**
+	 * @param file The file to read
+	 * @param codec How the file is compressed
+	 * @throws SequenceFormatException
+	 * @throws IOException
+	 */
+	protected FastQFile(File file, Codec codec) throws SequenceFormatException, IOException {
+		this(file, file.length());
+		
+		// Decompression is slow enough that the codecs do it on other
+		// threads whilst we get on with the analysis.
+		fis = new FileInputStream(file);
+		is = codec.open(file, fis);
+		readNext();
+	}
+	
+	/**
+	 * Reads from a stream, such as stdin or a named pipe, which we can
+	 * only go through once and whose length we don't know.
+	 * 
+	 * @param file The name to report the data under
+	 * @param in The raw data, which may be compressed
+	 * @throws SequenceFormatException
+	 * @throws IOException
+	 */
+	protected FastQFile(File file, InputStream in) throws SequenceFormatException, IOException {
+		this(file, -1);
+		
+		counter = new CountingInputStream(in);
+		PushbackInputStream pushback = new PushbackInputStream(counter, 16);
+		is = Codec.detect(pushback).open(pushback);
+		readNext();
+	}
+	
+	/**
+	 * Sets up a file whose raw data comes from somewhere other than
+	 * a stream.  Subclasses using this need to override readData(),
+	 * closeData() and getPercentComplete(), and must call readNext()
+	 * once they're ready to supply data.
+	 * 
+	 * @param file The file we're reading
+	 * @param fileSize The number of bytes we're going to read, or -1 if we don't know
+	 */
+	protected FastQFile (File file, long fileSize) {
 		this.file = file;
-		fileSize = file.length();
+		this.fileSize = fileSize;
 		name = file.getName();
 		
 		if (System.getProperty("fastqc.casava") != null && System.getProperty("fastqc.casava").equals("true")) {
 			casavaMode = true;
 		}
-		
-		fis = new FileInputStream(file);
-		if (file.getName().toLowerCase().endsWith(".gz")) {
-			br = new BufferedReader(new InputStreamReader(new GZIPInputStream(fis)));
-		} 
-		else if (file.getName().toLowerCase().endsWith(".bz2")) {
-			br = new BufferedReader(new InputStreamReader(new BZip2InputStream(fis,false)));
-		} 
-		
-		else {
-			br = new BufferedReader(new InputStreamReader(fis));
+		if (System.getProperty("fastqc.validate") != null && System.getProperty("fastqc.validate").equals("true")) {
+			validateMode = true;
 		}
-		readNext();
+	}
+
+	/**
+	 * @return How many threads we should use to decompress a file
+	 */
+	protected static int decompressionThreads () {
+		if (System.getProperty("fastqc.threads") != null) {
+			try {
+				return Math.max(1, Integer.parseInt(System.getProperty("fastqc.threads")));
+			}
+			catch (NumberFormatException nfe) {}
+		}
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
 	}
 
 	public String name() {
@@ -78,14 +190,49 @@ public class FastQFile implements SequenceFile {
 	}
 
 	public int getPercentComplete() {
-		try {
-			int percent = (int) (((double)fis.getChannel().position()/ fileSize)*100);
-			return percent;
-		} 
-		catch (IOException e) {
-			e.printStackTrace();
+		if (fileSize < 0) return -1;
+		
+		// This gets called for every sequence so we don't want to ask the
+		// file channel for its position each time.  For uncompressed files
+		// we know exactly where we are from our own buffer.  For compressed
+		// files we use where the raw file was when we last read from it.
+		long position = filePosition;
+		if (is == fis) {
+			position = dataPosition();
 		}
-		return 0;
+		int percent = (int) (((double)position/ fileSize)*100);
+		return percent;
+	}
+	
+	public long getBytesRead() {
+		if (counter != null) return counter.getCount();
+		if (fis != null && is != fis) return filePosition;
+		return dataPosition();
+	}
+	
+	/**
+	 * @return How many bytes of raw data we've parsed so far
+	 */
+	protected long dataPosition () {
+		return bufferOffset+recordStart;
+	}
+	
+	/**
+	 * @return The number of bytes of raw data we expect to read
+	 */
+	protected long fileSize () {
+		return fileSize;
+	}
+	
+	/**
+	 * Stops reading at the first record which starts at or after the
+	 * given number of bytes into the data.  The record which crosses
+	 * the limit is still read in full.
+	 * 
+	 * @param dataLimit How many bytes into the data to stop at
+	 */
+	protected void setDataLimit (long dataLimit) {
+		this.dataLimit = dataLimit;
 	}
 
 	public boolean isColorspace() {
@@ -97,214 +244,351 @@ public class FastQFile implements SequenceFile {
 	}
 
 	public boolean hasNext() {
+		if (!nextParsed) {
+			try {
+				readNext();
+			}
+			catch (SequenceFormatException sfe) {
+				// We can't throw this from here so we keep it and
+				// pass it on when they ask for the sequence.
+				nextException = sfe;
+				return true;
+			}
+		}
 		return nextSequence != null;
 	}
 
 	public Sequence next() throws SequenceFormatException {
-		Sequence seq = nextSequence;
-		readNext();
-		return seq;
+		if (!nextParsed) {
+			readNext();
+		}
+		if (nextException != null) {
+			SequenceFormatException sfe = nextException;
+			nextException = null;
+			throw sfe;
+		}
+		nextParsed = false;
+		return nextSequence;
 	}
 
-	private void readNext() throws SequenceFormatException {
+	protected void readNext() throws SequenceFormatException {
+		nextParsed = true;
 		try {
-			// First line should be the id
+			// First line should be the id.  We keep all of our positions
+			// relative to the start of the record since reading more of
+			// the file can move the record within the buffer.
 			
 			// We might have blank lines between entries or at the end
 			// so allow for this
-			String id;
+			int idEnd;
 			
 			while (true) {
-				id = br.readLine();
+				idEnd = findLineEnd(0);
 
-				if (id == null) {
+				if (idEnd < 0) {
 					nextSequence = null;
+					closeData();
 					return;
 				}
-				if (id.length()==0) {
+				if (lineLength(0, idEnd) == 0) {
+					recordStart += idEnd+1;
 					continue;
 				}				
 				
 				break;
 			}
 			
+			if (dataPosition() >= dataLimit) {
+				nextSequence = null;
+				closeData();
+				return;
+			}
 
-			if (!id.startsWith("@")) {
+			if (buffer[recordStart] != '@') {
 				nextSequence = null;
 				throw new SequenceFormatException("ID line didn't start with '@'");
 			}
 
 			// Then the sequence
-			String seq = br.readLine();
+			int seqStart = idEnd+1;
+			int seqEnd = findLineEnd(seqStart);
+			
 			// Then another id which we don't need
-			String midLine = br.readLine();
-			if (!midLine.startsWith("+")) {
-				throw new SequenceFormatException("Midline '"+midLine+"' didn't start with '+'");
+			int midStart = seqEnd+1;
+			int midEnd = -1;
+			if (seqEnd >= 0) {
+				midEnd = findLineEnd(midStart);
+			}
+			if (midEnd >= 0 && buffer[recordStart+midStart] != '+') {
+				nextSequence = null;
+				throw new SequenceFormatException("Midline '"+new String(buffer, recordStart+midStart, lineLength(midStart, midEnd), "ISO-8859-1")+"' didn't start with '+'");
 			}
+			
 			// Then the quality string
-			String quality = br.readLine();
-
-			if (nextSequence == null && seq != null) {
-				checkColorspace(seq);
+			int qualStart = midEnd+1;
+			int qualEnd = -1;
+			if (midEnd >= 0) {
+				qualEnd = findLineEnd(qualStart);
 			}
 
-			if (quality == null) {
+			if (qualEnd < 0) {
+				// The file ended part way through a record
 				nextSequence = null;
-				br.close();
-			} 
-			else {
-				++count;
-				if (isColorspace()) {
-					nextSequence = new Sequence(this,
-							convertColorspaceToBases(seq.toUpperCase()), seq.toUpperCase(), quality, id);
-				} 
-				else {
-					nextSequence = new Sequence(this, seq.toUpperCase(),quality, id);
+				closeData();
+				if (validateMode) {
+					throw new SequenceFormatException("File ended part way through a record");
 				}
-				
-				// If we're running in --casava mode then we will flag any sequences which
-				// are marked as being filtered.
-				if (casavaMode) {
-					
-					// This is the test illumina suggest, but it's a bit flakey, and I'm not
-					// sure it's not going to catch things it shouldn't.
-					if (id.indexOf(":Y:") > 0) {
-						nextSequence.setIsFiltered(true);
-					}
+				return;
+			} 
+
+			int seqLength = lineLength(seqStart, seqEnd);
+			
+			// Base calls can come in either case, but we want them to
+			// be upper case.  We can do this in place in the buffer.
+			// Upper case letters never have the 0x20 bit set so we can
+			// skip over 8 bases at a time until we find anything else.
+			int i = recordStart+seqStart;
+			int basesEnd = i+seqLength;
+			for (;i<basesEnd-7;i+=8) {
+				if ((wordBuffer.getLong(i) & CASE_BITS) != 0) break;
+			}
+			for (;i<basesEnd;i++) {
+				if (buffer[i] >= 'a' && buffer[i] <= 'z') {
+					buffer[i] -= 32;
 				}
+			}
 
+			// We decide whether this is colorspace data from the first
+			// record, and then treat every record the same way.
+			if (count == 0) {
+				isColorspace = checkColorspace(recordStart+seqStart, seqLength);
+			}
+			
+			if (validateMode && !isColorspace && seqLength != lineLength(qualStart, qualEnd)) {
+				nextSequence = null;
+				throw new SequenceFormatException("Quality string length didn't match the sequence length in record "+(count+1));
 			}
 
+			++count;
+			if (isColorspace) {
+				int basesLength = convertColorspaceToBases(recordStart+seqStart, seqLength);
+				nextSequence = new Sequence(this, buffer, recordStart, lineLength(0, idEnd), colorspaceBases, basesLength, recordStart+seqStart, seqLength, recordStart+qualStart, lineLength(qualStart, qualEnd));
+			}
+			else {
+				nextSequence = new Sequence(this, buffer, recordStart, lineLength(0, idEnd), recordStart+seqStart, seqLength, recordStart+qualStart, lineLength(qualStart, qualEnd));
+			}
+			
+			// If we're running in --casava mode then we will flag any sequences which
+			// are marked as being filtered.
+			if (casavaMode) {
+				
+				// This is the test illumina suggest, but it's a bit flakey, and I'm not
+				// sure it's not going to catch things it shouldn't.
+				if (idContains(lineLength(0, idEnd), ":Y:")) {
+					nextSequence.setIsFiltered(true);
+				}
+			}
+			
+			// Move on to the start of the next record
+			recordStart = Math.min(recordStart+qualEnd+1, bufferEnd);
 
 		} 
 		catch (IOException ioe) {
 			nextSequence = null;
+			
+			// Normally we report on whatever we managed to read, but when
+			// we're validating a damaged file has to fail.
+			if (validateMode) {
+				throw new SequenceFormatException("Couldn't read file: "+ioe.getMessage());
+			}
 			ioe.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Finds the end of the line starting at the given offset from the start
+	 * of the current record, reading more of the file into the buffer if we
+	 * need to.
+	 * 
+	 * @param offset The start of the line relative to the record start
+	 * @return The offset of the newline ending the line, or of the end of the
+	 * data if the file ends without one, or -1 if there is no more data.
+	 * @throws IOException
+	 */
+	private int findLineEnd (int offset) throws IOException {
+		int scanFrom = offset;
+		while (true) {
+			byte [] buffer = this.buffer;
+			int end = bufferEnd;
+			int i = recordStart+scanFrom;
+			
+			// We look at 8 bytes at a time where we can.  Any byte
+			// which is a newline comes out as a set top bit in the
+			// mask, and the lowest one is the first newline.
+			for (;i<end-7;i+=8) {
+				long word = wordBuffer.getLong(i) ^ NEWLINES;
+				long mask = (word - LOW_BITS) & ~word & HIGH_BITS;
+				if (mask != 0) {
+					return (i+(Long.numberOfTrailingZeros(mask)>>>3))-recordStart;
+				}
+			}
+			for (;i<end;i++) {
+				if (buffer[i] == '\n') return i-recordStart;
+			}
+			scanFrom = end-recordStart;
 
-	private void checkColorspace(String seq) {
-		// Some basecalled files can be all dots, which leads to them
-		// being identified as colorspace data. This check should find
-		// only true colorspace files.
-		String regex = "^[GATCNgatcn][\\.0123456]+$";
-		Pattern pattern = Pattern.compile(regex);
-		Matcher matcher = pattern.matcher(seq);
-		if (matcher.find()) {
-			isColorspace = true;
-		} else {
-			isColorspace = false;
+			if (!fillBuffer()) {
+				if (recordStart+offset >= bufferEnd) return -1;
+				return bufferEnd-recordStart;
+			}
 		}
 	}
+	
+	/**
+	 * The length of a line, ignoring any trailing carriage return.
+	 */
+	private int lineLength (int start, int end) {
+		if (end > start && buffer[recordStart+end-1] == '\r') {
+			return (end-start)-1;
+		}
+		return end-start;
+	}
+	
+	private boolean idContains (int idLength, String text) {
+		for (int i=recordStart;i<=(recordStart+idLength)-text.length();i++) {
+			int j=0;
+			while (j<text.length() && buffer[i+j] == text.charAt(j)) {
+				j++;
+			}
+			if (j == text.length()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Reads more data from the file into the buffer, after moving the
+	 * part of the record we've already seen to the start of the buffer.
+	 * 
+	 * @return false if there was no more data to read
+	 * @throws IOException
+	 */
+	private boolean fillBuffer () throws IOException {
+		if (endOfFile) return false;
+		
+		if (recordStart > 0) {
+			System.arraycopy(buffer, recordStart, buffer, 0, bufferEnd-recordStart);
+			bufferOffset += recordStart;
+			bufferEnd -= recordStart;
+			recordStart = 0;
+		}
+		
+		// If a single record has filled the whole buffer then
+		// we need a bigger buffer.
+		if (bufferEnd == buffer.length) {
+			byte [] newBuffer = new byte[buffer.length*2];
+			System.arraycopy(buffer, 0, newBuffer, 0, bufferEnd);
+			buffer = newBuffer;
+			wordBuffer = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		
+		int read = readData(buffer, bufferEnd, buffer.length-bufferEnd);
+		if (read < 0) {
+			endOfFile = true;
+			return false;
+		}
+		bufferEnd += read;
+		return true;
+	}
+	
+	/**
+	 * Reads the next block of raw FastQ data into the buffer.
+	 * 
+	 * @param buffer The buffer to read into
+	 * @param offset Where in the buffer to start putting data
+	 * @param length The most bytes we can take
+	 * @return The number of bytes read, or -1 if there's no more data
+	 * @throws IOException
+	 */
+	protected int readData (byte [] buffer, int offset, int length) throws IOException {
+		int read = is.read(buffer, offset, length);
+		if (fis != null) {
+			filePosition = fis.getChannel().position();
+		}
+		return read;
+	}
+	
+	/**
+	 * Releases whatever we were reading raw data from once we get to the end.
+	 * @throws IOException
+	 */
+	protected void closeData () throws IOException {
+		is.close();
+	}
 
-	private String convertColorspaceToBases(String s) {
-
-		char[] cs = s.toUpperCase().toCharArray();
+	/**
+	 * Says whether a sequence is in colorspace, which means a primer base
+	 * followed only by colour calls.  Some basecalled files can be all
+	 * dots, which leads to them being identified as colorspace data, so
+	 * we insist on the primer base.
+	 */
+	private boolean checkColorspace (int start, int length) {
+		if (length < 2) return false;
+		
+		byte primer = buffer[start];
+		if (primer != 'G' && primer != 'A' && primer != 'T' && primer != 'C' && primer != 'N') {
+			return false;
+		}
+		for (int i=start+1;i<start+length;i++) {
+			if (COLOURS[buffer[i] & 0xff] == INVALID_COLOUR) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Decodes colorspace calls into bases.  Each colour says how the next
+	 * base differs from the one before, and with the bases numbered as in
+	 * PackedSequence that difference is just an exclusive or.  Once we hit a call
+	 * which doesn't say anything the rest of the read is unknown.
+	 * 
+	 * @param start Where the calls start in the buffer, beginning with the primer base
+	 * @param length How many calls there are, including the primer base
+	 * @return The number of bases decoded into colorspaceBases
+	 * @throws SequenceFormatException
+	 */
+	private int convertColorspaceToBases (int start, int length) throws SequenceFormatException {
 		
 		// We've had a crash report where a file contained a zero length
 		// colorspace entry.  This is completely invalid, but we should
 		// handle it anyway.
-		if (cs.length == 0) {
-			return "";
+		if (length == 0) return 0;
+		
+		if (colorspaceBases.length < length-1) {
+			colorspaceBases = new byte[length*2];
 		}
 		
-		char[] bp = new char[cs.length - 1];
-
-		char refBase;
-
-		for (int i = 1; i < cs.length; i++) {
-			if (i == 1) {
-				refBase = cs[i - 1];
-			} else {
-				refBase = bp[i - 2];
-			}
-			if (!(refBase == 'G' || refBase == 'A' || refBase == 'T' || refBase == 'C')) {
-				throw new IllegalArgumentException("Refbase was " + refBase
-						+ " at position " + i);
+		int base = PackedSequence.CODES[buffer[start] & 0xff];
+		if (base < 0) {
+			throw new SequenceFormatException("Colorspace primer base was "+(char)buffer[start]);
+		}
+		
+		int end = start+length;
+		int b = 0;
+		for (int i=start+1;i<end;i++) {
+			int colour = COLOURS[buffer[i] & 0xff];
+			if (colour == INVALID_COLOUR) {
+				throw new SequenceFormatException("Unexpected colorspace character "+(char)buffer[i]);
 			}
-			switch (cs[i]) {
-			case ('0'):
-				switch (refBase) {
-				case ('G'):
-					bp[i - 1] = 'G';
-					break;
-				case ('A'):
-					bp[i - 1] = 'A';
-					break;
-				case ('T'):
-					bp[i - 1] = 'T';
-					break;
-				case ('C'):
-					bp[i - 1] = 'C';
-					break;
-				}
-				break;
-			case ('1'):
-				switch (refBase) {
-				case ('G'):
-					bp[i - 1] = 'T';
-					break;
-				case ('A'):
-					bp[i - 1] = 'C';
-					break;
-				case ('T'):
-					bp[i - 1] = 'G';
-					break;
-				case ('C'):
-					bp[i - 1] = 'A';
-					break;
-				}
-				break;
-
-			case ('2'):
-				switch (refBase) {
-				case ('G'):
-					bp[i - 1] = 'A';
-					break;
-				case ('A'):
-					bp[i - 1] = 'G';
-					break;
-				case ('T'):
-					bp[i - 1] = 'C';
-					break;
-				case ('C'):
-					bp[i - 1] = 'T';
-					break;
+			if (colour == UNKNOWN_COLOUR) {
+				for (;b<length-1;b++) {
+					colorspaceBases[b] = 'N';
 				}
 				break;
-
-			case ('3'):
-				switch (refBase) {
-				case ('G'):
-					bp[i - 1] = 'C';
-					break;
-				case ('A'):
-					bp[i - 1] = 'T';
-					break;
-				case ('T'):
-					bp[i - 1] = 'A';
-					break;
-				case ('C'):
-					bp[i - 1] = 'G';
-					break;
-				}
-				break;
-
-			case ('.'):
-			case ('4'):
-			case ('5'):
-			case ('6'):
-				for (; i < cs.length; i++) {
-					bp[i - 1] = 'N';
-				}
-				break;
-			default:
-				throw new IllegalArgumentException("Unexpected cs char "
-						+ cs[i]);
 			}
+			base ^= colour;
+			colorspaceBases[b++] = PackedSequence.BASES[base];
 		}
-
-		return new String(bp);
+		
+		return length-1;
 	}
 
 	public void remove() {
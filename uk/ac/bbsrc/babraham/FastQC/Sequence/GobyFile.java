@@ -30,7 +30,7 @@ public class GobyFile implements SequenceFile {
 
 	private File file;
 	private long fileSize = 0;
-	private int rawCount = 0;
+	private long rawCount = 0;
 	
 	// We keep the file stream around just so we can see how far through
 	// the file we've got.  We don't read from this directly, but it's the
@@ -66,6 +66,16 @@ public class GobyFile implements SequenceFile {
 		return 0;
 	}
 
+	public long getBytesRead() {
+		try {
+			return fis.getChannel().position();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		return 0;
+	}
+
 	public boolean isColorspace () {
 		return false;
 	}
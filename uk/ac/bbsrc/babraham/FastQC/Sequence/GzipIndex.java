@@ -0,0 +1,231 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A list of places in a gzip file where we can start decompressing, in
+ * the same way as zlib's zran example.  Each access point is the start
+ * of a deflate block along with the 32kb of data which came before it,
+ * which is everything we need to decode from there.
+ *
+ * The index is kept in a file next to the gzip file so that later runs
+ * over the same data can decompress it in parallel without having to
+ * find the block starts again.
+ */
+public class GzipIndex {
+
+	public static final String EXTENSION = ".fqcidx";
+
+	private static final int MAGIC = 0x46514349;
+	private static final int VERSION = 1;
+
+	private File file;
+
+	// We use these to tell if the gzip file has changed since we
+	// made the index.
+	private long fileLength;
+	private long lastModified;
+
+	private ArrayList<AccessPoint> points = new ArrayList<AccessPoint>();
+
+	/**
+	 * Starts a new empty index for a gzip file.
+	 *
+	 * @param file The gzip file
+	 */
+	public GzipIndex (File file) {
+		this.file = file;
+		fileLength = file.length();
+		lastModified = file.lastModified();
+	}
+
+	/**
+	 * @param file A gzip file
+	 * @return The sidecar file which holds its index
+	 */
+	public static File indexFile (File file) {
+		return new File(file.getPath()+EXTENSION);
+	}
+
+	/**
+	 * Reads the index for a gzip file, if there is one which is
+	 * up to date.
+	 *
+	 * @param file The gzip file
+	 * @return The index, or null if there isn't a usable one
+	 */
+	public static GzipIndex load (File file) {
+		File indexFile = indexFile(file);
+		if (!indexFile.exists()) return null;
+
+		GzipIndex index = new GzipIndex(file);
+
+		try {
+			DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(indexFile))));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+				if (in.readLong() != index.fileLength || in.readLong() != index.lastModified) return null;
+
+				int count = in.readInt();
+				for (int p=0;p<count;p++) {
+					long bit = in.readLong();
+					long offset = in.readLong();
+					int windowLength = in.readInt();
+					byte [] window = new byte[DeflateDecoder.WINDOW_SIZE];
+					in.readFully(window, DeflateDecoder.WINDOW_SIZE-windowLength, windowLength);
+					index.points.add(new AccessPoint(bit, offset, window, windowLength));
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException ioe) {
+			// A damaged index is no worse than not having one
+			System.err.println("Ignoring unreadable gzip index "+indexFile+": "+ioe.getMessage());
+			return null;
+		}
+
+		if (index.points.isEmpty()) return null;
+		return index;
+	}
+
+	/**
+	 * Writes the index out next to the gzip file.  If we can't write
+	 * there we just carry on without it.
+	 */
+	public void save () {
+		File indexFile = indexFile(file);
+		try {
+			DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile))));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(fileLength);
+				out.writeLong(lastModified);
+				out.writeInt(points.size());
+				for (int p=0;p<points.size();p++) {
+					AccessPoint point = points.get(p);
+					out.writeLong(point.bit);
+					out.writeLong(point.offset);
+					out.writeInt(point.windowLength);
+					out.write(point.window, DeflateDecoder.WINDOW_SIZE-point.windowLength, point.windowLength);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException ioe) {
+			System.err.println("Couldn't write gzip index "+indexFile+": "+ioe.getMessage());
+			indexFile.delete();
+		}
+	}
+
+	/**
+	 * Adds the next access point.  Points have to be added in the order
+	 * they appear in the file.
+	 *
+	 * @param bit The bit where a deflate block starts
+	 * @param offset How far into the uncompressed data that block starts
+	 * @param window The data before the block, with the valid part at the end
+	 * @param windowLength How much of the window is valid
+	 */
+	public void addPoint (long bit, long offset, byte [] window, int windowLength) {
+		points.add(new AccessPoint(bit, offset, window.clone(), windowLength));
+	}
+
+	/**
+	 * @return How many access points there are
+	 */
+	public int size () {
+		return points.size();
+	}
+
+	/**
+	 * @param point Which access point
+	 * @return The bit in the file where it starts
+	 */
+	public long startBit (int point) {
+		return points.get(point).bit;
+	}
+
+	/**
+	 * @param point Which access point
+	 * @return How far into the uncompressed data it starts
+	 */
+	public long uncompressedOffset (int point) {
+		return points.get(point).offset;
+	}
+
+	/**
+	 * Decodes the data between one access point and the next.  For the
+	 * last point we decode to the end of the first gzip member.
+	 *
+	 * @param decoder A decoder reading the gzip file
+	 * @param point Which access point to start from
+	 * @return The uncompressed data
+	 * @throws IOException
+	 */
+	public byte [] decodeChunk (DeflateDecoder decoder, int point) throws IOException {
+		AccessPoint start = points.get(point);
+		long endBit = Long.MAX_VALUE;
+		if (point+1 < points.size()) {
+			endBit = points.get(point+1).bit;
+		}
+
+		try {
+			decoder.decode(start.bit, endBit, start.window, start.windowLength);
+			return decoder.resolve(start.window, start.windowLength);
+		}
+		catch (DataFormatException dfe) {
+			throw new IOException("Corrupt GZIP data: "+dfe.getMessage());
+		}
+	}
+
+	private static class AccessPoint {
+
+		private long bit;
+		private long offset;
+		private byte [] window;
+		private int windowLength;
+
+		public AccessPoint (long bit, long offset, byte [] window, int windowLength) {
+			this.bit = bit;
+			this.offset = offset;
+			this.window = window;
+			this.windowLength = windowLength;
+		}
+	}
+
+}
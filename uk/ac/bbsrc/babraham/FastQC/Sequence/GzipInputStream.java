@@ -0,0 +1,204 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads gzip data straight through an Inflater.  We read the compressed
+ * data in much larger pieces than GZIPInputStream does, and we carry on
+ * through any number of concatenated gzip members.  Anything after the
+ * last member which isn't another gzip header is ignored, which is what
+ * gzip itself does.
+ */
+public class GzipInputStream extends InputStream {
+
+	private static final int BUFFER_SIZE = 1024*1024;
+
+	private InputStream is;
+	private Inflater inflater = new Inflater(true);
+	private CRC32 crc = new CRC32();
+
+	private byte [] buffer = new byte[BUFFER_SIZE];
+	private int bufferPosition = 0;
+	private int bufferLength = 0;
+
+	private boolean endOfFile = false;
+
+	/**
+	 * @param is The compressed data
+	 * @throws IOException If the data doesn't start with a gzip header
+	 */
+	public GzipInputStream (InputStream is) throws IOException {
+		this.is = is;
+		if (!readHeader()) {
+			throw new IOException("Not in GZIP format");
+		}
+	}
+
+	/**
+	 * Makes sure there's at least one unused byte in the buffer.
+	 *
+	 * @return false if there's no more data
+	 * @throws IOException
+	 */
+	private boolean fillBuffer () throws IOException {
+		if (bufferPosition < bufferLength) return true;
+		bufferLength = is.read(buffer, 0, buffer.length);
+		bufferPosition = 0;
+		if (bufferLength < 0) {
+			bufferLength = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private int readByte () throws IOException {
+		if (!fillBuffer()) {
+			throw new IOException("Unexpected end of GZIP data");
+		}
+		return buffer[bufferPosition++] & 0xff;
+	}
+
+	private int readShort () throws IOException {
+		return readByte() | (readByte() << 8);
+	}
+
+	private int readInt () throws IOException {
+		return readShort() | (readShort() << 16);
+	}
+
+	/**
+	 * Reads a member header.
+	 *
+	 * @return false if there isn't another member
+	 * @throws IOException
+	 */
+	private boolean readHeader () throws IOException {
+		if (!fillBuffer()) return false;
+		if ((buffer[bufferPosition] & 0xff) != 0x1f) return false;
+		bufferPosition++;
+		if (readByte() != 0x8b || readByte() != 8) {
+			return false;
+		}
+
+		int flags = readByte();
+
+		// Modification time, extra flags and OS
+		for (int i=0;i<6;i++) {
+			readByte();
+		}
+
+		if ((flags & 4) != 0) {
+			int extraLength = readShort();
+			for (int i=0;i<extraLength;i++) {
+				readByte();
+			}
+		}
+
+		// File name and comment, which are zero terminated
+		if ((flags & 8) != 0) {
+			while (readByte() != 0) {}
+		}
+		if ((flags & 16) != 0) {
+			while (readByte() != 0) {}
+		}
+
+		if ((flags & 2) != 0) {
+			readShort();
+		}
+
+		inflater.reset();
+		crc.reset();
+		return true;
+	}
+
+	/**
+	 * Checks the trailer at the end of a member, and moves on to the
+	 * next member if there is one.
+	 *
+	 * @throws IOException
+	 */
+	private void endMember () throws IOException {
+
+		// Whatever the inflater didn't use is the start of the trailer
+		bufferPosition = bufferLength-inflater.getRemaining();
+
+		int expectedCrc = readInt();
+		int expectedLength = readInt();
+		if (expectedCrc != (int)crc.getValue() || expectedLength != (int)inflater.getBytesWritten()) {
+			throw new IOException("GZIP data failed its CRC check");
+		}
+
+		if (!readHeader()) {
+			endOfFile = true;
+		}
+	}
+
+	public int read () throws IOException {
+		byte [] b = new byte[1];
+		if (read(b, 0, 1) < 0) return -1;
+		return b[0] & 0xff;
+	}
+
+	public int read (byte [] b, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+
+		try {
+			while (!endOfFile) {
+				int read = inflater.inflate(b, offset, length);
+				if (read > 0) {
+					crc.update(b, offset, read);
+					return read;
+				}
+
+				if (inflater.finished()) {
+					endMember();
+				}
+				else if (inflater.needsInput()) {
+					// The inflater takes whatever's left in the buffer
+					if (!fillBuffer()) {
+						throw new IOException("Unexpected end of GZIP data");
+					}
+					inflater.setInput(buffer, bufferPosition, bufferLength-bufferPosition);
+					bufferPosition = bufferLength;
+				}
+				else if (inflater.needsDictionary()) {
+					throw new IOException("GZIP data needs a preset dictionary");
+				}
+			}
+		}
+		catch (DataFormatException dfe) {
+			throw new IOException("Corrupt GZIP data: "+dfe.getMessage());
+		}
+
+		return -1;
+	}
+
+	public void close () throws IOException {
+		inflater.end();
+		is.close();
+	}
+
+}
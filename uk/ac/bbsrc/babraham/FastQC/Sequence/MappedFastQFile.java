@@ -0,0 +1,255 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads uncompressed FastQ files by mapping them into memory rather
+ * than going through a stream.  A single mapping can't be larger than
+ * 2GB so we slide a window of mapped data along the file.
+ */
+public class MappedFastQFile extends FastQFile {
+
+	// How much of the file we map at once.  This is kept well short of
+	// the 2GB limit so we don't use up the address space on 32 bit VMs.
+	private static final long WINDOW_SIZE = 64*1024*1024;
+	
+	// We won't split a file into sections smaller than this
+	private static final long MIN_SECTION_SIZE = 128*1024*1024;
+	
+	private FileChannel channel;
+	private MappedByteBuffer window = null;
+	
+	// The full length of the file, which can be more than the section
+	// we're reading if the last record runs past the end of the section.
+	private long fileLength;
+	
+	// Where in the file the current window starts
+	private long windowStart;
+	
+	protected MappedFastQFile(File file) throws SequenceFormatException, IOException {
+		this(file, 0, file.length());
+	}
+	
+	/**
+	 * Reads the records which start between the two positions.  The
+	 * start must be the beginning of a record.
+	 * 
+	 * @param file The file to read
+	 * @param start The first byte of the section
+	 * @param end The first byte after the section
+	 */
+	private MappedFastQFile(File file, long start, long end) throws SequenceFormatException, IOException {
+		super(file, end-start);
+		channel = new FileInputStream(file).getChannel();
+		fileLength = channel.size();
+		windowStart = start;
+		setDataLimit(end-start);
+		readNext();
+	}
+	
+	/**
+	 * Splits this file into sections which can be read at the same time.
+	 * Every section starts at a real record, and every record in the
+	 * file is read by exactly one section.  Small files are returned
+	 * as a single section.  This file can still be read as a whole,
+	 * alongside the sections, for anything which has to see every
+	 * record in order.
+	 * 
+	 * @param sections The most sections to split into
+	 * @return The sections, in the order they appear in the file
+	 * @throws SequenceFormatException
+	 * @throws IOException
+	 */
+	public SequenceFile [] split (int sections) throws SequenceFormatException, IOException {
+		
+		if (sections > fileLength/MIN_SECTION_SIZE) {
+			sections = (int)(fileLength/MIN_SECTION_SIZE);
+		}
+		if (sections < 2) {
+			return new SequenceFile [] {this};
+		}
+		
+		RecordFinder finder = new RecordFinder(channel, fileLength);
+		long [] starts = new long[sections+1];
+		starts[sections] = fileLength;
+		for (int s=1;s<sections;s++) {
+			starts[s] = Math.max(starts[s-1], finder.findRecordStart((fileLength/sections)*s));
+		}
+		
+		SequenceFile [] files = new SequenceFile[sections];
+		for (int s=0;s<sections;s++) {
+			files[s] = new MappedFastQFile(getFile(), starts[s], starts[s+1]);
+		}
+		
+		return files;
+	}
+
+	public int getPercentComplete() {
+		// We know exactly how far through the mapped data we've got so
+		// we never need to ask the channel where it is.
+		if (fileSize() == 0) return 100;
+		return (int) (((double)dataPosition()/ fileSize())*100);
+	}
+
+	protected int readData (byte [] buffer, int offset, int length) throws IOException {
+		if (window == null || !window.hasRemaining()) {
+			long nextStart = windowStart;
+			if (window != null) {
+				nextStart += window.capacity();
+			}
+			if (nextStart >= fileLength) return -1;
+			
+			windowStart = nextStart;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, fileLength-windowStart));
+		}
+		
+		int read = Math.min(length, window.remaining());
+		window.get(buffer, offset, read);
+		return read;
+	}
+
+	protected void closeData () throws IOException {
+		window = null;
+		channel.close();
+	}
+	
+	/**
+	 * Finds where records start in a mapped file.  An '@' at the start of
+	 * a line isn't enough since it's also a valid quality character, so
+	 * we check the whole record before we believe it.
+	 */
+	static class RecordFinder {
+		
+		private FileChannel channel;
+		private long fileLength;
+		private MappedByteBuffer window = null;
+		private long windowStart = 0;
+		
+		public RecordFinder (FileChannel channel, long fileLength) {
+			this.channel = channel;
+			this.fileLength = fileLength;
+		}
+		
+		/**
+		 * @param position Where to start looking
+		 * @return The start of the first record at or after position, or
+		 * the file length if there isn't one.
+		 * @throws IOException
+		 */
+		public long findRecordStart (long position) throws IOException {
+			long lineStart = position;
+			if (lineStart > 0 && byteAt(lineStart-1) != '\n') {
+				lineStart = lineEnd(lineStart)+1;
+			}
+			
+			while (lineStart < fileLength) {
+				if (isRecordStart(lineStart)) return lineStart;
+				lineStart = lineEnd(lineStart)+1;
+			}
+			
+			return fileLength;
+		}
+		
+		/**
+		 * Moves on past a number of records.  Each record is four lines,
+		 * and anything after it which doesn't start a record, such as a
+		 * blank line, is passed over in the same way as findRecordStart.
+		 * It must be given the start of a real record.
+		 * 
+		 * @param recordStart The start of a record
+		 * @param records How many records to skip
+		 * @return The start of the record after the last one skipped, or
+		 * the file length if the file ends first.
+		 * @throws IOException
+		 */
+		public long skipRecords (long recordStart, int records) throws IOException {
+			long position = recordStart;
+			for (int record=0;record<records && position < fileLength;record++) {
+				for (int line=0;line<4 && position < fileLength;line++) {
+					position = lineEnd(position)+1;
+				}
+				position = findRecordStart(Math.min(position, fileLength));
+			}
+			return position;
+		}
+		
+		private boolean isRecordStart (long lineStart) throws IOException {
+			
+			// If a quality line starts with an @ then two lines later we'll
+			// be on the sequence of the next record, not on a midline, so
+			// we check all four lines.
+			if (byteAt(lineStart) != '@') return false;
+			
+			long idEnd = lineEnd(lineStart);
+			if (idEnd >= fileLength) return false;
+			
+			long seqEnd = lineEnd(idEnd+1);
+			if (seqEnd+1 >= fileLength) return false;
+			
+			if (byteAt(seqEnd+1) != '+') return false;
+			
+			long midEnd = lineEnd(seqEnd+1);
+			if (midEnd >= fileLength) return false;
+			
+			long qualEnd = lineEnd(midEnd+1);
+			
+			int seqLength = lineLength(idEnd+1, seqEnd);
+			int qualLength = lineLength(midEnd+1, qualEnd);
+			
+			// Colorspace sequences have an extra primer base which
+			// doesn't get a quality.
+			return qualLength == seqLength || qualLength == seqLength-1;
+		}
+		
+		private long lineEnd (long position) throws IOException {
+			while (position < fileLength && byteAt(position) != '\n') {
+				++position;
+			}
+			return position;
+		}
+		
+		private int lineLength (long start, long end) throws IOException {
+			if (end > start && byteAt(end-1) == '\r') {
+				--end;
+			}
+			return (int)(end-start);
+		}
+		
+		/**
+		 * Subclasses which find records in something other than a plain
+		 * file override this, and can pass a null channel.
+		 */
+		protected byte byteAt (long position) throws IOException {
+			if (window == null || position < windowStart || position >= windowStart+window.capacity()) {
+				windowStart = position;
+				window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, fileLength-windowStart));
+			}
+			return window.get((int)(position-windowStart));
+		}
+		
+	}
+	
+}
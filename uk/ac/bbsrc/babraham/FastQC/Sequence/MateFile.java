@@ -0,0 +1,89 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One of the two mates in an interleaved paired end file.  This gives
+ * each mate its own name so it can have its own report, but the
+ * sequences are read from the interleaved file by whoever splits it up,
+ * so a MateFile has no sequences of its own to read.
+ */
+public class MateFile implements SequenceFile {
+
+	// The extensions we put the read number in front of
+	private static final Pattern EXTENSION = Pattern.compile("(\\.(fastq|fq|txt))?(\\.(gz|bz2))?$");
+	
+	private SequenceFile file;
+	private File mateFile;
+	
+	/**
+	 * @param file The interleaved file
+	 * @param mate 1 for the first read of each pair, 2 for the second
+	 */
+	public MateFile (SequenceFile file, int mate) {
+		this.file = file;
+		
+		String name = file.getFile().getName();
+		Matcher matcher = EXTENSION.matcher(name);
+		matcher.find();
+		name = name.substring(0, matcher.start())+"_R"+mate+name.substring(matcher.start());
+		mateFile = new File(file.getFile().getParentFile(), name);
+	}
+	
+	/**
+	 * @return The interleaved file this mate comes from
+	 */
+	public SequenceFile interleavedFile () {
+		return file;
+	}
+	
+	public boolean hasNext() {
+		return false;
+	}
+
+	public Sequence next() throws SequenceFormatException {
+		throw new SequenceFormatException("Sequences from "+name()+" have to be read from "+file.name());
+	}
+
+	public boolean isColorspace() {
+		return file.isColorspace();
+	}
+
+	public String name() {
+		return mateFile.getName();
+	}
+
+	public int getPercentComplete() {
+		return file.getPercentComplete();
+	}
+
+	public long getBytesRead() {
+		return file.getBytesRead();
+	}
+
+	public File getFile() {
+		return mateFile;
+	}
+
+}
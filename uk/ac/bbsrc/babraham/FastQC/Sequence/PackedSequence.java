@@ -0,0 +1,205 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.util.Arrays;
+
+/**
+ * A sequence packed into 2 bits per base, 32 bases to a long.  Anything
+ * which isn't A, C, G or T is marked in a separate bitmask, and we keep
+ * the actual character as well so we can always give back exactly the
+ * sequence we were given.
+ *
+ * Packed sequences are much smaller than Strings and can be compared
+ * and hashed a word at a time, so they make good keys for modules which
+ * keep a lot of sequences.  They never change once they've been made.
+ */
+public class PackedSequence {
+
+	/** The bases in the order of their codes */
+	public static final byte [] BASES = new byte [] {'A','C','G','T'};
+
+	/** The code for each base character, or -1 if it isn't one */
+	public static final byte [] CODES = new byte[256];
+
+	static {
+		Arrays.fill(CODES, (byte)-1);
+		for (int b=0;b<BASES.length;b++) {
+			CODES[BASES[b]] = (byte)b;
+		}
+	}
+
+	private int length;
+	private long [] bases;
+
+	// These are null if every base was A, C, G or T
+	private long [] unknownMask = null;
+	private byte [] unknowns = null;
+
+	private int hashCode = 0;
+
+	/**
+	 * Packs a sequence of upper case bases.
+	 *
+	 * @param sequence The bytes holding the bases
+	 * @param offset Where the bases start
+	 * @param length How many bases there are
+	 */
+	public PackedSequence (byte [] sequence, int offset, int length) {
+		this.length = length;
+		bases = new long[(length+31)>>>5];
+
+		int unknownCount = 0;
+		for (int i=0;i<length;i++) {
+			int code = CODES[sequence[offset+i] & 0xff];
+			if (code < 0) {
+				if (unknownMask == null) {
+					unknownMask = new long[(length+63)>>>6];
+				}
+				unknownMask[i>>>6] |= 1L << (i & 63);
+				++unknownCount;
+				continue;
+			}
+			bases[i>>>5] |= ((long)code) << ((i & 31) << 1);
+		}
+
+		if (unknownCount > 0) {
+			unknowns = new byte[unknownCount];
+			int u = 0;
+			for (int i=0;i<length;i++) {
+				if (isUnknown(i)) {
+					unknowns[u++] = sequence[offset+i];
+				}
+			}
+		}
+	}
+
+	private PackedSequence (int length, long [] bases, long [] unknownMask, byte [] unknowns) {
+		this.length = length;
+		this.bases = bases;
+		this.unknownMask = unknownMask;
+		this.unknowns = unknowns;
+	}
+
+	public int length () {
+		return length;
+	}
+
+	/**
+	 * @param position Which base
+	 * @return The code for the base, which is meaningless if the base is unknown
+	 */
+	public int base (int position) {
+		return (int)(bases[position>>>5] >>> ((position & 31) << 1)) & 3;
+	}
+
+	/**
+	 * @param position Which base
+	 * @return true if the base isn't A, C, G or T
+	 */
+	public boolean isUnknown (int position) {
+		return unknownMask != null && (unknownMask[position>>>6] & (1L << (position & 63))) != 0;
+	}
+
+	/**
+	 * @return true if any base isn't A, C, G or T
+	 */
+	public boolean hasUnknowns () {
+		return unknownMask != null;
+	}
+
+	/**
+	 * Makes a copy of the start of this sequence.
+	 *
+	 * @param prefixLength How many bases to keep
+	 * @return The shorter sequence, or this one if it's no longer than that
+	 */
+	public PackedSequence prefix (int prefixLength) {
+		if (prefixLength >= length) return this;
+
+		long [] prefixBases = Arrays.copyOf(bases, (prefixLength+31)>>>5);
+		if ((prefixLength & 31) != 0) {
+			prefixBases[prefixBases.length-1] &= (1L << ((prefixLength & 31) << 1))-1;
+		}
+
+		long [] prefixMask = null;
+		byte [] prefixUnknowns = null;
+		if (unknownMask != null) {
+			int unknownCount = 0;
+			for (int i=0;i<prefixLength;i++) {
+				if (isUnknown(i)) ++unknownCount;
+			}
+			if (unknownCount > 0) {
+				prefixMask = Arrays.copyOf(unknownMask, (prefixLength+63)>>>6);
+				if ((prefixLength & 63) != 0) {
+					prefixMask[prefixMask.length-1] &= (1L << (prefixLength & 63))-1;
+				}
+				prefixUnknowns = Arrays.copyOf(unknowns, unknownCount);
+			}
+		}
+
+		return new PackedSequence(prefixLength, prefixBases, prefixMask, prefixUnknowns);
+	}
+
+	public int hashCode () {
+		if (hashCode == 0) {
+			int hash = length;
+			for (int i=0;i<bases.length;i++) {
+				hash = (31*hash)+(int)(bases[i] ^ (bases[i] >>> 32));
+			}
+			if (unknownMask != null) {
+				hash = (31*hash)+Arrays.hashCode(unknownMask);
+				hash = (31*hash)+Arrays.hashCode(unknowns);
+			}
+			hashCode = hash;
+		}
+		return hashCode;
+	}
+
+	public boolean equals (Object o) {
+		if (o == this) return true;
+		if (!(o instanceof PackedSequence)) return false;
+
+		PackedSequence other = (PackedSequence)o;
+		return length == other.length &&
+			   hashCode() == other.hashCode() &&
+			   Arrays.equals(bases, other.bases) &&
+			   Arrays.equals(unknownMask, other.unknownMask) &&
+			   Arrays.equals(unknowns, other.unknowns);
+	}
+
+	/**
+	 * @return The bases as a String, exactly as they were given to us
+	 */
+	public String toString () {
+		char [] chars = new char[length];
+		int u = 0;
+		for (int i=0;i<length;i++) {
+			if (isUnknown(i)) {
+				chars[i] = (char)(unknowns[u++] & 0xff);
+			}
+			else {
+				chars[i] = (char)BASES[base(i)];
+			}
+		}
+		return new String(chars);
+	}
+
+}
@@ -0,0 +1,498 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.itadaki.bzip2.BZip2BlockDecompressor;
+import org.itadaki.bzip2.BitInputStream;
+
+/**
+ * Decompresses bzip2 files on several threads.  Every bzip2 block
+ * starts with the same 48 bit marker and can be decoded without any
+ * of the blocks before it, so we scan through the compressed data for
+ * the markers and hand each block to a pool of threads.  The blocks
+ * aren't byte aligned so the scan has to go a bit at a time.
+ *
+ * The markers can also turn up by chance inside a block.  A block cut
+ * short by a false marker won't decode, so in the same way as lbzip2 we
+ * then join it on to the piece after it and try again.  A false end of
+ * stream marker is spotted by checking that it's followed by a stream
+ * CRC and then either the end of the file or another stream, and the
+ * CRC has to match the blocks we decoded.
+ *
+ * Concatenated streams, as written by pbzip2, are read one after the
+ * other.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+
+	private static final long BLOCK_MARKER = 0x314159265359L;
+	private static final long END_MARKER = 0x177245385090L;
+	private static final long MARKER_MASK = 0xffffffffffffL;
+
+	// How many blocks we'll have queued up for each thread.  Each one
+	// needs a few times the block size (at most 900kb) while it's decoded.
+	private static final int BLOCKS_PER_THREAD = 2;
+
+	// We give up joining pieces together once they're this many times
+	// the block size, since no real block gets that big.
+	private static final int MAX_JOINED_BLOCKS = 2;
+
+	private InputStream is;
+	private ExecutorService pool;
+	private int maxPending;
+	private LinkedList<Fragment> pending = new LinkedList<Fragment>();
+	private boolean endOfFile = false;
+
+	private int blockSize;
+
+	// The bit we're up to in the file, and the last 48 bits we read
+	private long bitPosition = 0;
+	private long recentBits = 0;
+	private int currentByte = 0;
+
+	// The bytes of the block we're scanning through, starting from the
+	// byte which holds its first bit.  We don't keep anything when we're
+	// not in a block.
+	private long blockStartBit = -1;
+	private byte [] blockData = new byte[1024*1024];
+	private int blockDataLength = 0;
+
+	// Where an end of stream marker we've just seen starts, and the
+	// stream CRC after it so far.  We don't believe it until we've seen
+	// what comes after.
+	private long endMarkerBit = -1;
+	private int endCRC = 0;
+	private int endCRCBits = 0;
+
+	// The CRC of a stream is built up from the CRCs of its blocks
+	private int streamCRC = 0;
+
+	private byte [] currentBlock = null;
+	private int currentPosition = 0;
+
+	/**
+	 * @param is The raw compressed data
+	 * @param threads How many blocks to decode at once
+	 * @throws IOException If this isn't a bzip2 file
+	 */
+	public ParallelBZip2InputStream (InputStream is, int threads) throws IOException {
+		// We look ahead after an end of stream marker to check it's real
+		if (!is.markSupported()) {
+			is = new BufferedInputStream(is);
+		}
+		this.is = is;
+		maxPending = threads*BLOCKS_PER_THREAD;
+
+		if (!readStreamHeader()) {
+			throw new IOException("Not in bzip2 format");
+		}
+
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Reads the 'BZh' header and block size at the start of a stream.
+	 *
+	 * @return false if there isn't another stream
+	 * @throws IOException
+	 */
+	private boolean readStreamHeader () throws IOException {
+		int [] header = new int[4];
+		for (int i=0;i<header.length;i++) {
+			header[i] = is.read();
+			if (header[i] < 0) return false;
+			bitPosition += 8;
+		}
+		if (header[0] != 'B' || header[1] != 'Z' || header[2] != 'h' || header[3] < '1' || header[3] > '9') {
+			return false;
+		}
+		blockSize = (header[3]-'0')*100000;
+		recentBits = 0;
+		return true;
+	}
+
+	/**
+	 * @return The next bit from the file, or -1 at the end of the file
+	 * @throws IOException
+	 */
+	private int readBit () throws IOException {
+		int shift = 7-(int)(bitPosition & 7);
+		if (shift == 7) {
+			currentByte = is.read();
+			if (currentByte < 0) return -1;
+
+			if (blockStartBit >= 0) {
+				if (blockDataLength == blockData.length) {
+					blockData = Arrays.copyOf(blockData, blockData.length*2);
+				}
+				blockData[blockDataLength++] = (byte)currentByte;
+			}
+		}
+		bitPosition++;
+		return (currentByte >>> shift) & 1;
+	}
+
+	/**
+	 * Scans on to the next marker, and queues up the piece of data which
+	 * ends there, if there is one.
+	 *
+	 * @return false if there's nothing more in the file
+	 * @throws IOException
+	 */
+	private boolean scanToNextMarker () throws IOException {
+		while (true) {
+			int bit = readBit();
+			if (bit < 0) {
+				if (blockStartBit >= 0) {
+					throw new IOException("bzip2 file ended part way through a block");
+				}
+				return false;
+			}
+
+			recentBits = ((recentBits << 1) | bit) & MARKER_MASK;
+
+			// After an end of stream marker comes the stream CRC, and then
+			// either the end of the file or the next stream.  If that's
+			// not what we find then the marker was part of a block.
+			if (endMarkerBit >= 0) {
+				endCRC = (endCRC << 1) | bit;
+				if (++endCRCBits == 32) {
+					if (streamFollows()) {
+						if (blockStartBit >= 0) {
+							queueBlock(endMarkerBit);
+						}
+						blockStartBit = -1;
+						endMarkerBit = -1;
+
+						Fragment end = new Fragment(-1, -1, null);
+						end.streamCRC = endCRC;
+						pending.add(end);
+
+						// Streams are padded out to a whole byte
+						bitPosition = (bitPosition+7) & ~7L;
+						return readStreamHeader();
+					}
+					endMarkerBit = -1;
+				}
+			}
+
+			if (recentBits == BLOCK_MARKER) {
+				endMarkerBit = -1;
+				if (blockStartBit >= 0) {
+					queueBlock(bitPosition-48);
+				}
+
+				// The new block starts in the byte we're part way through,
+				// unless the marker ended on a byte boundary.
+				blockStartBit = bitPosition;
+				if ((bitPosition & 7) != 0) {
+					blockData[0] = (byte)currentByte;
+					blockDataLength = 1;
+				}
+				else {
+					blockDataLength = 0;
+				}
+				return true;
+			}
+
+			if (recentBits == END_MARKER) {
+				endMarkerBit = bitPosition-48;
+				endCRC = 0;
+				endCRCBits = 0;
+			}
+		}
+	}
+
+	/**
+	 * Looks at what comes after a stream CRC without reading it.
+	 *
+	 * @return true if it's the end of the file or the start of another stream
+	 * @throws IOException
+	 */
+	private boolean streamFollows () throws IOException {
+		byte [] next = new byte[10];
+		is.mark(next.length);
+		int length = 0;
+		try {
+			while (length < next.length) {
+				int read = is.read(next, length, next.length-length);
+				if (read < 0) break;
+				length += read;
+			}
+		}
+		finally {
+			is.reset();
+		}
+
+		if (length == 0) return true;
+		if (length < next.length) return false;
+		if (next[0] != 'B' || next[1] != 'Z' || next[2] != 'h' || next[3] < '1' || next[3] > '9') return false;
+
+		long marker = 0;
+		for (int i=4;i<next.length;i++) {
+			marker = (marker << 8) | (next[i] & 0xff);
+		}
+		return marker == BLOCK_MARKER || marker == END_MARKER;
+	}
+
+	/**
+	 * Starts decoding the data from the start of the current block up
+	 * to a marker.
+	 *
+	 * @param endBit Where the marker starts
+	 */
+	private void queueBlock (long endBit) {
+		final Fragment fragment = new Fragment(blockStartBit, endBit, Arrays.copyOf(blockData, blockDataLength));
+		final int size = blockSize;
+
+		fragment.block = pool.submit(new Callable<Block>() {
+			public Block call() {
+				return decodeBlock(fragment, size);
+			}
+		});
+		pending.add(fragment);
+	}
+
+	/**
+	 * Decodes a block.  It has to end exactly where the next marker
+	 * starts, otherwise it's not really a whole block.
+	 *
+	 * @return The block, or the reason it couldn't be decoded
+	 */
+	private static Block decodeBlock (Fragment fragment, int blockSize) {
+		CountingInputStream counter = new CountingInputStream(new ByteArrayInputStream(fragment.data));
+		try {
+			BitInputStream bits = new BitInputStream(counter);
+			int bitOffset = (int)(fragment.startBit & 7);
+			if (bitOffset > 0) {
+				bits.readBits(bitOffset);
+			}
+
+			BZip2BlockDecompressor decompressor = new BZip2BlockDecompressor(bits, blockSize);
+
+			// We've read all of the compressed data by now, and we only
+			// ever read the byte holding the next bit we want.
+			long endBit = fragment.endBit-(fragment.startBit & ~7L);
+			if (counter.getCount()*8 < endBit || counter.getCount()*8 >= endBit+8) {
+				throw new IOException("bzip2 block didn't end at the next marker");
+			}
+
+			byte [] decoded = new byte[blockSize+(blockSize/4)];
+			int length = 0;
+			while (true) {
+				if (length == decoded.length) {
+					decoded = Arrays.copyOf(decoded, decoded.length*2);
+				}
+				int read = decompressor.read(decoded, length, decoded.length-length);
+				if (read < 0) break;
+				length += read;
+			}
+
+			int crc = decompressor.checkCRC();
+			return new Block(Arrays.copyOf(decoded, length), crc);
+		}
+		catch (IOException e) {
+			return new Block(e, counter.getCount() == fragment.data.length);
+		}
+		catch (RuntimeException e) {
+			// Random data can send the decompressor off the end of its tables
+			return new Block(new IOException("Corrupt bzip2 block"), counter.getCount() == fragment.data.length);
+		}
+	}
+
+	/**
+	 * @return The decoded block, or the reason it couldn't be decoded
+	 * @throws IOException
+	 */
+	private static Block waitFor (Fragment fragment) throws IOException {
+		try {
+			return fragment.block.get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted whilst decoding bzip2 block");
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Moves on to the next block if we've used up the current one.
+	 *
+	 * @return false if there's no more data
+	 * @throws IOException
+	 */
+	private boolean nextBlock () throws IOException {
+		while (currentBlock == null || currentPosition >= currentBlock.length) {
+
+			while (!endOfFile && pending.size() < maxPending) {
+				if (!scanToNextMarker()) {
+					endOfFile = true;
+				}
+			}
+
+			if (pending.isEmpty()) return false;
+
+			Fragment fragment = pending.removeFirst();
+
+			// The end of a stream, where we check the combined CRC
+			if (fragment.data == null) {
+				if (fragment.streamCRC != streamCRC) {
+					throw new IOException("bzip2 stream CRC error");
+				}
+				streamCRC = 0;
+				continue;
+			}
+
+			// If a block won't decode then it might have been cut short by
+			// a false marker, so we join it to the next piece and try again.
+			// What we report if that doesn't work is why the first piece
+			// which didn't just run out of data failed.
+			Block block = waitFor(fragment);
+			Block failure = block;
+			while (block.error != null) {
+				if (failure.ranOut) {
+					failure = block;
+				}
+
+				while (pending.isEmpty() && !endOfFile) {
+					if (!scanToNextMarker()) {
+						endOfFile = true;
+					}
+				}
+				if (pending.isEmpty() || pending.getFirst().data == null || fragment.data.length > blockSize*MAX_JOINED_BLOCKS) {
+					throw failure.error;
+				}
+
+				Fragment next = pending.removeFirst();
+				next.block.cancel(false);
+				fragment = fragment.join(next);
+				block = decodeBlock(fragment, blockSize);
+			}
+
+			streamCRC = ((streamCRC << 1) | (streamCRC >>> 31)) ^ block.crc;
+			currentBlock = block.data;
+			currentPosition = 0;
+		}
+		return true;
+	}
+
+	public int read () throws IOException {
+		if (!nextBlock()) return -1;
+		return currentBlock[currentPosition++] & 0xff;
+	}
+
+	public int read (byte [] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!nextBlock()) return -1;
+
+		int read = Math.min(length, currentBlock.length-currentPosition);
+		System.arraycopy(currentBlock, currentPosition, buffer, offset, read);
+		currentPosition += read;
+		return read;
+	}
+
+	public void close () throws IOException {
+		pool.shutdownNow();
+		pending.clear();
+		is.close();
+	}
+
+	/**
+	 * The data between two markers, which should be a whole block.  With
+	 * no data it stands for the end of a stream.
+	 */
+	private static class Fragment {
+
+		// The first bit after the marker at the start, and the first bit
+		// of the marker at the end.  The data starts with the byte which
+		// holds the first bit.
+		private long startBit;
+		private long endBit;
+		private byte [] data;
+
+		private Future<Block> block;
+		private int streamCRC;
+
+		public Fragment (long startBit, long endBit, byte [] data) {
+			this.startBit = startBit;
+			this.endBit = endBit;
+			this.data = data;
+		}
+
+		/**
+		 * @param next The fragment which comes straight after this one
+		 * @return Both fragments, with the marker between them, as one
+		 */
+		public Fragment join (Fragment next) {
+			// The byte the marker ends in is at the end of this fragment
+			// and also at the start of the next, unless the marker ended
+			// on a byte boundary.
+			int overlap = ((next.startBit & 7) != 0) ? 1 : 0;
+			byte [] joined = Arrays.copyOf(data, data.length+next.data.length-overlap);
+			System.arraycopy(next.data, overlap, joined, data.length, next.data.length-overlap);
+			return new Fragment(startBit, next.endBit, joined);
+		}
+	}
+
+	/**
+	 * A decoded block, or the reason it couldn't be decoded
+	 */
+	private static class Block {
+
+		private byte [] data;
+		private int crc;
+		private IOException error = null;
+		private boolean ranOut = false;
+
+		public Block (byte [] data, int crc) {
+			this.data = data;
+			this.crc = crc;
+		}
+
+		/**
+		 * @param error Why the block couldn't be decoded
+		 * @param ranOut Whether we used up all of the data first
+		 */
+		public Block (IOException error, boolean ranOut) {
+			this.error = error;
+			this.ranOut = ranOut;
+		}
+	}
+
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+
+/**
+ * Decompresses an ordinary gzip file on several threads, in the same
+ * way as pugz.  The compressed file is cut into chunks, and for each
+ * chunk we look for the first deflate block which starts in it and
+ * decode from there without knowing the data before it.  Once the
+ * chunk before has been finished we know that data, and we can fill
+ * in the back references we couldn't follow.
+ *
+ * Finding block starts relies on the data being text, which FastQ is.
+ * If we find the wrong place, or can't find one at all, we just decode
+ * that chunk again on its own once we know where it really starts.
+ *
+ * If we've got an index for the file then we don't need to guess, and
+ * each chunk runs from one access point to the next.  We can also build
+ * an index as we go, since we find out where every chunk really starts.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+	// How much compressed data each thread works on at a time
+	public static final int CHUNK_SIZE = 4*1024*1024;
+
+	// Our decoder is a good deal slower than zlib, so it's not worth
+	// doing this with fewer threads than this.
+	public static final int MIN_THREADS = 4;
+
+	private FileInputStream fis;
+	private FileChannel channel;
+	private long length;
+
+	private ExecutorService pool;
+	private int maxPending;
+	private LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+	private long nextChunk = 0;
+	private long chunkCount;
+
+	// Where the deflate data starts, after the gzip header
+	private long dataStartBit;
+
+	// Where the next chunk should start, and the 32kb which came
+	// before it.  The window is always full size with the valid data
+	// at the end.
+	private long expectedBit;
+	private byte [] window = new byte[DeflateDecoder.WINDOW_SIZE];
+	private int windowLength = 0;
+
+	private CRC32 crc = new CRC32();
+	private long totalLength = 0;
+
+	// Used for chunks we have to decode again on this thread
+	private DeflateDecoder exactDecoder = null;
+
+	// The index we're either reading chunks from or adding to
+	private GzipIndex index = null;
+	private boolean buildingIndex = false;
+
+	private byte [] currentBlock = null;
+	private int currentPosition = 0;
+	private boolean finished = false;
+
+	// Any gzip members after the first are read normally through this
+	private InputStream remainder = null;
+
+	/**
+	 * @param fis The gzip file.  We read it through its channel, and we move
+	 * the channel's position along as we go so progress can be tracked.
+	 * @param threads How many chunks to decode at once
+	 * @throws IOException If this isn't a gzip file
+	 */
+	public ParallelGzipInputStream (FileInputStream fis, int threads) throws IOException {
+		this(fis, threads, null);
+	}
+
+	/**
+	 * @param fis The gzip file.  We read it through its channel, and we move
+	 * the channel's position along as we go so progress can be tracked.
+	 * @param threads How many chunks to decode at once
+	 * @param index An index of the file to split it up with.  If it's empty
+	 * we fill it in and save it once we've checked the data.
+	 * @throws IOException If this isn't a gzip file
+	 */
+	public ParallelGzipInputStream (FileInputStream fis, int threads, GzipIndex index) throws IOException {
+		this.fis = fis;
+		this.index = index;
+		channel = fis.getChannel();
+		length = channel.size();
+
+		if (index != null && index.size() > 0) {
+			chunkCount = index.size();
+		}
+		else {
+			chunkCount = (length+CHUNK_SIZE-1)/CHUNK_SIZE;
+			buildingIndex = index != null;
+		}
+
+		dataStartBit = readHeader()*8;
+		expectedBit = dataStartBit;
+
+		maxPending = threads+1;
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Reads the gzip header.
+	 *
+	 * @return The offset of the first byte after the header
+	 * @throws IOException
+	 */
+	private long readHeader () throws IOException {
+		byte [] header = readBytes(0, 10);
+		if ((header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b || header[2] != 8) {
+			throw new IOException("Not in GZIP format");
+		}
+
+		int flags = header[3];
+		long position = 10;
+
+		// Extra field
+		if ((flags & 4) != 0) {
+			byte [] extraLength = readBytes(position, 2);
+			position += 2+((extraLength[0] & 0xff) | ((extraLength[1] & 0xff) << 8));
+		}
+
+		// File name and comment, which are zero terminated
+		for (int flag=8;flag<=16;flag*=2) {
+			if ((flags & flag) != 0) {
+				while (readBytes(position++, 1)[0] != 0) {}
+			}
+		}
+
+		// Header CRC
+		if ((flags & 2) != 0) {
+			position += 2;
+		}
+
+		return position;
+	}
+
+	private byte [] readBytes (long position, int count) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(count);
+		while (bb.hasRemaining()) {
+			if (channel.read(bb, position+bb.position()) < 0) {
+				throw new IOException("Unexpected end of GZIP data");
+			}
+		}
+		return bb.array();
+	}
+
+	/**
+	 * Keeps the thread pool busy with chunks.
+	 */
+	private void queueChunks () {
+		while (pending.size() < maxPending && nextChunk < chunkCount) {
+			final long chunk = nextChunk++;
+			pending.add(pool.submit(new Callable<Chunk>() {
+				public Chunk call() throws IOException {
+					return decodeChunk(chunk);
+				}
+			}));
+		}
+	}
+
+	/**
+	 * @param chunk Which chunk
+	 * @return The bit at or after which the chunk ends at a block boundary
+	 */
+	private long chunkEndBit (long chunk) {
+		if (index != null && !buildingIndex) {
+			if (chunk+1 < index.size()) {
+				return index.startBit((int)chunk+1);
+			}
+			return Long.MAX_VALUE;
+		}
+		return (chunk+1)*CHUNK_SIZE*8;
+	}
+
+	private Chunk decodeChunk (long chunk) throws IOException {
+		long fromBit = Math.max(chunk*CHUNK_SIZE*8, dataStartBit);
+		long toBit = chunkEndBit(chunk);
+
+		DeflateDecoder decoder = new DeflateDecoder(channel);
+
+		// With an index we know exactly where every chunk starts
+		if (index != null && !buildingIndex) {
+			byte [] data = index.decodeChunk(decoder, (int)chunk);
+			return new Chunk(chunk, index.startBit((int)chunk), decoder, data);
+		}
+
+		try {
+			// We know exactly where the first chunk starts, and that
+			// there's no data before it.
+			long startBit;
+			if (chunk == 0) {
+				startBit = dataStartBit;
+				decoder.decode(startBit, toBit, window, 0);
+			}
+			else {
+				startBit = decoder.findBlockStart(fromBit, toBit);
+				if (startBit < 0) return new Chunk(chunk, -1, null, null);
+				decoder.decode(startBit, toBit, null, 0);
+			}
+			return new Chunk(chunk, startBit, decoder, null);
+		}
+		catch (DataFormatException dfe) {
+			// We didn't really find the start of a block
+			return new Chunk(chunk, -1, null, null);
+		}
+	}
+
+	/**
+	 * Moves on to the next decoded chunk if we've used up this one.
+	 *
+	 * @return false if there's no more data
+	 * @throws IOException
+	 */
+	private boolean nextBlock () throws IOException {
+		while (currentBlock == null || currentPosition >= currentBlock.length) {
+
+			if (remainder != null) return false;
+			if (finished || (pending.isEmpty() && nextChunk >= chunkCount)) {
+				if (!finished) {
+					throw new IOException("Unexpected end of GZIP data");
+				}
+				return false;
+			}
+
+			queueChunks();
+
+			Chunk chunk;
+			try {
+				chunk = pending.removeFirst().get();
+			}
+			catch (InterruptedException e) {
+				throw new IOException("Interrupted whilst decompressing");
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				}
+				throw new IOException(e.getCause().getMessage());
+			}
+
+			// Every chunk we stitch on starts somewhere we know is right,
+			// so it makes a good access point.
+			if (buildingIndex && (index.size() == 0 || index.startBit(index.size()-1) != expectedBit)) {
+				index.addPoint(expectedBit, totalLength, window, windowLength);
+			}
+
+			try {
+				// If the chunk didn't start where the last one finished then
+				// we guessed wrong, and we have to decode it again.
+				DeflateDecoder decoder = chunk.decoder;
+				if (chunk.startBit != expectedBit) {
+					if (exactDecoder == null) {
+						exactDecoder = new DeflateDecoder(channel);
+					}
+					decoder = exactDecoder;
+					decoder.decode(expectedBit, chunkEndBit(chunk.index), window, windowLength);
+					currentBlock = decoder.resolve(window, windowLength);
+				}
+				else if (chunk.data != null) {
+					currentBlock = chunk.data;
+				}
+				else {
+					currentBlock = decoder.resolve(window, windowLength);
+				}
+				currentPosition = 0;
+				expectedBit = decoder.endBit();
+
+				if (decoder.reachedFinalBlock()) {
+					finished = true;
+				}
+			}
+			catch (DataFormatException dfe) {
+				throw new IOException("Corrupt GZIP data: "+dfe.getMessage());
+			}
+
+			crc.update(currentBlock, 0, currentBlock.length);
+			totalLength += currentBlock.length;
+			updateWindow(currentBlock);
+
+			// Let anyone watching the file position see how far we've got
+			channel.position(Math.min(length, expectedBit/8));
+
+			if (finished) {
+				finish();
+			}
+		}
+		return true;
+	}
+
+	private void updateWindow (byte [] data) {
+		if (data.length >= window.length) {
+			System.arraycopy(data, data.length-window.length, window, 0, window.length);
+			windowLength = window.length;
+		}
+		else {
+			System.arraycopy(window, data.length, window, 0, window.length-data.length);
+			System.arraycopy(data, 0, window, window.length-data.length, data.length);
+			windowLength = Math.min(window.length, windowLength+data.length);
+		}
+	}
+
+	/**
+	 * Checks the gzip trailer once we've reached the end of the deflate data,
+	 * and sets up a normal stream for any members which come after it.
+	 *
+	 * @throws IOException
+	 */
+	private void finish () throws IOException {
+		stopDecoding();
+
+		long trailer = (expectedBit+7)/8;
+		byte [] check = readBytes(trailer, 8);
+		int expectedCrc = (check[0] & 0xff) | ((check[1] & 0xff) << 8) | ((check[2] & 0xff) << 16) | ((check[3] & 0xff) << 24);
+		int expectedLength = (check[4] & 0xff) | ((check[5] & 0xff) << 8) | ((check[6] & 0xff) << 16) | ((check[7] & 0xff) << 24);
+
+		if ((int)crc.getValue() != expectedCrc || (int)totalLength != expectedLength) {
+			throw new IOException("GZIP data failed its CRC check");
+		}
+
+		if (buildingIndex) {
+			index.save();
+		}
+
+		// Concatenated gzip files are allowed, but we can't read the
+		// later members in parallel.
+		long next = trailer+8;
+		if (next+2 <= length) {
+			byte [] magic = readBytes(next, 2);
+			if ((magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+				channel.position(next);
+				remainder = new ReadAheadInputStream(new GzipInputStream(fis));
+			}
+		}
+	}
+
+	/**
+	 * Drops any chunks we haven't used.  We can't interrupt the threads
+	 * which are decoding them since an interrupted read closes the file
+	 * channel, so we let them finish and throw the results away.
+	 */
+	private void stopDecoding () {
+		while (!pending.isEmpty()) {
+			pending.removeFirst().cancel(false);
+		}
+		pool.shutdown();
+	}
+
+	public int read () throws IOException {
+		if (!nextBlock()) {
+			if (remainder != null) return remainder.read();
+			return -1;
+		}
+		return currentBlock[currentPosition++] & 0xff;
+	}
+
+	public int read (byte [] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!nextBlock()) {
+			if (remainder != null) return remainder.read(buffer, offset, length);
+			return -1;
+		}
+
+		int read = Math.min(length, currentBlock.length-currentPosition);
+		System.arraycopy(currentBlock, currentPosition, buffer, offset, read);
+		currentPosition += read;
+		return read;
+	}
+
+	public void close () throws IOException {
+		stopDecoding();
+		if (remainder != null) {
+			remainder.close();
+		}
+		fis.close();
+	}
+
+	/**
+	 * The result of decoding one chunk.
+	 */
+	private class Chunk {
+
+		private long index;
+
+		// Where we started decoding, or -1 if we couldn't
+		private long startBit;
+		private DeflateDecoder decoder;
+
+		// The decoded data if we already know it
+		private byte [] data;
+
+		public Chunk (long index, long startBit, DeflateDecoder decoder, byte [] data) {
+			this.index = index;
+			this.startBit = startBit;
+			this.decoder = decoder;
+			this.data = data;
+		}
+	}
+
+}
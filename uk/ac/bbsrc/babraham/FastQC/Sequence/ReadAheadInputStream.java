@@ -0,0 +1,191 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads from another stream on a separate thread so that whatever that
+ * stream has to do (usually decompression) can happen at the same time
+ * as we're analysing the data it's already produced.  Data is passed
+ * over in large blocks through a short queue so the reading thread can
+ * only get a little way ahead of us.
+ */
+public class ReadAheadInputStream extends InputStream implements Runnable {
+
+	// How much data we pass over at once
+	private static final int BLOCK_SIZE = 4*1024*1024;
+
+	// How many blocks the reading thread can get ahead of us
+	private static final int QUEUE_SIZE = 4;
+
+	private InputStream is;
+
+	private BlockingQueue<Block> filledBlocks = new ArrayBlockingQueue<Block>(QUEUE_SIZE);
+
+	// Blocks we've finished with go back to the reading thread so
+	// we're not allocating a new block for every read.
+	private BlockingQueue<Block> emptyBlocks = new ArrayBlockingQueue<Block>(QUEUE_SIZE+2);
+
+	private Block currentBlock = null;
+	private int currentPosition = 0;
+
+	private Thread thread;
+	private volatile boolean closed = false;
+
+	public ReadAheadInputStream (InputStream is) {
+		this.is = is;
+		thread = new Thread(this);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void run () {
+		Block block = null;
+		try {
+			while (!closed) {
+				block = emptyBlocks.poll();
+				if (block == null) {
+					block = new Block();
+				}
+
+				// We fill the whole block if we can, since the streams
+				// we read from often hand back only a little at a time.
+				block.length = 0;
+				while (block.length < block.data.length) {
+					int read = is.read(block.data, block.length, block.data.length-block.length);
+					if (read < 0) break;
+					block.length += read;
+				}
+
+				if (block.length == 0) {
+					block.length = -1;
+					filledBlocks.put(block);
+					return;
+				}
+				filledBlocks.put(block);
+				block = null;
+			}
+		}
+		catch (InterruptedException e) {
+			// We've been closed
+		}
+		catch (IOException e) {
+			fail(block, e);
+		}
+		catch (Throwable t) {
+			// Anything else has to reach the reader too, or it would wait
+			// for a block which never comes.
+			IOException ioe = new IOException(t.toString());
+			ioe.initCause(t);
+			fail(block, ioe);
+		}
+	}
+
+	/**
+	 * Passes an error on to whoever reads the blocks, after whatever we'd
+	 * managed to read before it, so a damaged file still gives up all of
+	 * the data before the damage.
+	 *
+	 * @param block The block we were filling, or null
+	 * @param e The error
+	 */
+	private void fail (Block block, IOException e) {
+		try {
+			if (block != null && block.length > 0) {
+				filledBlocks.put(block);
+			}
+			Block error = new Block(0);
+			error.length = -1;
+			error.exception = e;
+			filledBlocks.put(error);
+		}
+		catch (InterruptedException ie) {
+			// We've been closed
+		}
+	}
+
+	/**
+	 * Moves on to the next block if we've used up the current one.
+	 *
+	 * @return false if there is no more data
+	 * @throws IOException
+	 */
+	private boolean nextBlock () throws IOException {
+		if (currentBlock != null) {
+			if (currentBlock.length < 0) return false;
+			if (currentPosition < currentBlock.length) return true;
+			emptyBlocks.offer(currentBlock);
+		}
+
+		try {
+			currentBlock = filledBlocks.take();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted whilst waiting for data");
+		}
+		currentPosition = 0;
+
+		if (currentBlock.exception != null) {
+			throw currentBlock.exception;
+		}
+		return currentBlock.length >= 0;
+	}
+
+	public int read () throws IOException {
+		if (!nextBlock()) return -1;
+		return currentBlock.data[currentPosition++] & 0xff;
+	}
+
+	public int read (byte [] buffer, int offset, int length) throws IOException {
+		if (length == 0) return 0;
+		if (!nextBlock()) return -1;
+
+		int read = Math.min(length, currentBlock.length-currentPosition);
+		System.arraycopy(currentBlock.data, currentPosition, buffer, offset, read);
+		currentPosition += read;
+		return read;
+	}
+
+	public void close () throws IOException {
+		closed = true;
+		thread.interrupt();
+		is.close();
+	}
+
+	private class Block {
+
+		private byte [] data;
+		private int length = 0;
+		private IOException exception = null;
+
+		public Block () {
+			this(BLOCK_SIZE);
+		}
+
+		public Block (int size) {
+			data = new byte[size];
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+
+/**
+ * The reads of one category (one of the read numbers 0-5) in a BAM file
+ * which is being read for all categories at once.  Like a MateFile this
+ * has no sequences of its own to read.  It's the file that the sequences
+ * of its category say they came from, so that whoever is reading the BAM
+ * file can send them to the right place, and it stands in for the BAM
+ * file in that category's report.
+ */
+public class ReadCategoryFile implements SequenceFile {
+
+	private SequenceFile file;
+	private int read;
+
+	/**
+	 * @param file The BAM file
+	 * @param read The read number of this category
+	 */
+	public ReadCategoryFile (SequenceFile file, int read) {
+		this.file = file;
+		this.read = read;
+	}
+
+	/**
+	 * @return The read number of this category
+	 */
+	public int read () {
+		return read;
+	}
+
+	public boolean hasNext() {
+		return false;
+	}
+
+	public Sequence next() throws SequenceFormatException {
+		throw new SequenceFormatException("Sequences for read "+read+" have to be read from "+file.name());
+	}
+
+	public boolean isColorspace() {
+		return file.isColorspace();
+	}
+
+	public String name() {
+		return file.name();
+	}
+
+	public int getPercentComplete() {
+		return file.getPercentComplete();
+	}
+
+	public long getBytesRead() {
+		return file.getBytesRead();
+	}
+
+	public File getFile() {
+		return file.getFile();
+	}
+
+}
@@ -0,0 +1,349 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Reads a random sample of the records in an uncompressed FastQ file
+ * without reading the rest of it.  We jump to random places in the file,
+ * move on to the next record and read a short run of records from there.
+ * This gives a quick picture of a very large file.
+ *
+ * The sample is either a number of reads or a percentage of the file,
+ * given as "100000" or "5%".  We always use the same random seed so the
+ * same file gives the same sample each time.
+ */
+public class SampledFastQFile extends FastQFile {
+
+	// How many records we read each time we jump.  Fewer makes a more
+	// random sample, but each jump costs us a seek.
+	private static final int RECORDS_PER_JUMP = 100;
+
+	// How many records at the start of the file we use to work out
+	// how many records the whole file holds.
+	private static final int ESTIMATE_RECORDS = 1000;
+
+	static final long SEED = 0x46617374514cL;
+
+	private FileChannel channel;
+
+	// The parts of the file we're going to read.  Each one starts at a
+	// record and ends at the start of another record.
+	private long [] starts;
+	private long [] ends;
+
+	private int currentRange = 0;
+	private long position;
+
+	private SampledFastQFile (File file, FileChannel channel, long [] starts, long [] ends, long sampleSize) throws SequenceFormatException {
+		super(file, sampleSize);
+		this.channel = channel;
+		this.starts = starts;
+		this.ends = ends;
+		if (starts.length > 0) {
+			position = starts[0];
+		}
+		readNext();
+	}
+
+	/**
+	 * Makes a sample of a file.  A number of reads gives exactly that many
+	 * reads, unless the file has fewer.  A percentage gives that fraction
+	 * of the file's bytes, rounded up to a whole record.
+	 *
+	 * @param file An uncompressed FastQ file
+	 * @param sample How much to read, as a number of reads or a percentage
+	 * @return The file to read
+	 * @throws SequenceFormatException If we can't understand the sample size
+	 * @throws IOException
+	 */
+	public static FastQFile sample (File file, String sample) throws SequenceFormatException, IOException {
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		long fileLength = channel.size();
+		MappedFastQFile.RecordFinder finder = new MappedFastQFile.RecordFinder(channel, fileLength);
+
+		// We either want a number of reads or a number of bytes
+		boolean byBytes = sample.endsWith("%");
+		long wanted;
+		try {
+			wanted = sampleSize(sample, fileLength);
+		}
+		catch (SequenceFormatException sfe) {
+			channel.close();
+			throw sfe;
+		}
+
+		if (byBytes && wanted >= fileLength) {
+			channel.close();
+			return new MappedFastQFile(file);
+		}
+
+		long jumps = jumps(byBytes, wanted, bytesPerRecord(finder, 0), fileLength);
+
+		// We read the places we jump to in order so we only ever move
+		// forward through the file.
+		Random random = new Random(SEED);
+		long [] offsets = new long[(int)jumps];
+		for (int j=0;j<offsets.length;j++) {
+			offsets[j] = (long)(random.nextDouble()*fileLength);
+		}
+		Arrays.sort(offsets);
+
+		// Any ranges which fill in gaps come after the rest, so we put
+		// them back in order before we join them up.
+		Sampler sampler = new Sampler(finder, fileLength, byBytes, wanted, offsets);
+		ArrayList<long []> taken = new ArrayList<long []>();
+		for (long [] range = sampler.nextRange();range != null;range = sampler.nextRange()) {
+			taken.add(range);
+		}
+		Collections.sort(taken, new Comparator<long []>() {
+			public int compare (long [] a, long [] b) {
+				return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+			}
+		});
+		ArrayList<long []> ranges = new ArrayList<long []>();
+		for (int r=0;r<taken.size();r++) {
+			addRange(ranges, taken.get(r)[0], taken.get(r)[1]);
+		}
+
+		long [] starts = new long[ranges.size()];
+		long [] ends = new long[ranges.size()];
+		long sampleSize = 0;
+		for (int r=0;r<ranges.size();r++) {
+			starts[r] = ranges.get(r)[0];
+			ends[r] = ranges.get(r)[1];
+			sampleSize += ends[r]-starts[r];
+		}
+
+		return new SampledFastQFile(file, channel, starts, ends, sampleSize);
+	}
+
+	/**
+	 * Works out how much a sample size asks for.
+	 *
+	 * @param sample A number of reads, or a percentage ending in %
+	 * @param length How many bytes of data there are
+	 * @return The number of reads, or for a percentage the number of bytes
+	 * @throws SequenceFormatException If we can't understand the sample size
+	 */
+	static long sampleSize (String sample, long length) throws SequenceFormatException {
+		long wanted;
+		try {
+			if (sample.endsWith("%")) {
+				wanted = (long)Math.ceil((length*Double.parseDouble(sample.substring(0, sample.length()-1)))/100);
+			}
+			else {
+				wanted = Long.parseLong(sample);
+			}
+		}
+		catch (NumberFormatException nfe) {
+			throw new SequenceFormatException("Didn't understand sample size '"+sample+"'");
+		}
+
+		if (wanted <= 0) {
+			throw new SequenceFormatException("Sample size must be more than zero, not '"+sample+"'");
+		}
+		return wanted;
+	}
+
+	/**
+	 * @param finder Finds records in the data
+	 * @param position Where to start looking
+	 * @return The average length of the records from there on
+	 * @throws IOException
+	 */
+	static double bytesPerRecord (MappedFastQFile.RecordFinder finder, long position) throws IOException {
+		long estimateStart = finder.findRecordStart(position);
+		long estimateEnd = finder.skipRecords(estimateStart, ESTIMATE_RECORDS);
+		return (double)(estimateEnd-estimateStart)/ESTIMATE_RECORDS;
+	}
+
+	/**
+	 * Each jump reads about RECORDS_PER_JUMP records.  For a number of
+	 * bytes we work out how many jumps that is from the length of the
+	 * records.
+	 *
+	 * @return How many places to jump to
+	 */
+	static long jumps (boolean byBytes, long wanted, double bytesPerRecord, long length) {
+		long jumps;
+		if (byBytes) {
+			jumps = (long)Math.ceil(wanted/Math.max(bytesPerRecord*RECORDS_PER_JUMP, 1));
+		}
+		else {
+			jumps = (wanted+RECORDS_PER_JUMP-1)/RECORDS_PER_JUMP;
+		}
+		return Math.max(1, Math.min(jumps, length));
+	}
+
+	/**
+	 * Adds a range to the end of a list, joining it on to the last range
+	 * if they touch.
+	 */
+	private static void addRange (ArrayList<long []> ranges, long start, long end) {
+		if (end <= start) return;
+		if (!ranges.isEmpty() && ranges.get(ranges.size()-1)[1] == start) {
+			ranges.get(ranges.size()-1)[1] = end;
+		}
+		else {
+			ranges.add(new long [] {start, end});
+		}
+	}
+
+	/**
+	 * Picks the runs of records which make up a sample, one at a time and
+	 * moving forward through the data.  Each jump reads until we've got
+	 * its share of the sample, so the sample is spread evenly over the
+	 * jumps and the last one stops as soon as we have everything.  If we
+	 * run off the end of the data we make up the rest from the gaps we
+	 * jumped over, so we still read as much as we were asked for unless
+	 * there's less data than that.
+	 */
+	static class Sampler {
+
+		private MappedFastQFile.RecordFinder finder;
+		private long length;
+		private boolean byBytes;
+		private long wanted;
+		private long [] offsets;
+
+		private long reads = 0;
+		private long bytes = 0;
+
+		private int jump = 0;
+		private long lastEnd = 0;
+		private ArrayList<long []> jumped = new ArrayList<long []>();
+		private int gap = 0;
+
+		/**
+		 * @param finder Finds records in the data
+		 * @param length How much data there is
+		 * @param byBytes Whether we want a number of bytes rather than reads
+		 * @param wanted How many reads or bytes we want
+		 * @param offsets The places to jump to, in order
+		 */
+		public Sampler (MappedFastQFile.RecordFinder finder, long length, boolean byBytes, long wanted, long [] offsets) {
+			this.finder = finder;
+			this.length = length;
+			this.byBytes = byBytes;
+			this.wanted = wanted;
+			this.offsets = offsets;
+		}
+
+		/**
+		 * @return The start and end of the next run of records, or null
+		 * once we've got the whole sample.
+		 * @throws IOException
+		 */
+		public long [] nextRange () throws IOException {
+			while (jump < offsets.length && !done()) {
+				long start = finder.findRecordStart(Math.max(offsets[jump], lastEnd));
+				if (start >= length) {
+					jump = offsets.length;
+					break;
+				}
+				long end = take(start, length, (long)Math.ceil(((double)wanted*(jump+1))/offsets.length));
+				++jump;
+				lastEnd = end;
+				if (end > start) {
+					long [] range = new long [] {start, end};
+					jumped.add(range);
+					return range;
+				}
+			}
+
+			while (!done() && gap <= jumped.size()) {
+				long gapStart = (gap > 0) ? jumped.get(gap-1)[1] : 0;
+				long gapEnd = (gap < jumped.size()) ? jumped.get(gap)[0] : length;
+				++gap;
+				if (gapStart < gapEnd) {
+					long start = finder.findRecordStart(gapStart);
+					if (start < gapEnd) {
+						long end = take(start, gapEnd, wanted);
+						if (end > start) return new long [] {start, end};
+					}
+				}
+			}
+
+			return null;
+		}
+
+		private boolean done () {
+			return (byBytes ? bytes : reads) >= wanted;
+		}
+
+		/**
+		 * Takes whole records until we've got a given amount in total.
+		 *
+		 * @param start The start of the first record
+		 * @param limit Where we have to stop, which must be a record start or the end of the data
+		 * @param target How many reads or bytes we want to have taken by the end
+		 * @return Where we stopped, which is the start of the next record
+		 * @throws IOException
+		 */
+		private long take (long start, long limit, long target) throws IOException {
+			long position = start;
+			while (position < limit && (byBytes ? bytes : reads) < Math.min(target, wanted)) {
+				long next = finder.skipRecords(position, 1);
+				bytes += next-position;
+				++reads;
+				position = next;
+			}
+			return position;
+		}
+	}
+
+	public int getPercentComplete() {
+		if (fileSize() == 0) return 100;
+		return (int) (((double)dataPosition()/ fileSize())*100);
+	}
+
+	protected int readData (byte [] buffer, int offset, int length) throws IOException {
+		while (currentRange < starts.length && position >= ends[currentRange]) {
+			++currentRange;
+			if (currentRange < starts.length) {
+				position = starts[currentRange];
+			}
+		}
+		if (currentRange >= starts.length) return -1;
+
+		ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, (int)Math.min(length, ends[currentRange]-position));
+		int read = channel.read(bytes, position);
+		if (read < 0) return -1;
+		position += read;
+		return read;
+	}
+
+	protected void closeData () throws IOException {
+		channel.close();
+	}
+
+}
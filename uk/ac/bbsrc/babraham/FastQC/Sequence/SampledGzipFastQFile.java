@@ -0,0 +1,318 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Reads a random sample of the records in a gzip file which has an index
+ * of access points.  Rather than decompressing the whole file we pick
+ * random chunks between access points, decompress just those, and take
+ * runs of records from random places in them in the same way as
+ * SampledFastQFile does for uncompressed files.
+ *
+ * Since we never see all of the data we can't check the gzip CRC.
+ */
+public class SampledGzipFastQFile extends FastQFile {
+
+	// We decompress enough chunks that the sample is no more than this
+	// fraction of what we decompress, so it doesn't all come from one
+	// or two places in the file.
+	private static final int CHUNK_SHARE = 4;
+
+	private FileChannel channel;
+	private Chunks chunks;
+	private SampledFastQFile.Sampler sampler;
+
+	private long [] range = null;
+	private long position;
+
+	private SampledGzipFastQFile (File file, FileChannel channel, Chunks chunks, SampledFastQFile.Sampler sampler, long sampleSize) throws SequenceFormatException {
+		super(file, sampleSize);
+		this.channel = channel;
+		this.chunks = chunks;
+		this.sampler = sampler;
+		readNext();
+	}
+
+	/**
+	 * Makes a sample of a gzip file in the same way as SampledFastQFile,
+	 * with a percentage taken as a fraction of the uncompressed data.
+	 *
+	 * @param file A gzip FastQ file
+	 * @param index The index of the file
+	 * @param sample How much to read, as a number of reads or a percentage
+	 * @return The file to read, or null if the index doesn't cover the whole file
+	 * @throws SequenceFormatException If we can't understand the sample size
+	 * @throws IOException
+	 */
+	public static FastQFile sample (File file, GzipIndex index, String sample) throws SequenceFormatException, IOException {
+
+		FileChannel channel = new FileInputStream(file).getChannel();
+		Chunks chunks = Chunks.open(channel, index);
+		if (chunks == null) {
+			channel.close();
+			return null;
+		}
+
+		long length = chunks.length();
+		boolean byBytes = sample.endsWith("%");
+		long wanted;
+		try {
+			wanted = SampledFastQFile.sampleSize(sample, length);
+		}
+		catch (SequenceFormatException sfe) {
+			channel.close();
+			throw sfe;
+		}
+
+		if (byBytes && wanted >= length) {
+			channel.close();
+			return new FastQFile(file, Codec.GZIP);
+		}
+
+		// We've already decompressed the last chunk to find out how long
+		// the data is, so we use its records to estimate the rest.
+		MappedFastQFile.RecordFinder finder = new ChunkFinder(chunks);
+		double bytesPerRecord = SampledFastQFile.bytesPerRecord(finder, index.uncompressedOffset(index.size()-1));
+		long sampleSize = byBytes ? wanted : (long)Math.ceil(wanted*bytesPerRecord);
+		long jumps = SampledFastQFile.jumps(byBytes, wanted, bytesPerRecord, length);
+
+		// Pick which chunks to decompress, and keep them in order so we
+		// only move forward through the file.
+		Random random = new Random(SampledFastQFile.SEED);
+		int chunkCount = (int)Math.min(index.size(), Math.max(1, Math.ceil(((double)sampleSize*CHUNK_SHARE*index.size())/length)));
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for (int c=0;c<index.size();c++) {
+			order.add(c);
+		}
+		Collections.shuffle(order, random);
+		ArrayList<Integer> chosen = new ArrayList<Integer>(order.subList(0, chunkCount));
+		Collections.sort(chosen);
+
+		long chosenLength = 0;
+		for (int c=0;c<chosen.size();c++) {
+			chosenLength += chunks.chunkLength(chosen.get(c));
+		}
+
+		// The places we jump to are spread at random over the chunks we chose
+		long [] offsets = new long[(int)jumps];
+		for (int j=0;j<offsets.length;j++) {
+			long offset = (long)(random.nextDouble()*chosenLength);
+			int c = 0;
+			while (c < chosen.size()-1 && offset >= chunks.chunkLength(chosen.get(c))) {
+				offset -= chunks.chunkLength(chosen.get(c));
+				++c;
+			}
+			offsets[j] = index.uncompressedOffset(chosen.get(c))+offset;
+		}
+		Arrays.sort(offsets);
+
+		SampledFastQFile.Sampler sampler = new SampledFastQFile.Sampler(finder, length, byBytes, wanted, offsets);
+		return new SampledGzipFastQFile(file, channel, chunks, sampler, sampleSize);
+	}
+
+	public int getPercentComplete() {
+		if (fileSize() <= 0) return 100;
+		return (int)Math.min(100, ((double)dataPosition()/ fileSize())*100);
+	}
+
+	protected int readData (byte [] buffer, int offset, int length) throws IOException {
+		// We pick each run of records as we get to it, so the chunks it
+		// comes from have only just been decompressed.
+		while (range == null || position >= range[1]) {
+			range = sampler.nextRange();
+			if (range == null) return -1;
+			position = range[0];
+		}
+
+		int read = chunks.read(position, buffer, offset, (int)Math.min(length, range[1]-position));
+		position += read;
+		return read;
+	}
+
+	protected void closeData () throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Finds records in the decompressed data
+	 */
+	private static class ChunkFinder extends MappedFastQFile.RecordFinder {
+
+		private Chunks chunks;
+
+		public ChunkFinder (Chunks chunks) {
+			super(null, chunks.length());
+			this.chunks = chunks;
+		}
+
+		protected byte byteAt (long position) throws IOException {
+			return chunks.byteAt(position);
+		}
+	}
+
+	/**
+	 * Gives access to any part of the decompressed data by decompressing
+	 * the chunk it's in.  We keep the last two chunks we used, since runs
+	 * of records can cross from one chunk into the next.
+	 */
+	private static class Chunks {
+
+		private GzipIndex index;
+		private DeflateDecoder decoder;
+		private long length;
+
+		private int [] cached = new int [] {-1, -1};
+		private byte [][] data = new byte[2][];
+		private int lastUsed = 0;
+
+		private Chunks (GzipIndex index, DeflateDecoder decoder) {
+			this.index = index;
+			this.decoder = decoder;
+		}
+
+		/**
+		 * Decompresses the last chunk to find out how long the data is,
+		 * and checks that against the gzip trailer.
+		 *
+		 * @param channel The gzip file
+		 * @param index Its index
+		 * @return The chunks, or null if the index doesn't cover the whole file
+		 * @throws IOException
+		 */
+		public static Chunks open (FileChannel channel, GzipIndex index) throws IOException {
+			Chunks chunks = new Chunks(index, new DeflateDecoder(channel));
+
+			// We don't know how long the last chunk is until we've
+			// decompressed it.
+			int last = index.size()-1;
+			chunks.length = Long.MAX_VALUE;
+			byte [] lastChunk = chunks.chunk(last);
+			chunks.length = index.uncompressedOffset(last)+lastChunk.length;
+
+			if (!chunks.decoder.reachedFinalBlock()) return null;
+
+			// The index only covers the first gzip member, so if there are
+			// more we can't use it.
+			long trailer = (chunks.decoder.endBit()+7)/8;
+			ByteBuffer check = ByteBuffer.allocate(10);
+			while (check.hasRemaining()) {
+				if (channel.read(check, trailer+check.position()) <= 0) break;
+			}
+			if (check.position() < 8) return null;
+
+			byte [] bytes = check.array();
+			int expectedLength = (bytes[4] & 0xff) | ((bytes[5] & 0xff) << 8) | ((bytes[6] & 0xff) << 16) | ((bytes[7] & 0xff) << 24);
+			if ((int)chunks.length != expectedLength) return null;
+			if (check.position() == 10 && (bytes[8] & 0xff) == 0x1f && (bytes[9] & 0xff) == 0x8b) return null;
+
+			return chunks;
+		}
+
+		/**
+		 * @return How long the decompressed data is
+		 */
+		public long length () {
+			return length;
+		}
+
+		/**
+		 * @param chunk Which chunk
+		 * @return How much data it decompresses to
+		 */
+		public long chunkLength (int chunk) {
+			return chunkEnd(chunk)-index.uncompressedOffset(chunk);
+		}
+
+		private long chunkEnd (int chunk) {
+			if (chunk+1 < index.size()) return index.uncompressedOffset(chunk+1);
+			return length;
+		}
+
+		/**
+		 * @return The last chunk which starts at or before a position
+		 */
+		private int chunkFor (long position) {
+			if (cached[lastUsed] >= 0 && position >= index.uncompressedOffset(cached[lastUsed]) && position < chunkEnd(cached[lastUsed])) {
+				return cached[lastUsed];
+			}
+			int low = 0;
+			int high = index.size()-1;
+			while (low < high) {
+				int mid = (low+high+1)/2;
+				if (index.uncompressedOffset(mid) <= position) {
+					low = mid;
+				}
+				else {
+					high = mid-1;
+				}
+			}
+			return low;
+		}
+
+		private byte [] chunk (int chunk) throws IOException {
+			for (int c=0;c<cached.length;c++) {
+				if (cached[c] == chunk) {
+					lastUsed = c;
+					return data[c];
+				}
+			}
+
+			int slot = 1-lastUsed;
+			byte [] decoded = index.decodeChunk(decoder, chunk);
+			if (decoded.length != chunkLength(chunk) && length != Long.MAX_VALUE) {
+				throw new IOException("Gzip index doesn't match the file");
+			}
+			cached[slot] = chunk;
+			data[slot] = decoded;
+			lastUsed = slot;
+			return decoded;
+		}
+
+		public byte byteAt (long position) throws IOException {
+			int chunk = chunkFor(position);
+			return chunk(chunk)[(int)(position-index.uncompressedOffset(chunk))];
+		}
+
+		/**
+		 * Copies decompressed data, stopping at the end of a chunk.
+		 *
+		 * @return How many bytes we copied
+		 */
+		public int read (long position, byte [] buffer, int offset, int length) throws IOException {
+			int chunk = chunkFor(position);
+			byte [] data = chunk(chunk);
+			int start = (int)(position-index.uncompressedOffset(chunk));
+			int read = Math.min(length, data.length-start);
+			System.arraycopy(data, start, buffer, offset, read);
+			return read;
+		}
+	}
+
+}
@@ -19,8 +19,16 @@
  */
 package uk.ac.bbsrc.babraham.FastQC.Sequence;
 
+import java.nio.charset.Charset;
+
 public class Sequence {
 
+	/**
+	 * Sequence files are plain ASCII so we can move between bytes and
+	 * Strings without going through a full charset decoder.
+	 */
+	private static final Charset ASCII = Charset.forName("ISO-8859-1");
+
 	private String sequence;
 	private String quality;
 	private String id;
@@ -28,6 +36,26 @@ public class Sequence {
 	private String colorspace;
 	private boolean isFiltered;
 	
+	// Parsers which work at the byte level hand us slices of their
+	// read buffer rather than Strings.  We only build the Strings if
+	// someone actually asks for them.
+	private byte [] sequenceBytes = null;
+	private int sequenceOffset = 0;
+	private int sequenceLength = 0;
+	private byte [] qualityBytes = null;
+	private int qualityOffset = 0;
+	private int qualityLength = 0;
+	private byte [] idBytes = null;
+	private int idOffset = 0;
+	private int idLength = 0;
+	private byte [] colorspaceBytes = null;
+	private int colorspaceOffset = 0;
+	private int colorspaceLength = 0;
+	
+	// The packed form of the bases, which we make the first time it's
+	// asked for and then share between all the modules.
+	private PackedSequence packed = null;
+	
 	public Sequence (SequenceFile file,String sequence, String quality, String id) {
 		this.id = id;
 		this.file = file;
@@ -45,6 +73,82 @@ public class Sequence {
 		this.colorspace = colorspace;
 	}
 	
+	/**
+	 * Creates a sequence which is backed by slices of a byte buffer.  The
+	 * sequence slice must already be upper case.  The buffer is owned by
+	 * the sequence file and will be reused, so the byte views are only
+	 * valid until the next call to hasNext() or next() on that file.  The
+	 * Strings returned by the get methods are always safe to keep.
+	 * 
+	 * @param file The file this sequence came from
+	 * @param buffer The buffer holding the id, sequence and quality
+	 * @param idOffset Start of the id line (including the @)
+	 * @param idLength Length of the id line
+	 * @param sequenceOffset Start of the bases
+	 * @param sequenceLength Number of bases
+	 * @param qualityOffset Start of the quality string
+	 * @param qualityLength Length of the quality string
+	 */
+	public Sequence (SequenceFile file, byte [] buffer, int idOffset, int idLength, int sequenceOffset, int sequenceLength, int qualityOffset, int qualityLength) {
+		this(file, buffer, idOffset, idLength, buffer, sequenceOffset, sequenceLength, buffer, qualityOffset, qualityLength);
+	}
+
+	/**
+	 * Creates a sequence whose id, bases and qualities are slices of
+	 * separate arrays, as they are when sequences are held in a batch.
+	 * The same rules apply as for a single buffer.
+	 *
+	 * @param file The file this sequence came from
+	 * @param ids The array holding the id
+	 * @param idOffset Start of the id (including the @)
+	 * @param idLength Length of the id
+	 * @param bases The array holding the bases
+	 * @param sequenceOffset Start of the bases
+	 * @param sequenceLength Number of bases
+	 * @param qualities The array holding the quality string
+	 * @param qualityOffset Start of the quality string
+	 * @param qualityLength Length of the quality string
+	 */
+	public Sequence (SequenceFile file, byte [] ids, int idOffset, int idLength, byte [] bases, int sequenceOffset, int sequenceLength, byte [] qualities, int qualityOffset, int qualityLength) {
+		this.file = file;
+		this.idBytes = ids;
+		this.idOffset = idOffset;
+		this.idLength = idLength;
+		this.sequenceBytes = bases;
+		this.sequenceOffset = sequenceOffset;
+		this.sequenceLength = sequenceLength;
+		this.qualityBytes = qualities;
+		this.qualityOffset = qualityOffset;
+		this.qualityLength = qualityLength;
+		this.colorspace = null;
+		this.isFiltered = false;
+	}
+	
+	/**
+	 * Creates a colorspace sequence which is backed by byte buffers.  The
+	 * colorspace calls, id and qualities are slices of the file's buffer
+	 * as above, and the bases decoded from the colorspace are in their
+	 * own array, which the file will also reuse.
+	 * 
+	 * @param file The file this sequence came from
+	 * @param buffer The buffer holding the id, colorspace and quality
+	 * @param idOffset Start of the id line (including the @)
+	 * @param idLength Length of the id line
+	 * @param bases The decoded bases, starting at the beginning of the array
+	 * @param basesLength Number of bases
+	 * @param colorspaceOffset Start of the colorspace calls
+	 * @param colorspaceLength Number of colorspace calls, including the primer base
+	 * @param qualityOffset Start of the quality string
+	 * @param qualityLength Length of the quality string
+	 */
+	public Sequence (SequenceFile file, byte [] buffer, int idOffset, int idLength, byte [] bases, int basesLength, int colorspaceOffset, int colorspaceLength, int qualityOffset, int qualityLength) {
+		this(file, buffer, idOffset, idLength, 0, basesLength, qualityOffset, qualityLength);
+		this.sequenceBytes = bases;
+		this.colorspaceBytes = buffer;
+		this.colorspaceOffset = colorspaceOffset;
+		this.colorspaceLength = colorspaceLength;
+	}
+	
 	public void setIsFiltered (boolean isFiltered) {
 		this.isFiltered = isFiltered;
 	}
@@ -52,25 +156,136 @@ public class Sequence {
 	public boolean isFiltered () {
 		return isFiltered;
 	}
+
+	void setColorspace (String colorspace) {
+		this.colorspace = colorspace;
+	}
 	
 	public SequenceFile file () {
 		return file;
 	}
 	
 	public String getSequence () {
+		if (sequence == null) {
+			sequence = new String(sequenceBytes, sequenceOffset, sequenceLength, ASCII);
+		}
 		return sequence;
 	}
 	
 	public String getColorspace () {
+		if (colorspace == null && colorspaceBytes != null) {
+			colorspace = new String(colorspaceBytes, colorspaceOffset, colorspaceLength, ASCII);
+		}
 		return colorspace;
 	}
 	
 	public String getQualityString () {
+		if (quality == null) {
+			quality = new String(qualityBytes, qualityOffset, qualityLength, ASCII);
+		}
 		return quality;
 	}
 	
 	public String getID () {
+		if (id == null) {
+			id = new String(idBytes, idOffset, idLength, ASCII);
+		}
 		return id;
 	}
 	
+	/**
+	 * The bytes holding the id of this sequence.  The id starts at
+	 * getIDOffset() and runs for getIDLength() bytes.  The array may be
+	 * shared with other sequences so it must not be modified.
+	 */
+	public byte [] getIDBytes () {
+		if (idBytes == null) {
+			idBytes = id.getBytes(ASCII);
+			idOffset = 0;
+			idLength = idBytes.length;
+		}
+		return idBytes;
+	}
+	
+	public int getIDOffset () {
+		if (idBytes == null) getIDBytes();
+		return idOffset;
+	}
+	
+	public int getIDLength () {
+		if (idBytes == null) return id.length();
+		return idLength;
+	}
+	
+	/**
+	 * The bytes holding the bases of this sequence.  The bases start at
+	 * getSequenceOffset() and run for getSequenceLength() bytes.  The
+	 * array may be shared with other sequences so it must not be modified.
+	 */
+	public byte [] getSequenceBytes () {
+		if (sequenceBytes == null) {
+			sequenceBytes = sequence.getBytes(ASCII);
+			sequenceOffset = 0;
+			sequenceLength = sequenceBytes.length;
+		}
+		return sequenceBytes;
+	}
+	
+	public int getSequenceOffset () {
+		if (sequenceBytes == null) getSequenceBytes();
+		return sequenceOffset;
+	}
+	
+	public int getSequenceLength () {
+		if (sequenceBytes == null) return sequence.length();
+		return sequenceLength;
+	}
+	
+	/**
+	 * The bases packed into 2 bits each.  This is a copy, so unlike the
+	 * byte views it's safe to keep after the file has moved on.
+	 */
+	public PackedSequence getPackedSequence () {
+		if (packed == null) {
+			packed = new PackedSequence(getSequenceBytes(), getSequenceOffset(), getSequenceLength());
+		}
+		return packed;
+	}
+	
+	/**
+	 * The packed form of just the start of the bases.  For long reads
+	 * this saves packing the whole sequence when only the start is used.
+	 * 
+	 * @param length How many bases to pack
+	 */
+	public PackedSequence getPackedPrefix (int length) {
+		if (packed != null) return packed.prefix(length);
+		if (getSequenceLength() <= length) return getPackedSequence();
+		return new PackedSequence(getSequenceBytes(), getSequenceOffset(), length);
+	}
+	
+	/**
+	 * The bytes holding the quality string of this sequence.  The qualities
+	 * start at getQualityOffset() and run for getQualityLength() bytes.  The
+	 * array may be shared with other sequences so it must not be modified.
+	 */
+	public byte [] getQualityBytes () {
+		if (qualityBytes == null) {
+			qualityBytes = quality.getBytes(ASCII);
+			qualityOffset = 0;
+			qualityLength = qualityBytes.length;
+		}
+		return qualityBytes;
+	}
+	
+	public int getQualityOffset () {
+		if (qualityBytes == null) getQualityBytes();
+		return qualityOffset;
+	}
+	
+	public int getQualityLength () {
+		if (qualityBytes == null) return quality.length();
+		return qualityLength;
+	}
+	
 }
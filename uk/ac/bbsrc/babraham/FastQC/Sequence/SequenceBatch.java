@@ -0,0 +1,236 @@
+/**
+ * Copyright Copyright 2010-11 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Sequence;
+
+import java.util.Arrays;
+
+/**
+ * A block of sequences held together so that modules can work through
+ * all of them in one go.  The bases of every sequence are copied one
+ * after the other into a single array, and likewise for the qualities
+ * and ids, with arrays of offsets and lengths saying where each one is.
+ *
+ * A batch is filled, passed to every module and then cleared and reused,
+ * so modules mustn't keep any of the arrays, or the Sequence objects,
+ * once they've finished with a batch.
+ */
+public class SequenceBatch {
+
+	/** The most sequences we'll put in one batch */
+	public static final int MAX_SEQUENCES = 4096;
+
+	// We also stop once we've got this much sequence, so batches of
+	// very long reads don't take up too much memory.
+	private static final int MAX_BASES = 4*1024*1024;
+
+	/**
+	 * Reads at least this long are better passed on by themselves with
+	 * wrap() than copied into a batch.
+	 */
+	public static final int LONG_READ_LENGTH = 64*1024;
+
+	private int size = 0;
+	private int maxLength = 0;
+
+	private byte [] bases = new byte[64*1024];
+	private int basesUsed = 0;
+	private int [] baseOffsets = new int[MAX_SEQUENCES];
+	private int [] baseLengths = new int[MAX_SEQUENCES];
+
+	private byte [] qualities = new byte[64*1024];
+	private int qualitiesUsed = 0;
+	private int [] qualityOffsets = new int[MAX_SEQUENCES];
+	private int [] qualityLengths = new int[MAX_SEQUENCES];
+
+	private byte [] ids = new byte[16*1024];
+	private int idsUsed = 0;
+
+	private boolean [] filtered = new boolean[MAX_SEQUENCES];
+	private Sequence [] sequences = new Sequence[MAX_SEQUENCES];
+
+	// Set while the batch is just wrapping a sequence's own arrays
+	private boolean wrapped = false;
+	private byte [] ownBases = bases;
+	private byte [] ownQualities = qualities;
+
+	/**
+	 * Empties the batch so it can be filled again.
+	 */
+	public void clear () {
+		if (wrapped) {
+			bases = ownBases;
+			qualities = ownQualities;
+			wrapped = false;
+		}
+		Arrays.fill(sequences, 0, size, null);
+		size = 0;
+		maxLength = 0;
+		basesUsed = 0;
+		qualitiesUsed = 0;
+		idsUsed = 0;
+	}
+
+	/**
+	 * @return true if we can't take any more sequences
+	 */
+	public boolean isFull () {
+		return wrapped || size == MAX_SEQUENCES || basesUsed >= MAX_BASES;
+	}
+
+	/**
+	 * Copies a sequence into the batch.  The sequence doesn't need to be
+	 * kept valid afterwards, so this can be given sequences which point
+	 * into a file's read buffer.
+	 *
+	 * @param sequence The sequence to add
+	 */
+	public void add (Sequence sequence) {
+		add(sequence, sequence.file());
+	}
+	
+	/**
+	 * Copies a sequence into the batch, saying that it came from a
+	 * different file.  This is how the mates of an interleaved file end
+	 * up belonging to their own MateFile.
+	 *
+	 * @param sequence The sequence to add
+	 * @param file The file the copy will say it came from
+	 */
+	public void add (Sequence sequence, SequenceFile file) {
+		int length = sequence.getSequenceLength();
+		int qualityLength = sequence.getQualityLength();
+		int idLength = sequence.getIDLength();
+
+		bases = ensureCapacity(bases, basesUsed+length);
+		qualities = ensureCapacity(qualities, qualitiesUsed+qualityLength);
+		ownBases = bases;
+		ownQualities = qualities;
+		ids = ensureCapacity(ids, idsUsed+idLength);
+
+		System.arraycopy(sequence.getSequenceBytes(), sequence.getSequenceOffset(), bases, basesUsed, length);
+		System.arraycopy(sequence.getQualityBytes(), sequence.getQualityOffset(), qualities, qualitiesUsed, qualityLength);
+		System.arraycopy(sequence.getIDBytes(), sequence.getIDOffset(), ids, idsUsed, idLength);
+
+		Sequence copy = new Sequence(file, ids, idsUsed, idLength, bases, basesUsed, length, qualities, qualitiesUsed, qualityLength);
+		copy.setIsFiltered(sequence.isFiltered());
+		if (sequence.getColorspace() != null) {
+			copy.setColorspace(sequence.getColorspace());
+		}
+
+		baseOffsets[size] = basesUsed;
+		baseLengths[size] = length;
+		qualityOffsets[size] = qualitiesUsed;
+		qualityLengths[size] = qualityLength;
+		filtered[size] = sequence.isFiltered();
+		sequences[size] = copy;
+		++size;
+
+		basesUsed += length;
+		qualitiesUsed += qualityLength;
+		idsUsed += idLength;
+		if (length > maxLength) maxLength = length;
+	}
+
+	/**
+	 * Makes this a batch of just one sequence, without copying it.  The
+	 * batch then points into the same arrays as the sequence, so it's only
+	 * valid for as long as the sequence is.  This is how very long reads
+	 * get to the modules without us holding a second copy of them.
+	 *
+	 * @param sequence The sequence the batch will hold
+	 */
+	public void wrap (Sequence sequence) {
+		clear();
+		wrapped = true;
+
+		bases = sequence.getSequenceBytes();
+		qualities = sequence.getQualityBytes();
+		baseOffsets[0] = sequence.getSequenceOffset();
+		baseLengths[0] = sequence.getSequenceLength();
+		qualityOffsets[0] = sequence.getQualityOffset();
+		qualityLengths[0] = sequence.getQualityLength();
+		filtered[0] = sequence.isFiltered();
+		sequences[0] = sequence;
+		maxLength = sequence.getSequenceLength();
+		size = 1;
+	}
+
+	private static byte [] ensureCapacity (byte [] array, int needed) {
+		if (needed <= array.length) return array;
+		return Arrays.copyOf(array, Math.max(needed, array.length*2));
+	}
+
+	/**
+	 * @return How many sequences there are in the batch
+	 */
+	public int size () {
+		return size;
+	}
+
+	/**
+	 * @return The length of the longest sequence in the batch
+	 */
+	public int maxSequenceLength () {
+		return maxLength;
+	}
+
+	/**
+	 * @return The array holding the bases of every sequence
+	 */
+	public byte [] bases () {
+		return bases;
+	}
+
+	public int baseOffset (int index) {
+		return baseOffsets[index];
+	}
+
+	public int baseLength (int index) {
+		return baseLengths[index];
+	}
+
+	/**
+	 * @return The array holding the qualities of every sequence
+	 */
+	public byte [] qualities () {
+		return qualities;
+	}
+
+	public int qualityOffset (int index) {
+		return qualityOffsets[index];
+	}
+
+	public int qualityLength (int index) {
+		return qualityLengths[index];
+	}
+
+	public boolean isFiltered (int index) {
+		return filtered[index];
+	}
+
+	/**
+	 * @param index Which sequence
+	 * @return The sequence, whose byte views point into this batch
+	 */
+	public Sequence sequence (int index) {
+		return sequences[index];
+	}
+
+}
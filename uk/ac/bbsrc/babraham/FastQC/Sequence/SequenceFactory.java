@@ -20,7 +20,9 @@
 package uk.ac.bbsrc.babraham.FastQC.Sequence;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class SequenceFactory {
 
@@ -52,13 +54,13 @@ public class SequenceFactory {
 			// We're not autodetecting the format, but taking whatever they said
 			
 			if (System.getProperty("fastqc.sequence_format").equals("bam") || System.getProperty("fastqc.sequence_format").equals("sam")) {
-				return new BAMFile(file,false, read);
+				return getBAMFile(file,false, read);
 			}
 			else if (System.getProperty("fastqc.sequence_format").equals("bam_mapped") || System.getProperty("fastqc.sequence_format").equals("sam_mapped")) {
-				return new BAMFile(file,true, read);
+				return getBAMFile(file,true, read);
 			}
 			else if (System.getProperty("fastqc.sequence_format").equals("fastq")) {
-				return new FastQFile(file);
+				return getFastQFile(file);
 			}
 //			else if (System.getProperty("fastqc.sequence_format").equals("goby")) {
 //				return new GobyFile(file);
@@ -74,17 +76,90 @@ public class SequenceFactory {
 		// the type
 		if (file.getName().toLowerCase().endsWith(".bam") || file.getName().toLowerCase().endsWith(".sam")) {
 			// We default to using all reads
-			return new BAMFile(file,false, read);
+			return getBAMFile(file,false, read);
 		}
 //		else if (file.getName().toLowerCase().endsWith(".compact-reads") || file.getName().toLowerCase().endsWith(".compact_reads") || file.getName().toLowerCase().endsWith(".goby")) {
 //			return new GobyFile(file);
 //		}
 		else {
-			return new FastQFile(file);
+			return getFastQFile(file);
 		}
 
 		
 	}
 	
+	/**
+	 * Says whether we have to read a file as a stream.  A filename of "-"
+	 * means stdin, and named pipes and devices can only be read once from
+	 * start to finish.
+	 * 
+	 * @param file The file to check
+	 * @return true if this is a stream rather than a normal file
+	 */
+	public static boolean isStream (File file) {
+		if (file.getPath().equals("-")) return true;
+		return file.exists() && !file.isFile() && !file.isDirectory();
+	}
+	
+	private static InputStream openStream (File file) throws IOException {
+		if (file.getPath().equals("-")) {
+			return System.in;
+		}
+		return new FileInputStream(file);
+	}
+	
+	/**
+	 * @return The name we report a stream under
+	 */
+	private static File streamName (File file) {
+		if (file.getPath().equals("-")) {
+			return new File("stdin");
+		}
+		return file;
+	}
+	
+	private static SequenceFile getBAMFile (File file, boolean onlyMapped, int read) throws SequenceFormatException, IOException {
+		if (isStream(file)) {
+			return new BAMFile(streamName(file), openStream(file), onlyMapped, read);
+		}
+		return new BAMFile(file, onlyMapped, read);
+	}
+	
+	private static SequenceFile getFastQFile (File file) throws SequenceFormatException, IOException {
+		
+		// Streams can't be checked before we read them, so we let the
+		// file work out for itself whether they're compressed.
+		if (isStream(file)) {
+			return new FastQFile(streamName(file), openStream(file));
+		}
+		
+		// Uncompressed files can be mapped straight into memory, which is
+		// much quicker than reading them through a stream.  We go by what's
+		// in the file rather than its name to decide.
+		Codec codec = Codec.detect(file);
+		if (codec.isCompressed()) {
+			if (System.getProperty("fastqc.sample") != null) {
+				// A gzip file with an index can be sampled by only
+				// decompressing some of the chunks between access points.
+				if (codec == Codec.GZIP) {
+					GzipIndex index = GzipIndex.load(file);
+					if (index != null) {
+						FastQFile sampled = SampledGzipFastQFile.sample(file, index, System.getProperty("fastqc.sample"));
+						if (sampled != null) return sampled;
+					}
+				}
+				System.err.println("Can't sample compressed file "+file.getName()+" without a usable gzip index so reading all of it");
+			}
+			return new FastQFile(file, codec);
+		}
+		else if (System.getProperty("fastqc.sample") != null) {
+			// We can jump straight to random places in uncompressed files
+			return SampledFastQFile.sample(file, System.getProperty("fastqc.sample"));
+		}
+		else {
+			return new MappedFastQFile(file);
+		}
+	}
+	
 	
 }
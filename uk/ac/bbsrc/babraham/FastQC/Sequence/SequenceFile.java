@@ -27,7 +27,18 @@ public interface SequenceFile {
 	public Sequence next() throws SequenceFormatException;
 	public boolean isColorspace();
 	public String name();
+	
+	/**
+	 * @return How far through the file we are, or -1 if we're reading
+	 * from a stream whose length we don't know
+	 */
 	public int getPercentComplete();
+	
+	/**
+	 * @return How many bytes of input we've read so far
+	 */
+	public long getBytesRead();
+	
 	public File getFile();
 	
 }
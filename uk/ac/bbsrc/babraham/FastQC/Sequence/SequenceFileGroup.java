@@ -30,11 +30,27 @@ public class SequenceFileGroup implements SequenceFile {
 	public File getFile() {
 		return groupFile;
 	}
+	
+	/**
+	 * @return The files in this group, in the order they're read
+	 */
+	public SequenceFile [] getFiles() {
+		return files;
+	}
 
 	public int getPercentComplete() {
+		if (files[currentIndex].getPercentComplete() < 0) return -1;
 		return ((100*currentIndex)/files.length)+(files[currentIndex].getPercentComplete()/files.length);
 	}
 
+	public long getBytesRead() {
+		long bytes = 0;
+		for (int f=0;f<=currentIndex;f++) {
+			bytes += files[f].getBytesRead();
+		}
+		return bytes;
+	}
+
 	public boolean hasNext() {
 		if (files[currentIndex].hasNext()) {
 			return true;
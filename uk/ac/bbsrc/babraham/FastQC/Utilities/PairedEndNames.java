@@ -0,0 +1,144 @@
+/**
+ * Copyright Copyright 2011 Simon Andrews
+ *
+ *    This file is part of FastQC.
+ *
+ *    FastQC is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 3 of the License, or
+ *    (at your option) any later version.
+ *
+ *    FastQC is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with FastQC; if not, write to the Free Software
+ *    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package uk.ac.bbsrc.babraham.FastQC.Utilities;
+
+import java.io.File;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class PairedEndNames {
+
+	// The read number in names like sample_L001_R1_001.fastq.gz or
+	// sample_R2.fastq
+	private static final Pattern MATE_PATTERN = Pattern.compile("_R([12])(?=[_.])");
+	
+	/**
+	 * Finds which read of a pair a file holds from its name.
+	 * 
+	 * @param originalName The file name
+	 * @return 1 or 2
+	 * @throws NameFormatException If the name doesn't say which read it is
+	 */
+	public static int getMateNumber (String originalName) throws NameFormatException {
+		return Integer.parseInt(findMate(originalName).group(1));
+	}
+	
+	/**
+	 * Finds the name shared by both files of a pair, which is the file
+	 * name with the _R1 or _R2 taken out.
+	 * 
+	 * @param originalName The file name
+	 * @return The name without the read number
+	 * @throws NameFormatException If the name doesn't say which read it is
+	 */
+	public static String getPairBasename (String originalName) throws NameFormatException {
+		Matcher matcher = findMate(originalName);
+		return originalName.substring(0, matcher.start())+originalName.substring(matcher.end());
+	}
+	
+	private static Matcher findMate (String originalName) throws NameFormatException {
+		// We want the last match in case the sample name happens to
+		// contain something which looks like a read number.
+		Matcher matcher = MATE_PATTERN.matcher(originalName);
+		int start = -1;
+		while (matcher.find()) {
+			start = matcher.start();
+		}
+		if (start < 0) throw new NameFormatException();
+		matcher.find(start);
+		return matcher;
+	}
+	
+	/**
+	 * Puts groups of files into pairs.  Groups whose names say which read
+	 * they hold are paired with the group holding the other read, and are
+	 * left on their own if there isn't one.  The rest are paired in the
+	 * order they were given, so the first file is paired with the second,
+	 * the third with the fourth and so on.
+	 * 
+	 * @param groups The groups of files, each of which makes one report
+	 * @return The pairs, each holding two groups, or just one if it couldn't be paired
+	 */
+	public static File [][][] getPairs (File [][] groups) {
+		Hashtable<String, File [][]> named = new Hashtable<String, File[][]>();
+		Vector<File [][]> pairs = new Vector<File[][]>();
+		Vector<File []> unnamed = new Vector<File[]>();
+		Vector<File []> unpaired = new Vector<File[]>();
+		
+		for (int g=0;g<groups.length;g++) {
+			try {
+				String baseName = getPairBasename(groups[g][0].getName());
+				int mate = getMateNumber(groups[g][0].getName());
+				
+				if (!named.containsKey(baseName)) {
+					File [][] pair = new File[2][];
+					named.put(baseName, pair);
+					pairs.add(pair);
+				}
+				File [][] pair = named.get(baseName);
+				if (pair[mate-1] != null) {
+					System.err.println("Found more than one read "+mate+" file for '"+baseName+"'");
+					unpaired.add(groups[g]);
+					continue;
+				}
+				pair[mate-1] = groups[g];
+			}
+			catch (NameFormatException nfe) {
+				unnamed.add(groups[g]);
+			}
+		}
+		
+		// A file which says which read it is but has no partner can't be
+		// the other half of some unrelated file, so it goes on its own.
+		Vector<File [][]> result = new Vector<File[][]>();
+		for (int p=0;p<pairs.size();p++) {
+			File [][] pair = pairs.elementAt(p);
+			if (pair[0] != null && pair[1] != null) {
+				result.add(pair);
+			}
+			else if (pair[0] != null) {
+				unpaired.add(pair[0]);
+			}
+			else {
+				unpaired.add(pair[1]);
+			}
+		}
+		
+		for (int u=0;u<unpaired.size();u++) {
+			System.err.println("File '"+unpaired.elementAt(u)[0].getName()+"' didn't have a pair so will be analysed on its own");
+			result.add(new File [][] {unpaired.elementAt(u)});
+		}
+		
+		for (int u=0;u<unnamed.size();u+=2) {
+			if (u+1 < unnamed.size()) {
+				result.add(new File [][] {unnamed.elementAt(u), unnamed.elementAt(u+1)});
+			}
+			else {
+				System.err.println("File '"+unnamed.elementAt(u)[0].getName()+"' didn't have a pair so will be analysed on its own");
+				result.add(new File [][] {unnamed.elementAt(u)});
+			}
+		}
+		
+		return result.toArray(new File[0][][]);
+	}
+	
+}